@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the functions classifying and splitting input lines.
+ *
+ * @author Jeremy Nowell
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LineClassificationBenchmark {
+
+    /** The input line to classify. */
+    @Param({
+        "  PROJECT_NAME Si_bulk8",
+        "      A [angstrom] 5.430697500    0.000000000    0.000000000",
+        "       Si    2.715348700    2.715348700    0.000000000",
+        "      # fix methyl carbons to be equivalent",
+        "    &END SCF"
+    })
+    private String m_line;
+
+    /**
+     * Check whether the line is a comment.
+     *
+     * @return whether the line is a comment.
+     */
+    @Benchmark
+    public boolean isComment() {
+        return TextInputProcessor.isComment(m_line);
+    }
+
+    /**
+     * Check whether the line ends a section.
+     *
+     * @return whether the line ends a section.
+     */
+    @Benchmark
+    public boolean isSectionEnd() {
+        return TextInputProcessor.isSectionEnd(m_line);
+    }
+
+    /**
+     * Get the keyword name from the line.
+     *
+     * @return the keyword name.
+     */
+    @Benchmark
+    public String getKeywordName() {
+        return TextInputProcessor.getKeywordName(m_line);
+    }
+
+    /**
+     * Get the keyword value from the line.
+     *
+     * @return the keyword value.
+     */
+    @Benchmark
+    public String getKeywordValue() {
+        return TextInputProcessor.getKeywordValue(m_line);
+    }
+
+    /**
+     * Get the keyword unit from the line.
+     *
+     * @return the keyword unit.
+     */
+    @Benchmark
+    public String getKeywordUnit() {
+        return TextInputProcessor.getKeywordUnit(m_line);
+    }
+}
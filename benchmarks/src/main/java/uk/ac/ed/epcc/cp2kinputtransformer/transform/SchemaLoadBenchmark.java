@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for loading the schema of each template.
+ *
+ * @author Jeremy Nowell
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchemaLoadBenchmark {
+
+    /** ID of the template to load. */
+    @Param({"cp2k-3.0", "cp2k-4.0"})
+    private String m_templateId;
+
+    /**
+     * Load the schema, leaving section contents to be built on first use.
+     *
+     * @return the top level section.
+     * @throws IOException if the schema cannot be loaded.
+     */
+    @Benchmark
+    public CP2KSection loadSchema() throws IOException {
+        return TextInputProcessor.loadSchema(SchemaCache.getSchemaFileName(m_templateId));
+    }
+
+    /**
+     * Load the schema and build the contents of every section.
+     *
+     * @return the number of sections populated.
+     * @throws IOException if the schema cannot be loaded.
+     */
+    @Benchmark
+    public int loadAndPopulateSchema() throws IOException {
+        return TextInputProcessor.loadSchema(SchemaCache.getSchemaFileName(m_templateId))
+                .populateAllContents();
+    }
+
+    /**
+     * Load the template as the service does, from the compiled schema
+     * index if there is one.
+     *
+     * @return the top level section.
+     * @throws IOException if the template cannot be loaded.
+     */
+    @Benchmark
+    public CP2KSection loadTemplate() throws IOException {
+        return SchemaCache.loadTemplate(m_templateId);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for looking up sections and keywords in a loaded schema.
+ *
+ * @author Jeremy Nowell
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SectionLookupBenchmark {
+
+    /** The top level section. */
+    private CP2KSection m_topLevelSection;
+
+    /** The FORCE_EVAL section. */
+    private CP2KSection m_forceEvalSection;
+
+    /** The GLOBAL section. */
+    private CP2KSection m_globalSection;
+
+    /** A line of input containing a keyword name. */
+    private String m_keyWordLine = "  PROJECT_NAME Si_bulk8";
+
+    /** A line of input containing a keyword name in lower case. */
+    private String m_lowerCaseKeyWordLine = "  project_name Si_bulk8";
+
+    /** A line of input containing a keyword name in mixed case. */
+    private String m_mixedCaseKeyWordLine = "  Project_Name Si_bulk8";
+
+    /** A line of input containing a coordinate, which is not a keyword. */
+    private String m_coordLine = "       Si    2.715348700    2.715348700    0.000000000";
+
+    /**
+     * Load the schema and build all section contents.
+     *
+     * @throws IOException if the schema cannot be loaded.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        m_topLevelSection = TextInputProcessor.loadSchema(SchemaCache.getSchemaFileName("cp2k-3.0"));
+        m_topLevelSection.populateAllContents();
+        m_forceEvalSection = m_topLevelSection.getSubSection("FORCE_EVAL");
+        m_globalSection = m_topLevelSection.getSubSection("GLOBAL");
+    }
+
+    /**
+     * Look up a sub-section that exists.
+     *
+     * @return the sub-section.
+     */
+    @Benchmark
+    public CP2KSection subSectionHit() {
+        return m_forceEvalSection.getSubSection("SUBSYS");
+    }
+
+    /**
+     * Look up a sub-section that does not exist.
+     *
+     * @return whether the sub-section exists.
+     */
+    @Benchmark
+    public boolean subSectionMiss() {
+        return m_forceEvalSection.hasSubSection("NO_SUCH_SECTION");
+    }
+
+    /**
+     * Look up a keyword by its name.
+     *
+     * @return the keyword.
+     */
+    @Benchmark
+    public CP2KKeyWord keyWordHit() {
+        return m_globalSection.getKeyWord("PROJECT_NAME");
+    }
+
+    /**
+     * Look up a keyword by its alias.
+     *
+     * @return the keyword.
+     */
+    @Benchmark
+    public CP2KKeyWord keyWordAliasHit() {
+        return m_globalSection.getKeyWord("PROJECT");
+    }
+
+    /**
+     * Look up a keyword that does not exist, as for a default keyword line.
+     *
+     * @return whether the keyword exists.
+     */
+    @Benchmark
+    public boolean keyWordMiss() {
+        return m_globalSection.hasKeyWord("Si");
+    }
+
+    /**
+     * Walk down a path of nested sections.
+     *
+     * @return the innermost section.
+     */
+    @Benchmark
+    public CP2KSection nestedPath() {
+        return m_topLevelSection.getSubSection("FORCE_EVAL").getSubSection("DFT")
+                .getSubSection("SCF").getSubSection("MIXING");
+    }
+
+    /**
+     * Look up a keyword from a slice of a line of input.
+     *
+     * @return the keyword.
+     */
+    @Benchmark
+    public CP2KKeyWord keyWordSliceHit() {
+        return m_globalSection.findKeyWord(m_keyWordLine, 2, 14);
+    }
+
+    /**
+     * Look up a keyword in lower case from a slice of a line of input.
+     *
+     * @return the keyword.
+     */
+    @Benchmark
+    public CP2KKeyWord keyWordSliceLowerCaseHit() {
+        return m_globalSection.findKeyWord(m_lowerCaseKeyWordLine, 2, 14);
+    }
+
+    /**
+     * Look up a keyword in mixed case from a slice of a line of input.
+     *
+     * @return the keyword.
+     */
+    @Benchmark
+    public CP2KKeyWord keyWordSliceMixedCaseHit() {
+        return m_globalSection.findKeyWord(m_mixedCaseKeyWordLine, 2, 14);
+    }
+
+    /**
+     * Look up a default keyword line from a slice of a line of input.
+     *
+     * @return the keyword, which is null.
+     */
+    @Benchmark
+    public CP2KKeyWord keyWordSliceMiss() {
+        return m_globalSection.findKeyWord(m_coordLine, 7, 9);
+    }
+}
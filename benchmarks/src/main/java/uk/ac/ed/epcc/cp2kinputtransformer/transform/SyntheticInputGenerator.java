@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates synthetic CP2K input files of configurable size, for
+ * benchmarks and load tests.
+ *
+ * <p>The input has a GLOBAL section followed by one or more FORCE_EVAL
+ * sections. Each FORCE_EVAL has DFT settings, an optional chain of nested
+ * MIXED sections, and a SUBSYS with a CELL, a COORD section listing the
+ * atoms and a KIND section for each atom kind. Comment lines may be
+ * scattered through the input. Atom positions are pseudo-random, but the
+ * same settings and seed always give the same input.
+ *
+ * <p>Run from the command line to write an input file:
+ *
+ * <pre>
+ * java -cp benchmarks.jar uk.ac.ed.epcc.cp2kinputtransformer.transform.SyntheticInputGenerator \
+ *     --atoms 1000000 --kinds 1000 --output big.inp
+ * </pre>
+ *
+ * @author Jeremy Nowell
+ */
+public class SyntheticInputGenerator {
+
+    /** Element symbols used for atom kinds. */
+    private static final String[] ELEMENTS = {
+        "H", "C", "N", "O", "Si", "P", "S", "Cl", "Na", "Fe", "Cu", "Zn"
+    };
+
+    /** Number of decimal places of atom coordinates. */
+    private static final int COORD_DECIMALS = 9;
+
+    /** Scale of atom coordinates for the fixed point format. */
+    private static final long COORD_SCALE = 1000000000L;
+
+    /** Number of atoms in the COORD section of each FORCE_EVAL. */
+    private int m_atoms = 8;
+
+    /** Number of atom kinds, each with a KIND section. */
+    private int m_kinds = 1;
+
+    /** Depth of nested MIXED sections in each FORCE_EVAL. */
+    private int m_mixedDepth;
+
+    /** Number of FORCE_EVAL sections. */
+    private int m_forceEvals = 1;
+
+    /** Number of lines between comments, or zero for no comments. */
+    private int m_commentInterval;
+
+    /** Seed for atom positions. */
+    private long m_seed = 42L;
+
+    /** Writer for the current input. */
+    private Writer m_writer;
+
+    /** Number of lines written to the current input. */
+    private long m_lines;
+
+    /**
+     * Sets the number of atoms in the COORD section of each FORCE_EVAL.
+     *
+     * @param atoms the number of atoms.
+     * @return this generator.
+     */
+    public SyntheticInputGenerator setAtoms(int atoms) {
+        m_atoms = checkNotNegative("atoms", atoms);
+        return this;
+    }
+
+    /**
+     * Sets the number of atom kinds, each of which has a KIND section.
+     *
+     * @param kinds the number of kinds.
+     * @return this generator.
+     */
+    public SyntheticInputGenerator setKinds(int kinds) {
+        if (kinds < 1) {
+            throw new IllegalArgumentException("Number of kinds must be positive: " + kinds);
+        }
+        m_kinds = kinds;
+        return this;
+    }
+
+    /**
+     * Sets the depth of nested MIXED sections in each FORCE_EVAL. Depths
+     * greater than one need a schema allowing MIXED within MIXED, as
+     * otherwise the end of the first unknown section closes its parent.
+     *
+     * @param mixedDepth the depth, or zero for no MIXED section.
+     * @return this generator.
+     */
+    public SyntheticInputGenerator setMixedDepth(int mixedDepth) {
+        m_mixedDepth = checkNotNegative("mixed depth", mixedDepth);
+        return this;
+    }
+
+    /**
+     * Sets the number of FORCE_EVAL sections.
+     *
+     * @param forceEvals the number of FORCE_EVAL sections.
+     * @return this generator.
+     */
+    public SyntheticInputGenerator setForceEvals(int forceEvals) {
+        m_forceEvals = checkNotNegative("force evals", forceEvals);
+        return this;
+    }
+
+    /**
+     * Sets the number of lines between comments.
+     *
+     * @param commentInterval the number of lines, or zero for no comments.
+     * @return this generator.
+     */
+    public SyntheticInputGenerator setCommentInterval(int commentInterval) {
+        m_commentInterval = checkNotNegative("comment interval", commentInterval);
+        return this;
+    }
+
+    /**
+     * Sets the seed for atom positions.
+     *
+     * @param seed the seed.
+     * @return this generator.
+     */
+    public SyntheticInputGenerator setSeed(long seed) {
+        m_seed = seed;
+        return this;
+    }
+
+    /**
+     * Generate an input file as a String.
+     *
+     * @return the input file.
+     */
+    public String generate() {
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException e) {
+            // Not thrown by StringWriter
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Generate an input file, writing it as it is produced. The writer is
+     * flushed but not closed.
+     *
+     * @param writer Writer to receive the input file.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void write(Writer writer) throws IOException {
+        m_writer = writer;
+        m_lines = 0;
+        try {
+            Random random = new Random(m_seed);
+
+            writeLine("&GLOBAL");
+            writeLine("  PRINT_LEVEL LOW");
+            writeLine("  PROJECT_NAME synthetic");
+            writeLine("  RUN_TYPE ENERGY_FORCE");
+            writeLine("&END GLOBAL");
+
+            for (int i = 0; i < m_forceEvals; i++) {
+                writeForceEval(random);
+            }
+            m_writer.flush();
+        } finally {
+            m_writer = null;
+        }
+    }
+
+    /**
+     * Write a FORCE_EVAL section.
+     *
+     * @param random source of atom positions.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeForceEval(Random random) throws IOException {
+        writeLine("&FORCE_EVAL");
+        writeLine("  METHOD QUICKSTEP");
+        writeLine("  &DFT");
+        writeLine("    BASIS_SET_FILE_NAME BASIS_SET");
+        writeLine("    POTENTIAL_FILE_NAME GTH_POTENTIALS");
+        writeLine("    &SCF");
+        writeLine("      MAX_SCF 300");
+        writeLine("      EPS_SCF 1.0E-7");
+        writeLine("      SCF_GUESS ATOMIC");
+        writeLine("    &END SCF");
+        writeLine("  &END DFT");
+
+        for (int depth = 0; depth < m_mixedDepth; depth++) {
+            String indent = indent(depth + 1);
+            writeLine(indent + "&MIXED");
+            writeLine(indent + "  MIXING_TYPE LINEAR_MIXED");
+            writeLine(indent + "  &LINEAR");
+            writeLine(indent + "    LAMBDA 0.5");
+            writeLine(indent + "  &END LINEAR");
+        }
+        for (int depth = m_mixedDepth - 1; depth >= 0; depth--) {
+            writeLine(indent(depth + 1) + "&END MIXED");
+        }
+
+        // Cubic cell holding the atoms at roughly the density of silicon
+        double cellSize = 2.715 * Math.max(1.0, Math.cbrt(m_atoms));
+        long cellScaled = (long) (cellSize * COORD_SCALE);
+
+        writeLine("  &SUBSYS");
+        writeLine("    &CELL");
+        StringBuilder abc = new StringBuilder("      ABC [angstrom]");
+        for (int i = 0; i < 3; i++) {
+            abc.append(' ');
+            appendCoordinate(abc, cellScaled);
+        }
+        writeLine(abc.toString());
+        writeLine("    &END CELL");
+
+        writeLine("    &COORD");
+        StringBuilder row = new StringBuilder(64);
+        for (int i = 0; i < m_atoms; i++) {
+            row.setLength(0);
+            row.append("       ").append(kindName(i % m_kinds));
+            for (int j = 0; j < 3; j++) {
+                row.append("    ");
+                appendCoordinate(row, (long) (random.nextDouble() * cellScaled));
+            }
+            writeLine(row.toString());
+        }
+        writeLine("    &END COORD");
+
+        for (int kind = 0; kind < m_kinds; kind++) {
+            String element = ELEMENTS[kind % ELEMENTS.length];
+            writeLine("    &KIND " + kindName(kind));
+            writeLine("      BASIS_SET DZVP-GTH-PADE");
+            writeLine("      ELEMENT " + element);
+            writeLine("      POTENTIAL GTH-PADE");
+            writeLine("    &END KIND");
+        }
+        writeLine("  &END SUBSYS");
+        writeLine("&END FORCE_EVAL");
+    }
+
+    /**
+     * Write a line of input, preceded by a comment if one is due.
+     *
+     * @param line the line.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeLine(String line) throws IOException {
+        if (m_commentInterval > 0 && m_lines > 0 && m_lines % m_commentInterval == 0) {
+            m_writer.write("# synthetic comment, line " + m_lines + "\n");
+        }
+        m_writer.write(line);
+        m_writer.write('\n');
+        m_lines++;
+    }
+
+    /**
+     * Gets the name of an atom kind.
+     *
+     * @param kind index of the kind.
+     * @return the kind name.
+     */
+    private static String kindName(int kind) {
+        String element = ELEMENTS[kind % ELEMENTS.length];
+        int copy = kind / ELEMENTS.length;
+        return copy == 0 ? element : element + copy;
+    }
+
+    /**
+     * Gets the indent for a section nesting depth.
+     *
+     * @param depth the depth.
+     * @return the indent.
+     */
+    private static String indent(int depth) {
+        StringBuilder indent = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            indent.append("  ");
+        }
+        return indent.toString();
+    }
+
+    /**
+     * Append a non-negative fixed point coordinate, much faster than
+     * String.format for millions of atoms.
+     *
+     * @param builder the builder to append to.
+     * @param scaled the coordinate multiplied by COORD_SCALE.
+     */
+    private static void appendCoordinate(StringBuilder builder, long scaled) {
+        builder.append(scaled / COORD_SCALE).append('.');
+        String fraction = Long.toString(scaled % COORD_SCALE);
+        for (int i = fraction.length(); i < COORD_DECIMALS; i++) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    /**
+     * Check that a setting is not negative.
+     *
+     * @param name the name of the setting.
+     * @param value the value.
+     * @return the value.
+     */
+    private static int checkNotNegative(String name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Number of " + name + " must not be negative: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Write an input file to standard output, or to the file given by
+     * --output. The options --atoms, --kinds, --mixed-depth, --force-evals,
+     * --comment-interval and --seed set the size and content of the input.
+     *
+     * @param args the command line arguments.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+        SyntheticInputGenerator generator = new SyntheticInputGenerator();
+        String output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                usage("Missing value for " + option);
+            }
+            String value = args[++i];
+            if ("--atoms".equals(option)) {
+                generator.setAtoms(Integer.parseInt(value));
+            } else if ("--kinds".equals(option)) {
+                generator.setKinds(Integer.parseInt(value));
+            } else if ("--mixed-depth".equals(option)) {
+                generator.setMixedDepth(Integer.parseInt(value));
+            } else if ("--force-evals".equals(option)) {
+                generator.setForceEvals(Integer.parseInt(value));
+            } else if ("--comment-interval".equals(option)) {
+                generator.setCommentInterval(Integer.parseInt(value));
+            } else if ("--seed".equals(option)) {
+                generator.setSeed(Long.parseLong(value));
+            } else if ("--output".equals(option)) {
+                output = value;
+            } else {
+                usage("Unknown option " + option);
+            }
+        }
+
+        Charset charset = Charset.forName("UTF-8");
+        Writer writer = new BufferedWriter(output == null
+                ? new OutputStreamWriter(System.out, charset)
+                : new OutputStreamWriter(new FileOutputStream(output), charset), 1 << 16);
+        try {
+            generator.write(writer);
+        } finally {
+            if (output != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Print usage and exit.
+     *
+     * @param message the error message.
+     */
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: SyntheticInputGenerator [--atoms N] [--kinds N] [--mixed-depth N]"
+                + " [--force-evals N] [--comment-interval N] [--seed N] [--output FILE]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end benchmarks transforming synthetic input files of several sizes.
+ *
+ * @author Jeremy Nowell
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class TransformBenchmark {
+
+    /** Size of the input file: small, medium or huge. */
+    @Param({"small", "medium", "huge"})
+    private String m_size;
+
+    /** The processor, shared by all invocations. */
+    private TextInputProcessor m_processor;
+
+    /** Pool for transforming sections in parallel. */
+    private ForkJoinPool m_pool;
+
+    /** The processor transforming sections in parallel, whatever the input size. */
+    private TextInputProcessor m_parallelProcessor;
+
+    /** The processor writing compact rows of default keyword. */
+    private TextInputProcessor m_compactRowsProcessor;
+
+    /** The input file. */
+    private String m_input;
+
+    /** The input file, encoded. */
+    private byte[] m_inputBytes;
+
+    /**
+     * Load the schema, start the pool and generate the input file.
+     *
+     * @throws IOException if the schema cannot be loaded.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        CP2KSection topLevelSection =
+                TextInputProcessor.loadSchema(SchemaCache.getSchemaFileName("cp2k-3.0"));
+        m_processor = new TextInputProcessor(topLevelSection);
+        m_pool = new ForkJoinPool();
+        m_parallelProcessor = new TextInputProcessor(
+                topLevelSection, TextInputProcessor.DEFAULT_MAX_SECTION_DEPTH, m_pool, 0, false);
+        m_compactRowsProcessor = new TextInputProcessor(
+                topLevelSection, TextInputProcessor.DEFAULT_MAX_SECTION_DEPTH, null, true);
+
+        m_input = createGenerator(m_size).generate();
+        m_inputBytes = m_input.getBytes(Charset.defaultCharset());
+    }
+
+    /**
+     * Transform the input from a String to a String.
+     *
+     * @return the XML.
+     * @throws IOException if the transform fails.
+     */
+    @Benchmark
+    public String transformString() throws IOException {
+        return m_processor.processInputFile(m_input);
+    }
+
+    /**
+     * Transform the input from a stream, discarding the XML as it is written.
+     *
+     * @return the number of bytes of XML written.
+     * @throws IOException if the transform fails.
+     */
+    @Benchmark
+    public long transformStream() throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        m_processor.processInputFile(new ByteArrayInputStream(m_inputBytes), output);
+        return output.m_count;
+    }
+
+    /**
+     * Transform the input from a stream, transforming the top level
+     * sections in parallel, discarding the XML as it is written.
+     *
+     * @return the number of bytes of XML written.
+     * @throws IOException if the transform fails.
+     */
+    @Benchmark
+    public long transformStreamParallel() throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        m_parallelProcessor.processInputFile(new ByteArrayInputStream(m_inputBytes), output);
+        return output.m_count;
+    }
+
+    /**
+     * Transform the input from a stream, writing compact rows of default
+     * keyword, discarding the XML as it is written.
+     *
+     * @return the number of bytes of XML written.
+     * @throws IOException if the transform fails.
+     */
+    @Benchmark
+    public long transformStreamCompactRows() throws IOException {
+        CountingOutputStream output = new CountingOutputStream();
+        m_compactRowsProcessor.processInputFile(new ByteArrayInputStream(m_inputBytes), output);
+        return output.m_count;
+    }
+
+    /**
+     * Shut down the pool.
+     */
+    @TearDown
+    public void tearDown() {
+        m_pool.shutdown();
+    }
+
+    /**
+     * Create a generator for an input file of the given size.
+     *
+     * @param size small, medium or huge.
+     * @return the generator.
+     */
+    static SyntheticInputGenerator createGenerator(String size) {
+        if ("small".equals(size)) {
+            return new SyntheticInputGenerator();
+        } else if ("medium".equals(size)) {
+            return new SyntheticInputGenerator()
+                    .setAtoms(10000).setKinds(100).setMixedDepth(1)
+                    .setForceEvals(2).setCommentInterval(100);
+        } else if ("huge".equals(size)) {
+            return new SyntheticInputGenerator()
+                    .setAtoms(1000000).setKinds(1000).setMixedDepth(1)
+                    .setForceEvals(2).setCommentInterval(1000);
+        }
+        throw new IllegalArgumentException("Unknown input size: " + size);
+    }
+
+    /**
+     * Output stream discarding everything written to it, counting the bytes.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        /** Number of bytes written. */
+        private long m_count;
+
+        @Override
+        public void write(int b) {
+            m_count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            m_count += len;
+        }
+    }
+}
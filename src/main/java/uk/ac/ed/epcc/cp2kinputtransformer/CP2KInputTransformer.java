@@ -20,11 +20,15 @@ package uk.ac.ed.epcc.cp2kinputtransformer;
 
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
 
 import javax.ws.rs.ApplicationPath;
 
 /**
- * Main application class.  Sets up MultiPart configuration.
+ * Main application class.  Sets up MultiPart configuration, and starts
+ * loading the bundled templates when the container starts, and stops the
+ * threads of the service when it stops.
  *
  * @author Jeremy Nowell
  */
@@ -35,7 +39,23 @@ public class CP2KInputTransformer extends ResourceConfig {
      * Constructor.
      */
     public CP2KInputTransformer() {
-        super(CP2KInputTransformerRestService.class, MultiPartFeature.class);
+        super(CP2KInputTransformerRestService.class, MultiPartFeature.class,
+                RequestStartFilter.class);
+        register(new ContainerLifecycleListener() {
+            @Override
+            public void onStartup(Container container) {
+                CP2KInputTransformerRestService.start();
+            }
+
+            @Override
+            public void onReload(Container container) {
+            }
+
+            @Override
+            public void onShutdown(Container container) {
+                CP2KInputTransformerRestService.shutdown();
+            }
+        });
     }
 
 }
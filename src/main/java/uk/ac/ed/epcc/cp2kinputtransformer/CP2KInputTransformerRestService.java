@@ -18,23 +18,67 @@
 
 package uk.ac.ed.epcc.cp2kinputtransformer;
 
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataParam;
 
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.BatchTransformer;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.CP2KSection;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.PhaseTimings;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.SchemaCache;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.SchemaFootprint;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.TemplateWarmer;
 import uk.ac.ed.epcc.cp2kinputtransformer.transform.TextInputProcessor;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.TransformTrace;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipInputStream;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.ConnectionCallback;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 
 /**
@@ -51,9 +95,173 @@ public class CP2KInputTransformerRestService {
     private static final Logger s_Log =
             Logger.getLogger(CP2KInputTransformerRestService.class.getName());
 
+    /** System property giving the maximum number of cached schemas. */
+    public static final String SCHEMA_CACHE_SIZE_PROPERTY = "cp2kinputtransformer.schemaCacheSize";
 
     /**
-     * Transform input file.
+     * System property which, if set to false, keeps the schema objects of
+     * loaded templates rather than releasing them.
+     */
+    public static final String LEAN_SCHEMAS_PROPERTY = "cp2kinputtransformer.leanSchemas";
+
+    /** Schemas shared by all requests. */
+    private static final SchemaCache s_SchemaCache = new SchemaCache(
+            Integer.getInteger(SCHEMA_CACHE_SIZE_PROPERTY, SchemaCache.DEFAULT_MAX_ENTRIES),
+            !"false".equalsIgnoreCase(System.getProperty(LEAN_SCHEMAS_PROPERTY)));
+
+    /** System property giving the maximum depth of nested input sections. */
+    public static final String MAX_SECTION_DEPTH_PROPERTY = "cp2kinputtransformer.maxSectionDepth";
+
+    /** Maximum depth of nested input sections. */
+    private static final int s_MaxSectionDepth = Integer.getInteger(
+            MAX_SECTION_DEPTH_PROPERTY, TextInputProcessor.DEFAULT_MAX_SECTION_DEPTH);
+
+    /** System property giving the number of threads transforming batches. */
+    public static final String BATCH_THREADS_PROPERTY = "cp2kinputtransformer.batchThreads";
+
+    /** Number of threads transforming batches. */
+    private static final int s_BatchThreads = Integer.getInteger(
+            BATCH_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+
+    /** System property giving the maximum size in bytes of an input file in a ZIP archive. */
+    public static final String MAX_BATCH_INPUT_BYTES_PROPERTY = "cp2kinputtransformer.maxBatchInputBytes";
+
+    /** Maximum size in bytes of an input file in a ZIP archive. */
+    private static final long s_MaxBatchInputBytes = Long.getLong(
+            MAX_BATCH_INPUT_BYTES_PROPERTY, BatchTransformer.DEFAULT_MAX_INPUT_BYTES);
+
+    /** System property giving the maximum number of input files in a ZIP archive. */
+    public static final String MAX_BATCH_INPUTS_PROPERTY = "cp2kinputtransformer.maxBatchInputs";
+
+    /** Maximum number of input files in a ZIP archive. */
+    private static final int s_MaxBatchInputs = Integer.getInteger(
+            MAX_BATCH_INPUTS_PROPERTY, BatchTransformer.DEFAULT_MAX_INPUTS);
+
+    /** Threads transforming batches, shared by all batch requests. */
+    private static volatile ExecutorService s_BatchExecutor = createBatchExecutor();
+
+    /**
+     * System property giving the number of threads transforming the top
+     * level sections of large single input files in parallel. Zero, the
+     * default, transforms each input file on a single thread.
+     */
+    public static final String PARALLEL_THREADS_PROPERTY = "cp2kinputtransformer.parallelThreads";
+
+    /** Threads transforming sections of single input files, or null if disabled. */
+    private static volatile ForkJoinPool s_ParallelPool = createParallelPool();
+
+    /** System property giving the number of threads transforming single input files. */
+    public static final String TRANSFORM_THREADS_PROPERTY = "cp2kinputtransformer.transformThreads";
+
+    /** System property giving the maximum number of transforms waiting for a thread. */
+    public static final String TRANSFORM_QUEUE_SIZE_PROPERTY = "cp2kinputtransformer.transformQueueSize";
+
+    /** System property giving the transform timeout in seconds. */
+    public static final String TRANSFORM_TIMEOUT_PROPERTY = "cp2kinputtransformer.transformTimeout";
+
+    /** System property giving the Retry-After time in seconds sent when busy. */
+    public static final String RETRY_AFTER_PROPERTY = "cp2kinputtransformer.retryAfter";
+
+    /** Threads transforming single input files, shared by all requests. */
+    private static volatile TransformExecutor s_TransformExecutor = createTransformExecutor();
+
+    /**
+     * System property which, if set to false, loads templates on first use
+     * rather than when the service starts.
+     */
+    public static final String WARM_UP_PROPERTY = "cp2kinputtransformer.warmUp";
+
+    /** System property giving the number of threads loading templates when the service starts. */
+    public static final String WARM_UP_THREADS_PROPERTY = "cp2kinputtransformer.warmUpThreads";
+
+    /** Loads the bundled templates when the service starts. */
+    private static volatile TemplateWarmer s_TemplateWarmer = createTemplateWarmer();
+
+    /**
+     * System property which, if set to true, times the phases of each
+     * transform and returns the times in a Server-Timing header. The XML
+     * is then buffered rather than streamed.
+     */
+    public static final String SERVER_TIMING_PROPERTY = "cp2kinputtransformer.serverTiming";
+
+    /** Name of the header giving the times of the phases of a request. */
+    public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    /** Whether to time the phases of each transform. */
+    private static volatile boolean s_ServerTiming = Boolean.getBoolean(SERVER_TIMING_PROPERTY);
+
+    /**
+     * System property which, if set to true, allows a client to ask for a
+     * trace of a single transform, see {@link #TRACE_HEADER}.
+     */
+    public static final String REQUEST_TRACE_PROPERTY = "cp2kinputtransformer.requestTrace";
+
+    /**
+     * Header which, if set to true, asks for a trace of the transform to be
+     * logged. A query parameter 'trace=true' may be used instead. The response
+     * gives the trace ID, which prefixes each message of the trace.
+     */
+    public static final String TRACE_HEADER = "X-CP2K-Trace";
+
+    /** Header of the response giving the trace ID of a traced transform. */
+    public static final String TRACE_ID_HEADER = "X-CP2K-Trace-Id";
+
+    /** Logger for traces of single transforms. */
+    private static final Logger s_TraceLog =
+            Logger.getLogger(CP2KInputTransformerRestService.class.getPackage().getName() + ".trace");
+
+    /** Whether clients may ask for a trace of a single transform. */
+    private static volatile boolean s_RequestTrace = Boolean.getBoolean(REQUEST_TRACE_PROPERTY);
+
+    /** Source of trace IDs. */
+    private static final AtomicLong s_TraceIds = new AtomicLong();
+
+    /**
+     * System property giving the maximum total size in bytes of the cached
+     * transform results. Zero disables the cache.
+     */
+    public static final String RESULT_CACHE_BYTES_PROPERTY = "cp2kinputtransformer.resultCacheBytes";
+
+    /**
+     * System property giving the maximum size in bytes of a single cached
+     * transform result. Input files larger than this are streamed without
+     * being cached, while smaller ones are read fully before transforming.
+     */
+    public static final String RESULT_CACHE_ENTRY_BYTES_PROPERTY = "cp2kinputtransformer.resultCacheEntryBytes";
+
+    /** Results of transforms shared by all requests, or null if disabled. */
+    private static final ResultCache s_ResultCache = createResultCache(
+            Long.getLong(RESULT_CACHE_BYTES_PROPERTY, ResultCache.DEFAULT_MAX_BYTES),
+            Integer.getInteger(RESULT_CACHE_ENTRY_BYTES_PROPERTY, ResultCache.DEFAULT_MAX_ENTRY_BYTES));
+
+    /**
+     * System property giving the directory of the transform results cached
+     * on disk. If not set, results are not cached on disk.
+     */
+    public static final String RESULT_CACHE_DIR_PROPERTY = "cp2kinputtransformer.resultCacheDir";
+
+    /** System property giving the maximum total size in bytes of the results cached on disk. */
+    public static final String RESULT_CACHE_DISK_BYTES_PROPERTY = "cp2kinputtransformer.resultCacheDiskBytes";
+
+    /** Results of transforms cached on disk, or null if disabled. */
+    private static volatile DiskResultCache s_DiskResultCache = createDiskResultCache();
+
+    /**
+     * Header of the response saying how the result was found: 'hit' if
+     * cached in memory, 'disk' if cached on disk, 'coalesced' if transformed
+     * by a concurrent request for the same input, else 'miss'.
+     */
+    public static final String CACHE_HEADER = "X-CP2K-Cache";
+
+    /** Request counts and latencies, shared by all requests. */
+    private static final ServiceMetrics s_Metrics = new ServiceMetrics();
+
+    /** Media type of ZIP archives. */
+    public static final String APPLICATION_ZIP = "application/zip";
+
+    /**
+     * Transform input file. The transform runs on a dedicated pool of
+     * threads, so the request is suspended until a thread is free.
      *
      * @param templateId ID of cp2k transform to use. This will
      *                   be transformed into a schema filename
@@ -61,30 +269,705 @@ public class CP2KInputTransformerRestService {
      *                   resources/schema directory.
      * @param fileDisposition file information.
      * @param fileInputStream the incoming data to transform.
-     * @return the web-service response.
+     * @param traceHeader header asking for the transform to be traced.
+     * @param traceParameter query parameter asking for the transform to be traced.
+     * @param ifNoneMatch entity tags of results the client already holds.
+     * @param requestContext the request.
+     * @param asyncResponse the suspended response.
      */
     @POST
     @Path("{templateId}/transform")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces(MediaType.TEXT_XML)
-    public Response transformInputFile(
-            @PathParam("templateId") String templateId,
+    public void transformInputFile(
+            @PathParam("templateId") final String templateId,
             @FormDataParam("inputFile") FormDataContentDisposition fileDisposition,
-            @FormDataParam("inputFile") InputStream fileInputStream) {
+            @FormDataParam("inputFile") final InputStream fileInputStream,
+            @HeaderParam(TRACE_HEADER) String traceHeader,
+            @QueryParam("trace") String traceParameter,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) final String ifNoneMatch,
+            @Context ContainerRequestContext requestContext,
+            @Suspended final AsyncResponse asyncResponse) {
+
+        final long start = System.nanoTime();
+        final PhaseTimings timings = s_ServerTiming ? new PhaseTimings() : PhaseTimings.DISABLED;
+        timings.add(PhaseTimings.Phase.UPLOAD, start - RequestStartFilter.getStart(requestContext, start));
+        final String traceId = s_RequestTrace
+                && ("true".equalsIgnoreCase(traceHeader) || "true".equalsIgnoreCase(traceParameter))
+                ? Long.toString(s_TraceIds.incrementAndGet()) : null;
+        // Release requests waiting for this one's result if it is never written.
+        final LeaderRelease release = new LeaderRelease();
+        asyncResponse.register(release);
+        s_TransformExecutor.submit(asyncResponse, new Callable<Response>() {
+            @Override
+            public Response call() {
+                timings.add(PhaseTimings.Phase.QUEUE, System.nanoTime() - start);
+                TransformTrace trace = null;
+                if (traceId != null) {
+                    trace = new TransformTrace(s_TraceLog, Level.INFO, "[trace " + traceId + "] ");
+                    trace.log("Transform with template " + templateId);
+                }
+                Response response =
+                        transform(templateId, fileInputStream, ifNoneMatch, start, timings, trace, release);
+                if (traceId == null) {
+                    return response;
+                }
+                return Response.fromResponse(response).header(TRACE_ID_HEADER, traceId).build();
+            }
+        });
+    }
 
-        // Transform input file to XML
-        String cp2kInputXml = "";
-        String cp2kSchemaFile = "/" + templateId + ".xsd";
+    /**
+     * Transform input file, streaming the XML as it is produced. If timings
+     * are enabled the XML is instead buffered, so that the timings can be
+     * sent in a Server-Timing header before it.
+     *
+     * <p>If the result cache is enabled, an input file small enough to cache
+     * is read first and the result of transforming it is tagged with its
+     * cache key. A cached result is sent without transforming the input
+     * again, or if the client already holds it, as given by If-None-Match,
+     * the response is 304 (Not Modified). Unlike a strict reading of HTTP
+     * for POST, the transform is treated as a safe method for this. A
+     * request for the same input as a transform in progress waits for its
+     * result rather than transforming the input again. Traced transforms
+     * are never served from the cache.
+     *
+     * @param templateId ID of cp2k transform to use.
+     * @param fileInputStream the incoming data to transform.
+     * @param ifNoneMatch entity tags of results the client already holds, or null.
+     * @param start time the request was received, from {@link System#nanoTime()}.
+     * @param timings the timer for the phases of the request.
+     * @param trace the trace of the transform, or null if not tracing.
+     * @param release releases requests waiting for the result if the response is not written.
+     * @return the web-service response.
+     */
+    private Response transform(
+            final String templateId,
+            InputStream fileInputStream,
+            String ifNoneMatch,
+            final long start,
+            final PhaseTimings timings,
+            final TransformTrace trace,
+            LeaderRelease release) {
+
+        // Get the schema before streaming starts, so failures give an error response.
+        final CP2KSection topLevelSection;
+        timings.start(PhaseTimings.Phase.SCHEMA);
         try {
-            TextInputProcessor tip = new TextInputProcessor(cp2kSchemaFile);
-            cp2kInputXml = tip.processInputFile(fileInputStream);
+            topLevelSection = s_SchemaCache.getTopLevelSection(templateId);
         } catch (IOException e) {
             String msg = "Error processing input file: " + e.getMessage();
             s_Log.warning(msg);
+            s_Metrics.recordTransform(
+                    ServiceMetrics.UNKNOWN_TEMPLATE, false, System.nanoTime() - start, 0, 0, 0);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(msg).build();
         }
-        // Return success response
-        return Response.status(Response.Status.OK).entity(cp2kInputXml).build();
+        timings.stop();
+
+        // Read an input file small enough to cache, to find its cache key.
+        final String resultKey;
+        final InputStream input;
+        long checksum = 0;
+        ResultCache.Flight flight = null;
+        if (s_ResultCache == null) {
+            resultKey = null;
+            input = fileInputStream;
+        } else {
+            int limit = s_ResultCache.getMaxEntryBytes();
+            byte[] prefix;
+            timings.start(PhaseTimings.Phase.UPLOAD);
+            try {
+                prefix = readPrefix(fileInputStream, limit + 1);
+            } catch (IOException e) {
+                String msg = "Error processing input file: " + e.getMessage();
+                s_Log.warning(msg);
+                s_Metrics.recordTransform(templateId, false, System.nanoTime() - start, 0, 0, 0);
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(msg).build();
+            }
+            timings.stop();
+            if (prefix.length > limit) {
+                resultKey = null;
+                input = new SequenceInputStream(new ByteArrayInputStream(prefix), fileInputStream);
+            } else {
+                try {
+                    checksum = s_SchemaCache.getChecksum(templateId, topLevelSection);
+                } catch (IOException e) {
+                    String msg = "Error processing input file: " + e.getMessage();
+                    s_Log.warning(msg);
+                    s_Metrics.recordTransform(templateId, false, System.nanoTime() - start, 0, 0, 0);
+                    return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(msg).build();
+                }
+                resultKey = ResultCache.key(templateId, checksum, prefix, prefix.length);
+                input = new ByteArrayInputStream(prefix);
+
+                // A trace shows how the input is processed, so is never served from the cache.
+                if (trace == null) {
+                    Response cached = getCachedResult(
+                            templateId, checksum, resultKey, ifNoneMatch, prefix, start, timings);
+                    if (cached != null) {
+                        return cached;
+                    }
+
+                    // Wait for the same input being transformed by another request.
+                    flight = s_ResultCache.join(resultKey, s_TransformExecutor.getTimeoutMillis());
+                    if (!flight.isLeader()) {
+                        ResultCache.Result result;
+                        timings.start(PhaseTimings.Phase.QUEUE);
+                        try {
+                            result = flight.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                    .entity("Transform cancelled").build();
+                        }
+                        timings.stop();
+                        if (result != null) {
+                            return getResult(templateId, resultKey, result, "coalesced",
+                                    prefix.length, start, timings);
+                        }
+
+                        // The other request failed, or its result was too large to share.
+                        flight = null;
+                    } else if (!release.lead(flight)) {
+                        flight.finish(null, 0);
+                        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                .entity("Transform cancelled").build();
+                    }
+                }
+            }
+        }
+        final long schemaChecksum = checksum;
+        final ResultCache.Flight leader = flight;
+
+        if (!timings.isEnabled()) {
+            // Transform input file to XML, streaming it to the client as it is produced.
+            StreamingOutput cp2kInputXml = new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    if (resultKey == null) {
+                        writeXml(templateId, topLevelSection, input, output, start, timings, trace);
+                        return;
+                    }
+                    CapturingOutputStream xml =
+                            new CapturingOutputStream(output, s_ResultCache.getMaxEntryBytes());
+                    byte[] copy = null;
+                    long lines = 0;
+                    try {
+                        lines = writeXml(templateId, topLevelSection, input, xml, start, timings, trace);
+                        copy = xml.getCopy();
+                    } finally {
+                        cacheResult(templateId, schemaChecksum, resultKey, leader, copy, lines);
+                    }
+                }
+            };
+
+            // Return success response
+            return tagResult(Response.status(Response.Status.OK), resultKey, "miss")
+                    .entity(cp2kInputXml).build();
+        }
+
+        ByteArrayOutputStream cp2kInputXml = new ByteArrayOutputStream();
+        byte[] xml = null;
+        long lines = 0;
+        try {
+            lines = writeXml(templateId, topLevelSection, input, cp2kInputXml, start, timings, trace);
+            xml = cp2kInputXml.toByteArray();
+        } catch (IOException e) {
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity("Error processing input file: " + e.getMessage()).build();
+        } finally {
+            if (resultKey != null) {
+                cacheResult(templateId, schemaChecksum, resultKey, leader, xml, lines);
+            }
+        }
+        s_Metrics.recordPhases(templateId, timings);
+        return tagResult(Response.status(Response.Status.OK), resultKey, "miss")
+                .header(SERVER_TIMING_HEADER, timings.toServerTiming())
+                .entity(xml).build();
+    }
+
+    /**
+     * Gets the response for an input file whose result is cached in
+     * memory or on disk. A result found on disk is added to the memory cache.
+     *
+     * @param templateId ID of cp2k transform to use.
+     * @param checksum checksum of the template.
+     * @param resultKey the cache key of the result.
+     * @param ifNoneMatch entity tags of results the client already holds, or null.
+     * @param input the input file.
+     * @param start time the request was received, from {@link System#nanoTime()}.
+     * @param timings the timer for the phases of the request.
+     * @return the response, or null if the result is not cached.
+     */
+    private static Response getCachedResult(
+            String templateId,
+            long checksum,
+            String resultKey,
+            String ifNoneMatch,
+            byte[] input,
+            long start,
+            PhaseTimings timings) {
+
+        Response.ResponseBuilder builder;
+        if (matchesEntityTag(ifNoneMatch, resultKey) && (s_ResultCache.contains(resultKey)
+                || (s_DiskResultCache != null && s_DiskResultCache.contains(resultKey)))) {
+            s_ResultCache.recordNotModified();
+            s_Metrics.recordTransform(templateId, true, System.nanoTime() - start, input.length, 0, 0);
+            builder = Response.notModified(new EntityTag(resultKey));
+        } else {
+            ResultCache.Result result = s_ResultCache.get(resultKey);
+            if (result != null) {
+                return getResult(templateId, resultKey, result, "hit", input.length, start, timings);
+            }
+            if (s_DiskResultCache == null) {
+                return null;
+            }
+            byte[] xml = s_DiskResultCache.get(templateId, checksum, resultKey);
+            if (xml == null) {
+                return null;
+            }
+            long lines = countLines(input);
+            s_ResultCache.put(resultKey, xml, lines);
+            return getResult(templateId, resultKey, new ResultCache.Result(xml, lines), "disk",
+                    input.length, start, timings);
+        }
+
+        if (timings.isEnabled()) {
+            s_Metrics.recordPhases(templateId, timings);
+            builder.header(SERVER_TIMING_HEADER, timings.toServerTiming());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the response for an input file whose result was transformed
+     * by an earlier or concurrent request.
+     *
+     * @param templateId ID of cp2k transform to use.
+     * @param resultKey the cache key of the result.
+     * @param result the result.
+     * @param cacheStatus how the result was found, 'hit', 'disk' or 'coalesced'.
+     * @param inputLength length of the input file.
+     * @param start time the request was received, from {@link System#nanoTime()}.
+     * @param timings the timer for the phases of the request.
+     * @return the response.
+     */
+    private static Response getResult(
+            String templateId,
+            String resultKey,
+            ResultCache.Result result,
+            String cacheStatus,
+            int inputLength,
+            long start,
+            PhaseTimings timings) {
+
+        s_Metrics.recordTransform(templateId, true, System.nanoTime() - start,
+                inputLength, result.getXml().length, result.getLines());
+        Response.ResponseBuilder builder = tagResult(
+                Response.status(Response.Status.OK), resultKey, cacheStatus).entity(result.getXml());
+        if (timings.isEnabled()) {
+            s_Metrics.recordPhases(templateId, timings);
+            builder.header(SERVER_TIMING_HEADER, timings.toServerTiming());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Cache the result of a transform in memory and on disk, finishing its
+     * flight if the request led one so that requests waiting for it are
+     * released.
+     *
+     * @param templateId ID of cp2k transform used.
+     * @param checksum checksum of the template.
+     * @param resultKey the cache key of the result.
+     * @param flight the flight led by the request, or null if none.
+     * @param xml the XML of the result, or null if the transform failed or
+     *            the result was too large to keep.
+     * @param lines the number of input lines processed.
+     */
+    private static void cacheResult(String templateId, long checksum,
+            String resultKey, ResultCache.Flight flight, byte[] xml, long lines) {
+        if (flight != null) {
+            flight.finish(xml, lines);
+        } else if (xml != null) {
+            s_ResultCache.put(resultKey, xml, lines);
+        }
+        if (xml != null && s_DiskResultCache != null) {
+            s_DiskResultCache.put(templateId, checksum, resultKey, xml);
+        }
+    }
+
+    /**
+     * Releases the requests waiting for the result of a leading request if
+     * its response completes, or its client disconnects, without the result
+     * being written: when the transform times out, is cancelled or fails.
+     * Otherwise they would wait until the transform is taken to be abandoned.
+     */
+    static final class LeaderRelease implements CompletionCallback, ConnectionCallback {
+
+        /** The flight led by the request, or null if none or released. */
+        private ResultCache.Flight m_flight;
+
+        /** Whether the request has completed. */
+        private boolean m_completed;
+
+        /**
+         * Record the flight led by the request.
+         *
+         * @param flight the flight.
+         * @return true, if recorded, or false if the request has already
+         *         completed, so the caller must finish the flight.
+         */
+        synchronized boolean lead(ResultCache.Flight flight) {
+            if (m_completed) {
+                return false;
+            }
+            m_flight = flight;
+            return true;
+        }
+
+        @Override
+        public void onComplete(Throwable throwable) {
+            release();
+        }
+
+        @Override
+        public void onDisconnect(AsyncResponse disconnected) {
+            release();
+        }
+
+        /**
+         * Finish the flight without a result, unless already finished.
+         */
+        private void release() {
+            ResultCache.Flight flight;
+            synchronized (this) {
+                m_completed = true;
+                flight = m_flight;
+                m_flight = null;
+            }
+            if (flight != null) {
+                flight.finish(null, 0);
+            }
+        }
+    }
+
+    /**
+     * Count the lines of an input file, as read by the transform.
+     *
+     * @param input the input file.
+     * @return the number of lines.
+     */
+    private static long countLines(byte[] input) {
+        long lines = 0;
+        for (byte b : input) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        if (input.length > 0 && input[input.length - 1] != '\n') {
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Tag a response with the cache key of its result.
+     *
+     * @param builder the response.
+     * @param resultKey the cache key of the result, or null if not cacheable.
+     * @param cacheStatus how the result was found, 'hit', 'disk', 'coalesced' or 'miss'.
+     * @return the response.
+     */
+    private static Response.ResponseBuilder tagResult(
+            Response.ResponseBuilder builder, String resultKey, String cacheStatus) {
+        if (resultKey == null) {
+            return builder;
+        }
+        return builder.tag(new EntityTag(resultKey)).header(CACHE_HEADER, cacheStatus);
+    }
+
+    /**
+     * Checks whether an If-None-Match header matches an entity tag. Weak
+     * comparison is used, so a tag matches with or without the weak prefix.
+     *
+     * @param ifNoneMatch the header, a list of entity tags or '*', or null.
+     * @param tag the entity tag, without quotes.
+     * @return true, if the header matches the tag.
+     */
+    static boolean matchesEntityTag(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || candidate.equals("\"" + tag + "\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the start of a stream.
+     *
+     * @param inputStream the stream.
+     * @param limit the maximum number of bytes to read.
+     * @return the bytes read, fewer than the limit only at the end of the stream.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static byte[] readPrefix(InputStream inputStream, int limit) throws IOException {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (prefix.size() < limit) {
+            int count = inputStream.read(buffer, 0, Math.min(buffer.length, limit - prefix.size()));
+            if (count == -1) {
+                break;
+            }
+            prefix.write(buffer, 0, count);
+        }
+        return prefix.toByteArray();
+    }
+
+    /**
+     * Create the pool transforming sections of single input files in parallel.
+     *
+     * @return the pool, or null if the number of threads is not positive.
+     */
+    private static ForkJoinPool createParallelPool() {
+        int threads = Integer.getInteger(PARALLEL_THREADS_PROPERTY, 0);
+        return threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Create the threads transforming batches.
+     *
+     * @return the batch executor.
+     */
+    private static ExecutorService createBatchExecutor() {
+        return Executors.newFixedThreadPool(s_BatchThreads, new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cp2k-batch-" + m_count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Create the threads transforming single input files.
+     *
+     * @return the transform executor.
+     */
+    private static TransformExecutor createTransformExecutor() {
+        return new TransformExecutor(
+                Integer.getInteger(TRANSFORM_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(TRANSFORM_QUEUE_SIZE_PROPERTY, TransformExecutor.DEFAULT_QUEUE_SIZE),
+                1000L * Long.getLong(TRANSFORM_TIMEOUT_PROPERTY, TransformExecutor.DEFAULT_TIMEOUT_SECONDS),
+                Integer.getInteger(RETRY_AFTER_PROPERTY, TransformExecutor.DEFAULT_RETRY_AFTER_SECONDS));
+    }
+
+    /**
+     * Create the result cache.
+     *
+     * @param maxBytes the maximum total size of the cached results.
+     * @param maxEntryBytes the maximum size of a single cached result.
+     * @return the cache, or null if the size is not positive.
+     */
+    private static ResultCache createResultCache(long maxBytes, int maxEntryBytes) {
+        return maxBytes > 0 ? new ResultCache(maxBytes, maxEntryBytes) : null;
+    }
+
+    /**
+     * Create the disk result cache, indexing any results already in its
+     * directory.
+     *
+     * @return the cache, or null if no directory is given, the directory
+     *         cannot be used or the in-memory result cache is disabled.
+     */
+    private static DiskResultCache createDiskResultCache() {
+        String directory = System.getProperty(RESULT_CACHE_DIR_PROPERTY);
+        if (directory == null || directory.isEmpty() || s_ResultCache == null) {
+            return null;
+        }
+        try {
+            return new DiskResultCache(new File(directory),
+                    Long.getLong(RESULT_CACHE_DISK_BYTES_PROPERTY, DiskResultCache.DEFAULT_MAX_BYTES));
+        } catch (IOException e) {
+            s_Log.warning("Unable to use result cache directory, results are not cached on disk: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Transform input file to XML, recording metrics.
+     *
+     * @param templateId ID of cp2k transform to use.
+     * @param topLevelSection the top level section of the template.
+     * @param fileInputStream the incoming data to transform.
+     * @param output the stream to write the XML to.
+     * @param start time the request was received, from {@link System#nanoTime()}.
+     * @param timings the timer for the phases of the request.
+     * @param trace the trace of the transform, or null if not tracing.
+     * @return the number of input lines processed.
+     * @throws IOException if the input cannot be transformed.
+     */
+    private static long writeXml(
+            String templateId,
+            CP2KSection topLevelSection,
+            InputStream fileInputStream,
+            OutputStream output,
+            long start,
+            PhaseTimings timings,
+            TransformTrace trace) throws IOException {
+        CountingInputStream input = new CountingInputStream(fileInputStream);
+        CountingOutputStream xml = new CountingOutputStream(output);
+        boolean ok = false;
+        long lines = 0;
+        try {
+            TextInputProcessor tip =
+                    new TextInputProcessor(topLevelSection, s_MaxSectionDepth, s_ParallelPool);
+            lines = tip.processInputFile(input, xml, timings, trace);
+            ok = true;
+        } catch (IOException e) {
+            s_Log.warning("Error processing input file: " + e.getMessage());
+            if (trace != null) {
+                trace.log("Failed: " + e.getMessage());
+            }
+            throw e;
+        } finally {
+            s_Metrics.recordTransform(templateId, ok, System.nanoTime() - start,
+                    input.getCount(), xml.getCount(), lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Transform a batch of input files sent as multipart form data, each
+     * with the key 'inputFile'.
+     *
+     * @param templateId ID of cp2k transform to use. This will
+     *                   be transformed into a schema filename
+     *                   'ID.xsd'. This file MUST exist in the
+     *                   resources/schema directory.
+     * @param parts the input files.
+     * @return the web-service response, a ZIP archive of the XML files
+     *         with a manifest giving the status of each input file.
+     */
+    @POST
+    @Path("{templateId}/transform/batch")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(APPLICATION_ZIP)
+    public Response transformInputFiles(
+            @PathParam("templateId") String templateId,
+            @FormDataParam("inputFile") final List<FormDataBodyPart> parts) {
+
+        if (parts == null || parts.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("No input files attached with the key 'inputFile'").build();
+        }
+
+        final Iterator<FormDataBodyPart> partIterator = parts.iterator();
+        return transformBatch(templateId, new BatchTransformer.Inputs() {
+            @Override
+            public BatchTransformer.Input next() {
+                if (!partIterator.hasNext()) {
+                    return null;
+                }
+                final FormDataBodyPart part = partIterator.next();
+                String fileName = part.getContentDisposition().getFileName();
+                final String name = fileName == null ? part.getName() : fileName;
+                return new BatchTransformer.Input() {
+                    @Override
+                    public String getName() {
+                        return name;
+                    }
+
+                    @Override
+                    public InputStream getInputStream() {
+                        return part.getValueAs(InputStream.class);
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Transform a batch of input files sent as a ZIP archive.
+     *
+     * @param templateId ID of cp2k transform to use. This will
+     *                   be transformed into a schema filename
+     *                   'ID.xsd'. This file MUST exist in the
+     *                   resources/schema directory.
+     * @param zipInputStream the ZIP archive of input files.
+     * @return the web-service response, a ZIP archive of the XML files
+     *         with a manifest giving the status of each input file.
+     */
+    @POST
+    @Path("{templateId}/transform/batch")
+    @Consumes(APPLICATION_ZIP)
+    @Produces(APPLICATION_ZIP)
+    public Response transformInputArchive(
+            @PathParam("templateId") String templateId,
+            InputStream zipInputStream) {
+
+        return transformBatch(templateId, new BatchTransformer.ZipInputs(
+                new ZipInputStream(zipInputStream), s_MaxBatchInputBytes, s_MaxBatchInputs));
+    }
+
+    /**
+     * Transform a batch of input files, streaming a ZIP archive of the
+     * results to the client.
+     *
+     * @param templateId ID of cp2k transform to use.
+     * @param inputs the input files.
+     * @return the web-service response.
+     */
+    private Response transformBatch(
+            final String templateId, final BatchTransformer.Inputs inputs) {
+
+        // Get the schema before streaming starts, so failures give an error response.
+        final CP2KSection topLevelSection;
+        try {
+            topLevelSection = s_SchemaCache.getTopLevelSection(templateId);
+        } catch (IOException e) {
+            String msg = "Error processing input files: " + e.getMessage();
+            s_Log.warning(msg);
+            s_Metrics.recordBatch(ServiceMetrics.UNKNOWN_TEMPLATE, 0, 0);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(msg).build();
+        }
+
+        StreamingOutput archive = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                try {
+                    TextInputProcessor tip = new TextInputProcessor(topLevelSection, s_MaxSectionDepth);
+                    BatchTransformer batch =
+                            new BatchTransformer(tip, s_BatchExecutor, 2 * s_BatchThreads);
+                    List<BatchTransformer.Result> results = batch.transform(inputs, output);
+                    s_Log.fine("Transformed batch of " + results.size() + " input files");
+                    int filesOk = 0;
+                    for (BatchTransformer.Result result : results) {
+                        if (result.isOk()) {
+                            filesOk++;
+                        }
+                    }
+                    s_Metrics.recordBatch(templateId, filesOk, results.size() - filesOk);
+                } catch (IOException e) {
+                    s_Log.warning("Error processing input files: " + e.getMessage());
+                    throw e;
+                }
+            }
+        };
+
+        return Response.status(Response.Status.OK).entity(archive).build();
     }
 
     /**
@@ -101,4 +984,262 @@ public class CP2KInputTransformerRestService {
         // Return success
         return Response.status(Response.Status.OK).entity(result).build();
     }
+
+    /**
+     * Reports whether the service is ready, having loaded the bundled
+     * templates if warm-up is enabled.
+     *
+     * @return the response, status 503 (Service Unavailable) until ready.
+     */
+    @GET
+    @Path("/ready")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response readyRestService() {
+        if (!s_TemplateWarmer.isReady()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", Integer.getInteger(
+                            RETRY_AFTER_PROPERTY, TransformExecutor.DEFAULT_RETRY_AFTER_SECONDS))
+                    .entity("Loading templates, " + s_TemplateWarmer.getRemaining() + " remaining")
+                    .build();
+        }
+        return Response.status(Response.Status.OK).entity("Ready").build();
+    }
+
+    /**
+     * Reports the health of the service: whether it is ready, and the
+     * templates bundled or requested, with whether each is loaded, the
+     * time taken to load it and its estimated memory footprint.
+     *
+     * @return the response, an XML document.
+     */
+    @GET
+    @Path("/health")
+    @Produces(MediaType.TEXT_XML)
+    public Response healthRestService() {
+        Map<String, SchemaCache.TemplateStatistics> templates =
+                new TreeMap<String, SchemaCache.TemplateStatistics>();
+        try {
+            for (String templateId : SchemaCache.getBundledTemplateIds()) {
+                templates.put(templateId, null);
+            }
+        } catch (IOException e) {
+            s_Log.warning("Unable to read bundled templates: " + e.getMessage());
+        }
+        templates.putAll(s_SchemaCache.getStatistics());
+
+        StringWriter health = new StringWriter();
+        try {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(health);
+            writer.writeStartDocument();
+            writer.writeStartElement("health");
+            writer.writeAttribute("ready", Boolean.toString(s_TemplateWarmer.isReady()));
+            for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : templates.entrySet()) {
+                writer.writeEmptyElement("template");
+                writer.writeAttribute("id", entry.getKey());
+                writer.writeAttribute("loaded", Boolean.toString(s_SchemaCache.contains(entry.getKey())));
+                SchemaCache.TemplateStatistics stats = entry.getValue();
+                if (stats == null) {
+                    continue;
+                }
+                writer.writeAttribute("loads", Long.toString(stats.getLoads()));
+                writer.writeAttribute("loadFailures", Long.toString(stats.getLoadFailures()));
+                SchemaFootprint footprint = stats.getFootprint();
+                if (footprint != null) {
+                    writer.writeAttribute("loadTimeMillis",
+                            Long.toString(stats.getLastLoadTimeNanos() / 1000000));
+                    writer.writeAttribute("sections", Integer.toString(footprint.getSections()));
+                    writer.writeAttribute("keyWords", Integer.toString(footprint.getKeyWords()));
+                    writer.writeAttribute("estimatedBytes", Long.toString(footprint.getEstimatedBytes()));
+                    writer.writeAttribute("retainsSchema", Boolean.toString(footprint.retainsSchema()));
+                }
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            String msg = "Error reporting health: " + e.getMessage();
+            s_Log.warning(msg);
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(msg).build();
+        }
+        return Response.status(Response.Status.OK).entity(health.toString()).build();
+    }
+
+    /**
+     * Reports metrics of transforms, the transform queue and the schema
+     * cache in the Prometheus text format.
+     *
+     * @return the response.
+     */
+    @GET
+    @Path("/metrics")
+    @Produces(ServiceMetrics.PROMETHEUS_MEDIA_TYPE)
+    public Response metricsRestService() {
+        StreamingOutput metrics = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Writer writer = new OutputStreamWriter(output, "UTF-8");
+                s_Metrics.write(writer, s_TransformExecutor, s_SchemaCache, s_ResultCache, s_DiskResultCache);
+            }
+        };
+        return Response.status(Response.Status.OK).entity(metrics).build();
+    }
+
+    /**
+     * Start the service, replacing any threads stopped by an earlier
+     * {@link #shutdown()} in the same class loader, as when the container is
+     * reloaded. Called when the service is started.
+     */
+    static synchronized void start() {
+        if (s_TransformExecutor.isShutdown()) {
+            s_TransformExecutor = createTransformExecutor();
+        }
+        if (s_BatchExecutor.isShutdown()) {
+            s_BatchExecutor = createBatchExecutor();
+        }
+        if (s_ParallelPool != null && s_ParallelPool.isShutdown()) {
+            s_ParallelPool = createParallelPool();
+        }
+        if (s_DiskResultCache != null && s_DiskResultCache.isShutdown()) {
+            s_DiskResultCache = createDiskResultCache();
+        }
+        if (s_TemplateWarmer.isShutdown()) {
+            // Templates still cached are not loaded again.
+            s_TemplateWarmer = createTemplateWarmer();
+        }
+        startWarmUp();
+    }
+
+    /**
+     * Create the warmer loading the bundled templates.
+     *
+     * @return the template warmer.
+     */
+    private static TemplateWarmer createTemplateWarmer() {
+        return new TemplateWarmer(s_SchemaCache,
+                Integer.getInteger(WARM_UP_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Start loading the bundled templates in the background, unless
+     * warm-up is disabled. Only the first call for each warmer has any
+     * effect.
+     */
+    private static void startWarmUp() {
+        if ("false".equalsIgnoreCase(System.getProperty(WARM_UP_PROPERTY))) {
+            s_Log.info("Template warm-up disabled, templates are loaded on first use");
+            return;
+        }
+        try {
+            s_TemplateWarmer.start(SchemaCache.getBundledTemplateIds());
+        } catch (IOException e) {
+            s_Log.warning("Unable to read bundled templates, templates are loaded on first use: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the warmer loading the bundled templates.
+     *
+     * @return the template warmer.
+     */
+    public static TemplateWarmer getTemplateWarmer() {
+        return s_TemplateWarmer;
+    }
+
+    /**
+     * Gets the executor running transforms of single input files.
+     *
+     * @return the transform executor.
+     */
+    public static TransformExecutor getTransformExecutor() {
+        return s_TransformExecutor;
+    }
+
+    /**
+     * Sets whether to time the phases of each transform, overriding the
+     * system property.
+     *
+     * @param serverTiming true to time transforms.
+     */
+    static void setServerTiming(boolean serverTiming) {
+        s_ServerTiming = serverTiming;
+    }
+
+    /**
+     * Sets whether clients may ask for a trace of a single transform,
+     * overriding the system property.
+     *
+     * @param requestTrace true to allow traces.
+     */
+    static void setRequestTrace(boolean requestTrace) {
+        s_RequestTrace = requestTrace;
+    }
+
+    /**
+     * Gets the request metrics shared by all requests.
+     *
+     * @return the metrics.
+     */
+    public static ServiceMetrics getMetrics() {
+        return s_Metrics;
+    }
+
+    /**
+     * Gets the results of transforms shared by all requests.
+     *
+     * @return the result cache, or null if disabled.
+     */
+    static ResultCache getResultCache() {
+        return s_ResultCache;
+    }
+
+    /**
+     * Gets the results of transforms cached on disk.
+     *
+     * @return the disk result cache, or null if disabled.
+     */
+    static DiskResultCache getDiskResultCache() {
+        return s_DiskResultCache;
+    }
+
+    /**
+     * Stop the threads of the service, so none outlive its class loader.
+     * Transforms in progress are interrupted, then any results waiting to
+     * be written to disk are written. Called when the service is stopped.
+     */
+    static synchronized void shutdown() {
+        s_TemplateWarmer.shutdownNow();
+        s_TransformExecutor.shutdownNow();
+        s_BatchExecutor.shutdownNow();
+        if (s_ParallelPool != null) {
+            s_ParallelPool.shutdownNow();
+        }
+        shutdownDiskResultCache();
+    }
+
+    /**
+     * Stop caching results on disk, writing any results waiting to be
+     * written.
+     */
+    private static void shutdownDiskResultCache() {
+        if (s_DiskResultCache == null) {
+            return;
+        }
+        try {
+            if (!s_DiskResultCache.shutdown(10, TimeUnit.SECONDS)) {
+                s_Log.warning("Timed out writing cached results");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the schema cache shared by all requests.
+     *
+     * @return the schema cache.
+     */
+    public static SchemaCache getSchemaCache() {
+        return s_SchemaCache;
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream keeping a copy of the bytes written through it, up to
+ * a limit. Once more than the limit has been written the copy is dropped.
+ *
+ * @author Jeremy Nowell
+ */
+class CapturingOutputStream extends FilterOutputStream {
+
+    /** Maximum number of bytes to copy. */
+    private final int m_limit;
+
+    /** The copy, or null once the limit is exceeded. */
+    private ByteArrayOutputStream m_copy = new ByteArrayOutputStream();
+
+    /**
+     * Instantiates a new capturing output stream.
+     *
+     * @param out the stream to write to.
+     * @param limit the maximum number of bytes to copy.
+     */
+    CapturingOutputStream(OutputStream out, int limit) {
+        super(out);
+        m_limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (m_copy != null) {
+            if (m_copy.size() < m_limit) {
+                m_copy.write(b);
+            } else {
+                m_copy = null;
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Write the whole array at once, rather than a byte at a time.
+        out.write(b, off, len);
+        if (m_copy != null) {
+            if (len <= m_limit - m_copy.size()) {
+                m_copy.write(b, off, len);
+            } else {
+                m_copy = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the bytes written.
+     *
+     * @return the bytes, or null if more than the limit was written.
+     */
+    byte[] getCopy() {
+        return m_copy == null ? null : m_copy.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream counting the bytes written through it.
+ *
+ * @author Jeremy Nowell
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    /** Number of bytes written. */
+    private long m_count;
+
+    /**
+     * Instantiates a new counting output stream.
+     *
+     * @param out the stream to write to.
+     */
+    CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        m_count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Write the whole array at once, rather than a byte at a time.
+        out.write(b, off, len);
+        m_count += len;
+    }
+
+    /**
+     * Gets the number of bytes written.
+     *
+     * @return the number of bytes.
+     */
+    long getCount() {
+        return m_count;
+    }
+}
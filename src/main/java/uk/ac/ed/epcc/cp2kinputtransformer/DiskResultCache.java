@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of transform results in a directory, so results survive restarts
+ * of the service.
+ *
+ * <p>Each result is held as compressed XML in the file
+ * 'ID-CHECKSUM/KEY.xml.gz', where ID is the template ID, CHECKSUM the
+ * checksum of the template in hexadecimal and KEY the key of the result,
+ * see {@link ResultCache#key}. Once a template is used with a new checksum,
+ * because its schema has changed, the directories of its other checksums
+ * are deleted.
+ *
+ * <p>Results are written in the background, to a temporary file which is
+ * then moved into place, so a result file is either complete or absent.
+ * The cache is bounded by the total size of the files, with the least
+ * recently used files deleted when the bound is exceeded. The index of the
+ * files is rebuilt from the directory when the cache is created, and the
+ * modification time of a file is updated when it is used, so the order of
+ * use survives restarts.
+ *
+ * @author Jeremy Nowell
+ */
+public class DiskResultCache {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(DiskResultCache.class.getName());
+
+    /** The default maximum total size of the result files, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    /** Suffix of result files. */
+    static final String RESULT_SUFFIX = ".xml.gz";
+
+    /** Suffix of result files being written. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** Maximum number of results waiting to be written. */
+    private static final int WRITE_QUEUE_SIZE = 64;
+
+    /** The cache directory. */
+    private final File m_directory;
+
+    /** The maximum total size of the result files. */
+    private final long m_maxBytes;
+
+    /** The result files, by key, in least recently used order. */
+    private final LinkedHashMap<String, ResultFile> m_files =
+            new LinkedHashMap<String, ResultFile>(16, 0.75f, true);
+
+    /** Total size of the result files, guarded by the lock on m_files. */
+    private long m_bytes;
+
+    /** The checksum last used with each template. */
+    private final ConcurrentMap<String, Long> m_checksums = new ConcurrentHashMap<String, Long>();
+
+    /** Thread writing result files. */
+    private final ThreadPoolExecutor m_writer;
+
+    /** Number of requests served from the cache. */
+    private final AtomicLong m_hits = new AtomicLong();
+
+    /** Number of requests not served from the cache. */
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /** Number of result files written. */
+    private final AtomicLong m_writes = new AtomicLong();
+
+    /** Number of results not written because too many were waiting. */
+    private final AtomicLong m_writesDropped = new AtomicLong();
+
+    /** Number of result files deleted to keep within the size bound. */
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    /**
+     * Instantiates a new disk result cache, indexing the result files
+     * already in the directory.
+     *
+     * @param directory the cache directory, created if it does not exist.
+     * @param maxBytes the maximum total size of the result files.
+     * @throws IOException if the directory cannot be created.
+     */
+    public DiskResultCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create result cache directory " + directory);
+        }
+        m_directory = directory;
+        m_maxBytes = maxBytes;
+        m_writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "cp2k-result-cache-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        m_writesDropped.incrementAndGet();
+                    }
+                });
+        index();
+    }
+
+    /**
+     * Gets a cached result, counting a hit or miss.
+     *
+     * @param templateId ID of the template.
+     * @param schemaChecksum checksum of the template.
+     * @param key the key of the result.
+     * @return the XML of the result, or null if not cached.
+     */
+    public byte[] get(String templateId, long schemaChecksum, String key) {
+        useChecksum(templateId, schemaChecksum);
+        ResultFile resultFile;
+        synchronized (m_files) {
+            resultFile = m_files.get(key);
+        }
+        if (resultFile == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            byte[] xml = read(resultFile.m_file);
+            resultFile.m_file.setLastModified(System.currentTimeMillis());
+            m_hits.incrementAndGet();
+            return xml;
+        } catch (IOException e) {
+            // Deleted meanwhile, or damaged outside the service.
+            s_Log.warning("Unable to read cached result " + resultFile.m_file + ": " + e.getMessage());
+            remove(key, resultFile);
+            m_misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a result is cached, without counting a hit or miss or
+     * changing the order of eviction.
+     *
+     * @param key the key of the result.
+     * @return true, if cached.
+     */
+    public boolean contains(String key) {
+        synchronized (m_files) {
+            return m_files.containsKey(key);
+        }
+    }
+
+    /**
+     * Caches a result. The result is written in the background, and
+     * dropped if too many results are waiting to be written.
+     *
+     * @param templateId ID of the template.
+     * @param schemaChecksum checksum of the template.
+     * @param key the key of the result.
+     * @param xml the XML of the result, which must not be modified.
+     */
+    public void put(final String templateId, final long schemaChecksum, final String key, final byte[] xml) {
+        useChecksum(templateId, schemaChecksum);
+        if (contains(key)) {
+            return;
+        }
+        try {
+            m_writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(getDirectory(templateId, schemaChecksum), key, xml);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down.
+            m_writesDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of result files.
+     *
+     * @return the number of result files.
+     */
+    public int size() {
+        synchronized (m_files) {
+            return m_files.size();
+        }
+    }
+
+    /**
+     * Gets the total size of the result files.
+     *
+     * @return the size in bytes.
+     */
+    public long getBytes() {
+        synchronized (m_files) {
+            return m_bytes;
+        }
+    }
+
+    /**
+     * Gets the maximum total size of the result files.
+     *
+     * @return the size in bytes.
+     */
+    public long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    /**
+     * Gets the cache directory.
+     *
+     * @return the directory.
+     */
+    public File getDirectory() {
+        return m_directory;
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return the hit count.
+     */
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    /**
+     * Gets the number of requests not served from the cache.
+     *
+     * @return the miss count.
+     */
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * Gets the number of result files written.
+     *
+     * @return the write count.
+     */
+    public long getWrites() {
+        return m_writes.get();
+    }
+
+    /**
+     * Gets the number of results not written because too many were
+     * waiting to be written.
+     *
+     * @return the dropped write count.
+     */
+    public long getWritesDropped() {
+        return m_writesDropped.get();
+    }
+
+    /**
+     * Gets the number of result files deleted to keep within the size bound.
+     *
+     * @return the eviction count.
+     */
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    /**
+     * Stop writing results, after writing those waiting.
+     *
+     * @param timeout the maximum time to wait for the waiting results.
+     * @param unit the unit of the timeout.
+     * @return true, if all waiting results were written.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        m_writer.shutdown();
+        return m_writer.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Checks whether the cache has stopped writing results, after which a
+     * new cache is needed to store results on disk again.
+     *
+     * @return true, if shut down.
+     */
+    public boolean isShutdown() {
+        return m_writer.isShutdown();
+    }
+
+    /**
+     * Gets the directory holding the results of a template.
+     *
+     * @param templateId ID of the template.
+     * @param schemaChecksum checksum of the template.
+     * @return the directory.
+     */
+    File getDirectory(String templateId, long schemaChecksum) {
+        return new File(m_directory, templateId + "-" + String.format("%08x", schemaChecksum));
+    }
+
+    /**
+     * Note the checksum used with a template, deleting the results of the
+     * template's other checksums if it has changed.
+     *
+     * @param templateId ID of the template.
+     * @param schemaChecksum checksum of the template.
+     */
+    private void useChecksum(String templateId, long schemaChecksum) {
+        Long previous = m_checksums.put(templateId, schemaChecksum);
+        if (previous != null && previous == schemaChecksum) {
+            return;
+        }
+
+        File current = getDirectory(templateId, schemaChecksum);
+        File[] directories = m_directory.listFiles();
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            if (directory.isDirectory() && !directory.equals(current)
+                    && isDirectoryOf(directory.getName(), templateId)) {
+                s_Log.info("Deleting cached results of changed template: " + directory);
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        String key = getKey(file);
+                        if (key != null) {
+                            synchronized (m_files) {
+                                ResultFile resultFile = m_files.get(key);
+                                if (resultFile != null && resultFile.m_file.equals(file)) {
+                                    m_files.remove(key);
+                                    m_bytes -= resultFile.m_size;
+                                }
+                            }
+                        }
+                        file.delete();
+                    }
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * Checks whether a directory name is of the results of a template,
+     * 'ID-CHECKSUM' with a checksum of eight hexadecimal digits.
+     *
+     * @param name the directory name.
+     * @param templateId ID of the template.
+     * @return true, if the directory is of the template.
+     */
+    private static boolean isDirectoryOf(String name, String templateId) {
+        return name.length() == templateId.length() + 9
+                && name.startsWith(templateId + "-")
+                && name.substring(templateId.length() + 1).matches("[0-9a-f]{8}");
+    }
+
+    /**
+     * Gets the key of a result file.
+     *
+     * @param file the file.
+     * @return the key, or null if the file is not a result file.
+     */
+    private static String getKey(File file) {
+        String name = file.getName();
+        if (!name.endsWith(RESULT_SUFFIX)) {
+            return null;
+        }
+        return name.substring(0, name.length() - RESULT_SUFFIX.length());
+    }
+
+    /**
+     * Index the result files in the cache directory, deleting any left
+     * partly written.
+     */
+    private void index() {
+        List<File> resultFiles = new ArrayList<File>();
+        File[] directories = m_directory.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] files = directory.isDirectory() ? directory.listFiles() : null;
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                        file.delete();
+                    } else if (getKey(file) != null) {
+                        resultFiles.add(file);
+                    }
+                }
+            }
+        }
+
+        // Least recently used first.
+        final Map<File, Long> lastUsed = new LinkedHashMap<File, Long>();
+        for (File file : resultFiles) {
+            lastUsed.put(file, file.lastModified());
+        }
+        Collections.sort(resultFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long time1 = lastUsed.get(file1);
+                long time2 = lastUsed.get(file2);
+                return time1 < time2 ? -1 : (time1 == time2 ? 0 : 1);
+            }
+        });
+        synchronized (m_files) {
+            for (File file : resultFiles) {
+                add(getKey(file), file);
+            }
+        }
+        s_Log.info("Indexed " + size() + " cached results, " + getBytes() + " bytes, in " + m_directory);
+    }
+
+    /**
+     * Write a result file, replacing it atomically.
+     *
+     * @param directory the directory of the template.
+     * @param key the key of the result.
+     * @param xml the XML of the result.
+     */
+    private void write(File directory, String key, byte[] xml) {
+        File file = new File(directory, key + RESULT_SUFFIX);
+        File temporary = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create directory " + directory);
+            }
+            temporary = File.createTempFile(key + ".xml", TEMPORARY_SUFFIX, directory);
+            OutputStream os = new GZIPOutputStream(new FileOutputStream(temporary));
+            try {
+                os.write(xml);
+            } finally {
+                os.close();
+            }
+            try {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            s_Log.warning("Unable to write cached result " + file + ": " + e.getMessage());
+            if (temporary != null) {
+                temporary.delete();
+            }
+            return;
+        }
+        m_writes.incrementAndGet();
+
+        synchronized (m_files) {
+            add(key, file);
+        }
+    }
+
+    /**
+     * Add a result file to the index, deleting the least recently used
+     * files to keep within the size bound. Called holding the lock on m_files.
+     *
+     * @param key the key of the result.
+     * @param file the result file.
+     */
+    private void add(String key, File file) {
+        ResultFile resultFile = new ResultFile(file, file.length());
+        ResultFile previous = m_files.put(key, resultFile);
+        if (previous != null) {
+            m_bytes -= previous.m_size;
+        }
+        m_bytes += resultFile.m_size;
+
+        Iterator<Map.Entry<String, ResultFile>> eldest = m_files.entrySet().iterator();
+        while (m_bytes > m_maxBytes && eldest.hasNext()) {
+            Map.Entry<String, ResultFile> entry = eldest.next();
+            s_Log.fine("Evicting cached result: " + entry.getValue().m_file);
+            m_bytes -= entry.getValue().m_size;
+            entry.getValue().m_file.delete();
+            eldest.remove();
+            m_evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove a result file from the index.
+     *
+     * @param key the key of the result.
+     * @param resultFile the result file.
+     */
+    private void remove(String key, ResultFile resultFile) {
+        synchronized (m_files) {
+            if (m_files.get(key) == resultFile) {
+                m_files.remove(key);
+                m_bytes -= resultFile.m_size;
+            }
+        }
+    }
+
+    /**
+     * Read a result file.
+     *
+     * @param file the file.
+     * @return the XML.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static byte[] read(File file) throws IOException {
+        InputStream is = new GZIPInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                xml.write(buffer, 0, count);
+            }
+            return xml.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * A result file in the index.
+     */
+    private static final class ResultFile {
+
+        /** The file. */
+        private final File m_file;
+
+        /** The size of the file. */
+        private final long m_size;
+
+        /**
+         * Instantiates a new result file.
+         *
+         * @param file the file.
+         * @param size the size of the file.
+         */
+        private ResultFile(File file, long size) {
+            m_file = file;
+            m_size = size;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+
+/**
+ * Records the time each request arrives, before its entity is read, so
+ * the time taken to receive an upload can be measured.
+ *
+ * @author Jeremy Nowell
+ */
+@PreMatching
+public class RequestStartFilter implements ContainerRequestFilter {
+
+    /** Name of the request property holding the arrival time, from {@link System#nanoTime()}. */
+    public static final String START_PROPERTY = "uk.ac.ed.epcc.cp2kinputtransformer.requestStart";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        requestContext.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    /**
+     * Gets the time a request arrived.
+     *
+     * @param requestContext the request.
+     * @param defaultStart the time to use if the arrival was not recorded.
+     * @return the arrival time, from {@link System#nanoTime()}.
+     */
+    public static long getStart(ContainerRequestContext requestContext, long defaultStart) {
+        Object start = requestContext.getProperty(START_PROPERTY);
+        return start instanceof Long ? (Long) start : defaultStart;
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe cache of transform results, keyed by a hash of the template
+ * and the input, so identical input files sent again are not transformed
+ * again.
+ *
+ * <p>The cache is bounded by the total size of the XML held, with the least
+ * recently used results evicted when the bound is exceeded. Results larger
+ * than the entry limit, or a quarter of the bound, are not cached, so a
+ * single large result cannot empty the cache. The entry limit also bounds
+ * the input files buffered to find their keys, so it is kept small by
+ * default: larger inputs are streamed without being cached.
+ *
+ * <p>The key of a result, see {@link #key}, is also used as its entity tag.
+ *
+ * <p>Concurrent requests for the same result are coalesced by
+ * {@link #join}: the first request transforms the input and the others wait
+ * for its result, rather than all transforming the same input at once.
+ *
+ * @author Jeremy Nowell
+ */
+public class ResultCache {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(ResultCache.class.getName());
+
+    /** The default maximum total size of the cached results, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** The default maximum size of a single cached result, in bytes. */
+    public static final int DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+    /** Encoding of template IDs in keys. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Hexadecimal digits. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The maximum total size of the cached results. */
+    private final long m_maxBytes;
+
+    /** The maximum size of a single cached result. */
+    private final int m_maxEntryBytes;
+
+    /** The cached results, in least recently used order. */
+    private final LinkedHashMap<String, Result> m_results =
+            new LinkedHashMap<String, Result>(16, 0.75f, true);
+
+    /** Total size of the cached results, guarded by the lock on m_results. */
+    private long m_bytes;
+
+    /** The transforms in progress, by key. */
+    private final ConcurrentMap<String, InFlight> m_flights = new ConcurrentHashMap<String, InFlight>();
+
+    /** Number of requests served from the cache. */
+    private final AtomicLong m_hits = new AtomicLong();
+
+    /** Number of requests not served from the cache. */
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /** Number of results evicted. */
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    /** Number of requests which waited for a transform in progress. */
+    private final AtomicLong m_coalesced = new AtomicLong();
+
+    /** Number of requests answered as not modified. */
+    private final AtomicLong m_notModified = new AtomicLong();
+
+    /**
+     * Instantiates a new result cache, with the default entry limit.
+     *
+     * @param maxBytes the maximum total size of the cached results.
+     */
+    public ResultCache(long maxBytes) {
+        this(maxBytes, DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    /**
+     * Instantiates a new result cache.
+     *
+     * @param maxBytes the maximum total size of the cached results.
+     * @param maxEntryBytes the maximum size of a single cached result,
+     *                      which is also limited to a quarter of maxBytes.
+     */
+    public ResultCache(long maxBytes, int maxEntryBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        if (maxEntryBytes < 0) {
+            throw new IllegalArgumentException("Entry size must not be negative: " + maxEntryBytes);
+        }
+        m_maxBytes = maxBytes;
+        m_maxEntryBytes = (int) Math.min(Math.min(maxEntryBytes, maxBytes / 4), Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Gets the key of the result of transforming an input file: the
+     * SHA-256 hash of the template ID, the checksum of the template and
+     * the input, in hexadecimal.
+     *
+     * @param templateId ID of the template.
+     * @param schemaChecksum checksum of the template, so results are not
+     *                       reused when the schema of the template changes.
+     * @param input buffer holding the input file.
+     * @param length length of the input file.
+     * @return the key.
+     */
+    public static String key(String templateId, long schemaChecksum, byte[] input, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+        digest.update(templateId.getBytes(UTF8));
+        digest.update((byte) 0);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (schemaChecksum >>> shift));
+        }
+        digest.update(input, 0, length);
+
+        byte[] hash = digest.digest();
+        char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Gets a cached result, counting a hit or miss.
+     *
+     * @param key the key of the result.
+     * @return the result, or null if not cached.
+     */
+    public Result get(String key) {
+        Result result;
+        synchronized (m_results) {
+            result = m_results.get(key);
+        }
+        (result != null ? m_hits : m_misses).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Checks whether a result is cached, without counting a hit or miss or
+     * changing the order of eviction.
+     *
+     * @param key the key of the result.
+     * @return true, if cached.
+     */
+    public boolean contains(String key) {
+        synchronized (m_results) {
+            return m_results.containsKey(key);
+        }
+    }
+
+    /**
+     * Caches a result, evicting the least recently used results to keep
+     * within the size bound. Results larger than
+     * {@link #getMaxEntryBytes()} are not cached.
+     *
+     * @param key the key of the result.
+     * @param xml the XML of the result.
+     * @param lines the number of input lines processed.
+     * @return true, if the result was cached.
+     */
+    public boolean put(String key, byte[] xml, long lines) {
+        if (xml.length > getMaxEntryBytes()) {
+            return false;
+        }
+        Result result = new Result(xml, lines);
+        synchronized (m_results) {
+            Result previous = m_results.put(key, result);
+            if (previous != null) {
+                m_bytes -= previous.getXml().length;
+            }
+            m_bytes += xml.length;
+
+            Iterator<Map.Entry<String, Result>> eldest = m_results.entrySet().iterator();
+            while (m_bytes > m_maxBytes) {
+                Map.Entry<String, Result> entry = eldest.next();
+                s_Log.fine("Evicting result: " + entry.getKey());
+                m_bytes -= entry.getValue().getXml().length;
+                eldest.remove();
+                m_evictions.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Join the transform in progress giving a result, or start one if there
+     * is none. If the flight returned is the leader, the caller must
+     * transform the input and finish the flight, else it may wait for the
+     * leader's result.
+     *
+     * <p>A transform in progress for longer than the timeout is taken to
+     * have been abandoned, and replaced.
+     *
+     * @param key the key of the result.
+     * @param timeoutMillis the time a transform may take.
+     * @return the flight.
+     */
+    public Flight join(String key, long timeoutMillis) {
+        InFlight inFlight = new InFlight(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        while (true) {
+            InFlight inProgress = m_flights.putIfAbsent(key, inFlight);
+            if (inProgress == null) {
+                return new Flight(key, inFlight, true);
+            }
+            if (!inProgress.isAbandoned()) {
+                m_coalesced.incrementAndGet();
+                return new Flight(key, inProgress, false);
+            }
+            s_Log.warning("Replacing abandoned transform: " + key);
+            m_flights.remove(key, inProgress);
+        }
+    }
+
+    /**
+     * Count a request answered as not modified, because the client already
+     * held the result.
+     */
+    public void recordNotModified() {
+        m_notModified.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of cached results.
+     *
+     * @return the number of cached results.
+     */
+    public int size() {
+        synchronized (m_results) {
+            return m_results.size();
+        }
+    }
+
+    /**
+     * Gets the total size of the cached results.
+     *
+     * @return the size in bytes.
+     */
+    public long getBytes() {
+        synchronized (m_results) {
+            return m_bytes;
+        }
+    }
+
+    /**
+     * Gets the maximum total size of the cached results.
+     *
+     * @return the size in bytes.
+     */
+    public long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    /**
+     * Gets the maximum size of a single cached result, the entry limit or
+     * a quarter of the maximum total size if smaller. Input files larger
+     * than this are not cached either.
+     *
+     * @return the size in bytes.
+     */
+    public int getMaxEntryBytes() {
+        return m_maxEntryBytes;
+    }
+
+    /**
+     * Gets the number of requests served from the cache.
+     *
+     * @return the hit count.
+     */
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    /**
+     * Gets the number of requests not served from the cache.
+     *
+     * @return the miss count.
+     */
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * Gets the number of results evicted.
+     *
+     * @return the eviction count.
+     */
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    /**
+     * Gets the number of requests which waited for a transform in progress
+     * rather than transforming the same input.
+     *
+     * @return the coalesced count.
+     */
+    public long getCoalesced() {
+        return m_coalesced.get();
+    }
+
+    /**
+     * Gets the number of transforms in progress.
+     *
+     * @return the number of transforms.
+     */
+    public int getFlightCount() {
+        return m_flights.size();
+    }
+
+    /**
+     * Gets the number of requests answered as not modified.
+     *
+     * @return the count.
+     */
+    public long getNotModified() {
+        return m_notModified.get();
+    }
+
+    /**
+     * Removes all cached results. Statistics are kept.
+     */
+    public void clear() {
+        synchronized (m_results) {
+            m_results.clear();
+            m_bytes = 0;
+        }
+    }
+
+    /**
+     * A request's part in a transform in progress.
+     */
+    public final class Flight {
+
+        /** The key of the result. */
+        private final String m_key;
+
+        /** The transform in progress. */
+        private final InFlight m_inFlight;
+
+        /** Whether the request is to transform the input. */
+        private final boolean m_leader;
+
+        /** Whether the leader has finished the transform. */
+        private final AtomicBoolean m_finished = new AtomicBoolean();
+
+        /**
+         * Instantiates a new flight.
+         *
+         * @param key the key of the result.
+         * @param inFlight the transform in progress.
+         * @param leader whether the request is to transform the input.
+         */
+        private Flight(String key, InFlight inFlight, boolean leader) {
+            m_key = key;
+            m_inFlight = inFlight;
+            m_leader = leader;
+        }
+
+        /**
+         * Checks whether the request is to transform the input.
+         *
+         * @return true, if the leader.
+         */
+        public boolean isLeader() {
+            return m_leader;
+        }
+
+        /**
+         * Finish the transform, caching the result and releasing the requests
+         * waiting for it. Called by the leader only. Calls after the
+         * first are ignored.
+         *
+         * @param xml the XML of the result, or null if the transform failed
+         *            or the result was too large to keep.
+         * @param lines the number of input lines processed.
+         */
+        public void finish(byte[] xml, long lines) {
+            if (!m_finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (xml != null && put(m_key, xml, lines)) {
+                m_inFlight.m_result = new Result(xml, lines);
+            }
+            m_flights.remove(m_key, m_inFlight);
+            m_inFlight.m_done.countDown();
+        }
+
+        /**
+         * Wait for the leader to finish, at most until the transform is taken
+         * to be abandoned.
+         *
+         * @return the result, or null if there is none to share.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public Result await() throws InterruptedException {
+            m_inFlight.m_done.await(
+                    Math.max(0, m_inFlight.m_deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return m_inFlight.m_result;
+        }
+    }
+
+    /**
+     * A transform in progress, shared by the requests for its result.
+     */
+    private static final class InFlight {
+
+        /** The time after which the transform is taken to be abandoned, from {@link System#nanoTime()}. */
+        private final long m_deadline;
+
+        /** Released when the leader finishes. */
+        private final CountDownLatch m_done = new CountDownLatch(1);
+
+        /** The result, or null if the transform failed or is too large to cache. */
+        private volatile Result m_result;
+
+        /**
+         * Instantiates a new transform in progress.
+         *
+         * @param deadline the time after which the transform is taken to be abandoned.
+         */
+        private InFlight(long deadline) {
+            m_deadline = deadline;
+        }
+
+        /**
+         * Checks whether the transform is unfinished after its deadline.
+         *
+         * @return true, if abandoned.
+         */
+        private boolean isAbandoned() {
+            return m_done.getCount() > 0 && System.nanoTime() - m_deadline > 0;
+        }
+    }
+
+    /**
+     * A cached transform result.
+     */
+    public static final class Result {
+
+        /** The XML. */
+        private final byte[] m_xml;
+
+        /** The number of input lines processed. */
+        private final long m_lines;
+
+        /**
+         * Instantiates a new result.
+         *
+         * @param xml the XML.
+         * @param lines the number of input lines processed.
+         */
+        public Result(byte[] xml, long lines) {
+            m_xml = xml;
+            m_lines = lines;
+        }
+
+        /**
+         * Gets the XML, which must not be modified.
+         *
+         * @return the XML.
+         */
+        public byte[] getXml() {
+            return m_xml;
+        }
+
+        /**
+         * Gets the number of input lines processed.
+         *
+         * @return the number of lines.
+         */
+        public long getLines() {
+            return m_lines;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.PhaseTimings;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.SchemaCache;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.SchemaFootprint;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts transform requests per template, and writes them with the state
+ * of the transform executor and schema cache in the Prometheus text
+ * exposition format.
+ *
+ * @author Jeremy Nowell
+ */
+public class ServiceMetrics {
+
+    /** Template label used for requests whose template could not be loaded. */
+    public static final String UNKNOWN_TEMPLATE = SchemaCache.UNKNOWN_TEMPLATE;
+
+    /** Media type of the Prometheus text format. */
+    public static final String PROMETHEUS_MEDIA_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Upper bounds of the latency histogram buckets, in seconds. */
+    private static final double[] LATENCY_BUCKETS = {
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300,
+    };
+
+    /** Status label of successful requests. */
+    private static final String STATUS_OK = "ok";
+
+    /** Status label of failed requests. */
+    private static final String STATUS_ERROR = "error";
+
+    /** Metrics for each template, by template ID. */
+    private final ConcurrentMap<String, TemplateMetrics> m_templates =
+            new ConcurrentHashMap<String, TemplateMetrics>();
+
+    /**
+     * Record a completed transform of a single input file.
+     *
+     * @param templateId ID of the template, or {@link #UNKNOWN_TEMPLATE}.
+     * @param ok whether the transform succeeded.
+     * @param elapsedNanos time taken by the request, in nanoseconds.
+     * @param bytesIn number of input bytes read.
+     * @param bytesOut number of output bytes written.
+     * @param lines number of input lines processed.
+     */
+    public void recordTransform(
+            String templateId, boolean ok, long elapsedNanos, long bytesIn, long bytesOut, long lines) {
+        TemplateMetrics metrics = getOrCreate(templateId);
+        (ok ? metrics.m_ok : metrics.m_errors).incrementAndGet();
+        metrics.m_latencyNanos.addAndGet(elapsedNanos);
+        double seconds = elapsedNanos / 1e9;
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            if (seconds <= LATENCY_BUCKETS[i]) {
+                metrics.m_latencyBuckets.incrementAndGet(i);
+                break;
+            }
+        }
+        metrics.m_bytesIn.addAndGet(bytesIn);
+        metrics.m_bytesOut.addAndGet(bytesOut);
+        metrics.m_lines.addAndGet(lines);
+    }
+
+    /**
+     * Record the times of the phases of a completed transform.
+     *
+     * @param templateId ID of the template.
+     * @param timings the timings.
+     */
+    public void recordPhases(String templateId, PhaseTimings timings) {
+        TemplateMetrics metrics = getOrCreate(templateId);
+        metrics.m_timed.incrementAndGet();
+        for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+            metrics.m_phaseNanos.addAndGet(phase.ordinal(), timings.getNanos(phase));
+        }
+    }
+
+    /**
+     * Record a completed batch transform.
+     *
+     * @param templateId ID of the template, or {@link #UNKNOWN_TEMPLATE}.
+     * @param filesOk number of input files transformed.
+     * @param filesFailed number of input files which could not be transformed.
+     */
+    public void recordBatch(String templateId, int filesOk, int filesFailed) {
+        TemplateMetrics metrics = getOrCreate(templateId);
+        metrics.m_batches.incrementAndGet();
+        metrics.m_batchFilesOk.addAndGet(filesOk);
+        metrics.m_batchFilesFailed.addAndGet(filesFailed);
+    }
+
+    /**
+     * Gets the number of transforms of single input files recorded.
+     *
+     * @param templateId ID of the template.
+     * @param ok true to count successes, false to count failures.
+     * @return the number of transforms.
+     */
+    public long getTransformCount(String templateId, boolean ok) {
+        TemplateMetrics metrics = m_templates.get(templateId);
+        if (metrics == null) {
+            return 0;
+        }
+        return (ok ? metrics.m_ok : metrics.m_errors).get();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     *
+     * @param writer the writer.
+     * @param executor the executor running transforms.
+     * @param cache the schema cache.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void write(Writer writer, TransformExecutor executor, SchemaCache cache)
+            throws IOException {
+        write(writer, executor, cache, null, null);
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     *
+     * @param writer the writer.
+     * @param executor the executor running transforms.
+     * @param cache the schema cache.
+     * @param resultCache the result cache, or null if disabled.
+     * @param diskResultCache the disk result cache, or null if disabled.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void write(Writer writer, TransformExecutor executor, SchemaCache cache,
+            ResultCache resultCache, DiskResultCache diskResultCache) throws IOException {
+        Map<String, TemplateMetrics> templates = new TreeMap<String, TemplateMetrics>(m_templates);
+
+        header(writer, "cp2k_transform_requests_total", "counter",
+                "Transforms of single input files completed.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            String template = label("template", entry.getKey());
+            sample(writer, "cp2k_transform_requests_total",
+                    template + "," + label("status", STATUS_OK), entry.getValue().m_ok.get());
+            sample(writer, "cp2k_transform_requests_total",
+                    template + "," + label("status", STATUS_ERROR), entry.getValue().m_errors.get());
+        }
+
+        header(writer, "cp2k_transform_duration_seconds", "histogram",
+                "Time taken by transforms of single input files, including time queued.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            TemplateMetrics metrics = entry.getValue();
+            String template = label("template", entry.getKey());
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += metrics.m_latencyBuckets.get(i);
+                sample(writer, "cp2k_transform_duration_seconds_bucket",
+                        template + "," + label("le", Double.toString(LATENCY_BUCKETS[i])), cumulative);
+            }
+            long count = metrics.m_ok.get() + metrics.m_errors.get();
+            sample(writer, "cp2k_transform_duration_seconds_bucket",
+                    template + "," + label("le", "+Inf"), count);
+            writer.write("cp2k_transform_duration_seconds_sum{" + template + "} "
+                    + (metrics.m_latencyNanos.get() / 1e9) + "\n");
+            sample(writer, "cp2k_transform_duration_seconds_count", template, count);
+        }
+
+        header(writer, "cp2k_transform_input_bytes_total", "counter",
+                "Bytes of input read by transforms of single input files.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            sample(writer, "cp2k_transform_input_bytes_total",
+                    label("template", entry.getKey()), entry.getValue().m_bytesIn.get());
+        }
+
+        header(writer, "cp2k_transform_output_bytes_total", "counter",
+                "Bytes of XML written by transforms of single input files.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            sample(writer, "cp2k_transform_output_bytes_total",
+                    label("template", entry.getKey()), entry.getValue().m_bytesOut.get());
+        }
+
+        header(writer, "cp2k_transform_lines_total", "counter",
+                "Input lines processed by transforms of single input files.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            sample(writer, "cp2k_transform_lines_total",
+                    label("template", entry.getKey()), entry.getValue().m_lines.get());
+        }
+
+        header(writer, "cp2k_transform_phase_seconds_total", "counter",
+                "Time spent in each phase of timed transforms.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            TemplateMetrics metrics = entry.getValue();
+            if (metrics.m_timed.get() == 0) {
+                continue;
+            }
+            String template = label("template", entry.getKey());
+            for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+                writer.write("cp2k_transform_phase_seconds_total{" + template + ","
+                        + label("phase", phase.getMetricName()) + "} "
+                        + (metrics.m_phaseNanos.get(phase.ordinal()) / 1e9) + "\n");
+            }
+        }
+
+        header(writer, "cp2k_batch_requests_total", "counter", "Batch transforms completed.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            sample(writer, "cp2k_batch_requests_total",
+                    label("template", entry.getKey()), entry.getValue().m_batches.get());
+        }
+
+        header(writer, "cp2k_batch_files_total", "counter", "Input files in batch transforms.");
+        for (Map.Entry<String, TemplateMetrics> entry : templates.entrySet()) {
+            String template = label("template", entry.getKey());
+            sample(writer, "cp2k_batch_files_total",
+                    template + "," + label("status", STATUS_OK), entry.getValue().m_batchFilesOk.get());
+            sample(writer, "cp2k_batch_files_total",
+                    template + "," + label("status", STATUS_ERROR),
+                    entry.getValue().m_batchFilesFailed.get());
+        }
+
+        writeExecutor(writer, executor);
+        writeCache(writer, cache);
+        if (resultCache != null) {
+            writeResultCache(writer, resultCache);
+        }
+        if (diskResultCache != null) {
+            writeDiskResultCache(writer, diskResultCache);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write the state of the transform executor.
+     *
+     * @param writer the writer.
+     * @param executor the executor.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeExecutor(Writer writer, TransformExecutor executor) throws IOException {
+        header(writer, "cp2k_transform_active", "gauge", "Transforms running.");
+        sample(writer, "cp2k_transform_active", null, executor.getActiveCount());
+        header(writer, "cp2k_transform_queued", "gauge", "Transforms waiting for a thread.");
+        sample(writer, "cp2k_transform_queued", null, executor.getQueuedCount());
+        header(writer, "cp2k_transform_rejected_total", "counter",
+                "Transforms refused because the queue was full.");
+        sample(writer, "cp2k_transform_rejected_total", null, executor.getRejectedCount());
+        header(writer, "cp2k_transform_timed_out_total", "counter", "Transforms cancelled by timeout.");
+        sample(writer, "cp2k_transform_timed_out_total", null, executor.getTimedOutCount());
+        header(writer, "cp2k_transform_disconnected_total", "counter",
+                "Transforms cancelled by client disconnection.");
+        sample(writer, "cp2k_transform_disconnected_total", null, executor.getDisconnectedCount());
+    }
+
+    /**
+     * Write the statistics of the schema cache.
+     *
+     * @param writer the writer.
+     * @param cache the schema cache.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeCache(Writer writer, SchemaCache cache) throws IOException {
+        Map<String, SchemaCache.TemplateStatistics> statistics = cache.getStatistics();
+
+        header(writer, "cp2k_schema_cache_size", "gauge", "Templates held in the schema cache.");
+        sample(writer, "cp2k_schema_cache_size", null, cache.size());
+
+        header(writer, "cp2k_schema_cache_hits_total", "counter", "Template requests served from the cache.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            sample(writer, "cp2k_schema_cache_hits_total",
+                    label("template", entry.getKey()), entry.getValue().getHits());
+        }
+        header(writer, "cp2k_schema_cache_misses_total", "counter",
+                "Template requests not served from the cache.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            sample(writer, "cp2k_schema_cache_misses_total",
+                    label("template", entry.getKey()), entry.getValue().getMisses());
+        }
+        header(writer, "cp2k_schema_cache_coalesced_total", "counter",
+                "Template requests which waited for a load in progress.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            sample(writer, "cp2k_schema_cache_coalesced_total",
+                    label("template", entry.getKey()), entry.getValue().getCoalesced());
+        }
+        header(writer, "cp2k_schema_load_failures_total", "counter", "Failed template loads.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            sample(writer, "cp2k_schema_load_failures_total",
+                    label("template", entry.getKey()), entry.getValue().getLoadFailures());
+        }
+        header(writer, "cp2k_schema_cache_evictions_total", "counter", "Templates evicted from the cache.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            sample(writer, "cp2k_schema_cache_evictions_total",
+                    label("template", entry.getKey()), entry.getValue().getEvictions());
+        }
+        header(writer, "cp2k_schema_load_seconds", "gauge", "Time taken by the last template load.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            if (entry.getValue().getLoads() > 0) {
+                writer.write("cp2k_schema_load_seconds{" + label("template", entry.getKey()) + "} "
+                        + (entry.getValue().getLastLoadTimeNanos() / 1e9) + "\n");
+            }
+        }
+        header(writer, "cp2k_schema_footprint_bytes", "gauge",
+                "Estimated heap used by the last loaded template.");
+        for (Map.Entry<String, SchemaCache.TemplateStatistics> entry : statistics.entrySet()) {
+            SchemaFootprint footprint = entry.getValue().getFootprint();
+            if (footprint != null) {
+                sample(writer, "cp2k_schema_footprint_bytes",
+                        label("template", entry.getKey()), footprint.getEstimatedBytes());
+            }
+        }
+    }
+
+    /**
+     * Write the statistics of the result cache.
+     *
+     * @param writer the writer.
+     * @param cache the result cache.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeResultCache(Writer writer, ResultCache cache) throws IOException {
+        header(writer, "cp2k_result_cache_size", "gauge", "Transform results held in the result cache.");
+        sample(writer, "cp2k_result_cache_size", null, cache.size());
+        header(writer, "cp2k_result_cache_bytes", "gauge", "Bytes of XML held in the result cache.");
+        sample(writer, "cp2k_result_cache_bytes", null, cache.getBytes());
+        header(writer, "cp2k_result_cache_hits_total", "counter", "Transforms served from the result cache.");
+        sample(writer, "cp2k_result_cache_hits_total", null, cache.getHits());
+        header(writer, "cp2k_result_cache_misses_total", "counter",
+                "Cacheable transforms not served from the result cache.");
+        sample(writer, "cp2k_result_cache_misses_total", null, cache.getMisses());
+        header(writer, "cp2k_result_cache_coalesced_total", "counter",
+                "Transforms which waited for a concurrent transform of the same input.");
+        sample(writer, "cp2k_result_cache_coalesced_total", null, cache.getCoalesced());
+        header(writer, "cp2k_result_cache_not_modified_total", "counter",
+                "Transforms answered as not modified.");
+        sample(writer, "cp2k_result_cache_not_modified_total", null, cache.getNotModified());
+        header(writer, "cp2k_result_cache_evictions_total", "counter",
+                "Transform results evicted from the result cache.");
+        sample(writer, "cp2k_result_cache_evictions_total", null, cache.getEvictions());
+    }
+
+    /**
+     * Write the statistics of the disk result cache.
+     *
+     * @param writer the writer.
+     * @param cache the disk result cache.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeDiskResultCache(Writer writer, DiskResultCache cache) throws IOException {
+        header(writer, "cp2k_disk_cache_size", "gauge", "Transform results held in the disk cache.");
+        sample(writer, "cp2k_disk_cache_size", null, cache.size());
+        header(writer, "cp2k_disk_cache_bytes", "gauge", "Bytes of compressed XML held in the disk cache.");
+        sample(writer, "cp2k_disk_cache_bytes", null, cache.getBytes());
+        header(writer, "cp2k_disk_cache_hits_total", "counter", "Transforms served from the disk cache.");
+        sample(writer, "cp2k_disk_cache_hits_total", null, cache.getHits());
+        header(writer, "cp2k_disk_cache_misses_total", "counter",
+                "Cacheable transforms not served from the disk cache.");
+        sample(writer, "cp2k_disk_cache_misses_total", null, cache.getMisses());
+        header(writer, "cp2k_disk_cache_writes_total", "counter",
+                "Transform results written to the disk cache.");
+        sample(writer, "cp2k_disk_cache_writes_total", null, cache.getWrites());
+        header(writer, "cp2k_disk_cache_writes_dropped_total", "counter",
+                "Transform results not written to the disk cache because too many were waiting.");
+        sample(writer, "cp2k_disk_cache_writes_dropped_total", null, cache.getWritesDropped());
+        header(writer, "cp2k_disk_cache_evictions_total", "counter",
+                "Transform results deleted from the disk cache.");
+        sample(writer, "cp2k_disk_cache_evictions_total", null, cache.getEvictions());
+    }
+
+    /**
+     * Write the help and type lines of a metric.
+     *
+     * @param writer the writer.
+     * @param name the metric name.
+     * @param type the metric type.
+     * @param help the help text.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void header(Writer writer, String name, String type, String help)
+            throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    /**
+     * Write a sample.
+     *
+     * @param writer the writer.
+     * @param name the metric name.
+     * @param labels the formatted labels, or null if none.
+     * @param value the value.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void sample(Writer writer, String name, String labels, long value)
+            throws IOException {
+        writer.write(name);
+        if (labels != null) {
+            writer.write("{" + labels + "}");
+        }
+        writer.write(" " + value + "\n");
+    }
+
+    /**
+     * Format a label, escaping the value.
+     *
+     * @param name the label name.
+     * @param value the label value.
+     * @return the formatted label.
+     */
+    private static String label(String name, String value) {
+        StringBuilder builder = new StringBuilder(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Gets the metrics for a template, creating them if required.
+     *
+     * @param templateId ID of the template.
+     * @return the metrics.
+     */
+    private TemplateMetrics getOrCreate(String templateId) {
+        TemplateMetrics metrics = m_templates.get(templateId);
+        if (metrics == null) {
+            TemplateMetrics newMetrics = new TemplateMetrics();
+            metrics = m_templates.putIfAbsent(templateId, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Metrics for a single template.
+     */
+    private static final class TemplateMetrics {
+
+        /** Number of successful transforms. */
+        private final AtomicLong m_ok = new AtomicLong();
+
+        /** Number of failed transforms. */
+        private final AtomicLong m_errors = new AtomicLong();
+
+        /** Number of transforms in each latency bucket, not cumulative. */
+        private final AtomicLongArray m_latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS.length);
+
+        /** Total time taken by transforms, in nanoseconds. */
+        private final AtomicLong m_latencyNanos = new AtomicLong();
+
+        /** Bytes of input read. */
+        private final AtomicLong m_bytesIn = new AtomicLong();
+
+        /** Bytes of output written. */
+        private final AtomicLong m_bytesOut = new AtomicLong();
+
+        /** Input lines processed. */
+        private final AtomicLong m_lines = new AtomicLong();
+
+        /** Number of transforms whose phases were timed. */
+        private final AtomicLong m_timed = new AtomicLong();
+
+        /** Total time spent in each phase of timed transforms, in nanoseconds. */
+        private final AtomicLongArray m_phaseNanos =
+                new AtomicLongArray(PhaseTimings.Phase.values().length);
+
+        /** Number of batch transforms. */
+        private final AtomicLong m_batches = new AtomicLong();
+
+        /** Number of input files transformed in batches. */
+        private final AtomicLong m_batchFilesOk = new AtomicLong();
+
+        /** Number of input files in batches which could not be transformed. */
+        private final AtomicLong m_batchFilesFailed = new AtomicLong();
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.ConnectionCallback;
+import javax.ws.rs.core.Response;
+
+/**
+ * Runs transforms for suspended requests on a dedicated pool of threads,
+ * so that large transforms do not tie up the container's request threads.
+ *
+ * <p>The pool has a fixed number of threads and a bounded queue. Requests
+ * arriving when the queue is full are answered immediately with 503
+ * (Service Unavailable) and a Retry-After header. Each job is cancelled,
+ * interrupting its thread, if it does not finish within the timeout or if
+ * the client disconnects.
+ *
+ * @author Jeremy Nowell
+ */
+public class TransformExecutor {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(TransformExecutor.class.getName());
+
+    /** The default maximum number of queued jobs. */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /** The default job timeout, in seconds. */
+    public static final long DEFAULT_TIMEOUT_SECONDS = 300;
+
+    /** The default Retry-After time sent when the queue is full, in seconds. */
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 5;
+
+    /** Threads running the jobs. */
+    private final ThreadPoolExecutor m_executor;
+
+    /** Thread timing out jobs. */
+    private final ScheduledThreadPoolExecutor m_timer;
+
+    /** The job timeout, in milliseconds. */
+    private final long m_timeoutMillis;
+
+    /** The Retry-After time sent when the queue is full, in seconds. */
+    private final int m_retryAfterSeconds;
+
+    /** Number of jobs rejected because the queue was full. */
+    private final AtomicLong m_rejected = new AtomicLong();
+
+    /** Number of jobs cancelled by timeout. */
+    private final AtomicLong m_timedOut = new AtomicLong();
+
+    /** Number of jobs cancelled by client disconnection. */
+    private final AtomicLong m_disconnected = new AtomicLong();
+
+    /**
+     * Instantiates a new transform executor.
+     *
+     * @param threads the number of threads running jobs.
+     * @param queueSize the maximum number of jobs waiting for a thread.
+     * @param timeoutMillis the job timeout, in milliseconds, including time queued.
+     * @param retryAfterSeconds the Retry-After time sent when the queue is full.
+     */
+    public TransformExecutor(int threads, int queueSize, long timeoutMillis, int retryAfterSeconds) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size must be positive: " + queueSize);
+        }
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+        }
+        m_executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("cp2k-transform-"));
+        m_timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("cp2k-transform-timer-"));
+        m_timer.setRemoveOnCancelPolicy(true);
+        m_timeoutMillis = timeoutMillis;
+        m_retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Run a job for a suspended request. The job creates the response,
+     * which is then written on the job's thread, so any streamed entity is
+     * produced there too.
+     *
+     * @param asyncResponse the suspended request.
+     * @param job the job creating the response.
+     */
+    public void submit(final AsyncResponse asyncResponse, final Callable<Response> job) {
+        final Job task = new Job(asyncResponse, new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    asyncResponse.resume(job.call());
+                } catch (Throwable e) {
+                    s_Log.log(Level.WARNING, "Error running transform", e);
+                    asyncResponse.resume(e);
+                }
+                return null;
+            }
+        });
+
+        try {
+            m_executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            m_rejected.incrementAndGet();
+            s_Log.warning(m_executor.isShutdown() ? "Transforms shut down, rejecting request"
+                    : "Transform queue full, rejecting request");
+            asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", Integer.toString(m_retryAfterSeconds))
+                    .entity("Service busy, please retry later").build());
+            return;
+        }
+
+        final ScheduledFuture<?> timeout;
+        try {
+            timeout = m_timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!task.isDone()) {
+                        // Respond before cancelling, so the interrupted job cannot
+                        // respond first. Only takes effect if the response has not started.
+                        asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                                .entity("Transform timed out").build());
+                        if (cancel(task)) {
+                            m_timedOut.incrementAndGet();
+                            s_Log.warning("Transform timed out after " + m_timeoutMillis + " ms");
+                        }
+                    }
+                }
+            }, m_timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down since the job was queued, so the job has been
+            // interrupted or answered by shutdownNow.
+            return;
+        }
+
+        asyncResponse.register(new CompletionCallback() {
+            @Override
+            public void onComplete(Throwable throwable) {
+                timeout.cancel(false);
+            }
+        });
+        asyncResponse.register(new ConnectionCallback() {
+            @Override
+            public void onDisconnect(AsyncResponse disconnected) {
+                if (cancel(task)) {
+                    m_disconnected.incrementAndGet();
+                    s_Log.info("Client disconnected, transform cancelled");
+                }
+                timeout.cancel(false);
+            }
+        });
+    }
+
+    /**
+     * Cancel a job, interrupting it if running and freeing its place in
+     * the queue if not.
+     *
+     * @param task the job.
+     * @return true, if the job was cancelled before finishing.
+     */
+    private boolean cancel(FutureTask<Void> task) {
+        boolean cancelled = task.cancel(true);
+        m_executor.remove(task);
+        return cancelled;
+    }
+
+    /**
+     * Gets the number of jobs running.
+     *
+     * @return the number of jobs running.
+     */
+    public int getActiveCount() {
+        return m_executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of jobs waiting for a thread.
+     *
+     * @return the number of jobs queued.
+     */
+    public int getQueuedCount() {
+        return m_executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of jobs rejected because the queue was full.
+     *
+     * @return the number of jobs rejected.
+     */
+    public long getRejectedCount() {
+        return m_rejected.get();
+    }
+
+    /**
+     * Gets the number of jobs cancelled by timeout.
+     *
+     * @return the number of jobs timed out.
+     */
+    public long getTimedOutCount() {
+        return m_timedOut.get();
+    }
+
+    /**
+     * Gets the number of jobs cancelled by client disconnection.
+     *
+     * @return the number of jobs cancelled.
+     */
+    public long getDisconnectedCount() {
+        return m_disconnected.get();
+    }
+
+    /**
+     * Gets the time a job may take, including time queued, before it is
+     * cancelled.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public long getTimeoutMillis() {
+        return m_timeoutMillis;
+    }
+
+    /**
+     * Stop accepting jobs and interrupt any running. Jobs still queued are
+     * answered with 503 (Service Unavailable).
+     */
+    public void shutdownNow() {
+        for (Runnable queued : m_executor.shutdownNow()) {
+            ((Job) queued).abandon();
+        }
+        m_timer.shutdownNow();
+    }
+
+    /**
+     * Checks whether the executor has been shut down.
+     *
+     * @return true, if shut down.
+     */
+    public boolean isShutdown() {
+        return m_executor.isShutdown();
+    }
+
+    /**
+     * A job for a suspended request, which can answer the request if the
+     * job never runs.
+     */
+    private static final class Job extends FutureTask<Void> {
+
+        /** The suspended request. */
+        private final AsyncResponse m_asyncResponse;
+
+        /**
+         * Instantiates a new job.
+         *
+         * @param asyncResponse the suspended request.
+         * @param callable the work of the job, which answers the request.
+         */
+        private Job(AsyncResponse asyncResponse, Callable<Void> callable) {
+            super(callable);
+            m_asyncResponse = asyncResponse;
+        }
+
+        /**
+         * Cancel the job before it runs, answering the request.
+         */
+        private void abandon() {
+            if (cancel(false)) {
+                m_asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                        .entity("Service shutting down").build());
+            }
+        }
+    }
+
+    /**
+     * Thread factory making named daemon threads.
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+
+        /** Prefix of thread names. */
+        private final String m_prefix;
+
+        /** Number of threads made. */
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        /**
+         * Instantiates a new thread factory.
+         *
+         * @param prefix prefix of thread names.
+         */
+        private NamedThreadFactory(String prefix) {
+            m_prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, m_prefix + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Transforms a batch of CP2K input files in parallel, writing the XML for
+ * each input to a ZIP archive.
+ *
+ * <p>Inputs are transformed on the given executor, with a limited number
+ * in progress at once so that memory use is bounded however large the
+ * batch. Results are written to the archive in input order, as soon as
+ * each is ready. The last entry of the archive is a manifest giving the
+ * status of each input.
+ *
+ * @author Jeremy Nowell
+ */
+public class BatchTransformer {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(BatchTransformer.class.getName());
+
+    /** Name of the manifest entry in the archive. */
+    public static final String MANIFEST_NAME = "manifest.xml";
+
+    /** Status of an input transformed successfully. */
+    public static final String STATUS_OK = "OK";
+
+    /** Status of an input that could not be transformed. */
+    public static final String STATUS_ERROR = "ERROR";
+
+    /** Default maximum size in bytes of an input read from an archive. */
+    public static final long DEFAULT_MAX_INPUT_BYTES = 64L * 1024 * 1024;
+
+    /** Default maximum number of inputs read from an archive. */
+    public static final int DEFAULT_MAX_INPUTS = 10000;
+
+    /** Encoding of the manifest. */
+    private static final String MANIFEST_ENCODING = "UTF-8";
+
+    /** The processor shared by all inputs. */
+    private final TextInputProcessor m_processor;
+
+    /** Executor running the transforms. */
+    private final ExecutorService m_executor;
+
+    /** Maximum number of inputs in progress at once. */
+    private final int m_maxInFlight;
+
+    /**
+     * Instantiates a new batch transformer.
+     *
+     * @param processor the processor shared by all inputs.
+     * @param executor executor to run the transforms.
+     * @param maxInFlight maximum number of inputs in progress at once.
+     */
+    public BatchTransformer(TextInputProcessor processor, ExecutorService executor, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Inputs in flight must be positive: " + maxInFlight);
+        }
+        m_processor = processor;
+        m_executor = executor;
+        m_maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Transform all inputs, writing a ZIP archive of the results. The
+     * output stream is finished but not closed.
+     *
+     * @param inputs the inputs to transform.
+     * @param outputStream OutputStream to receive the archive.
+     * @return the result for each input, in input order.
+     * @throws IOException if the inputs cannot be read or the archive written.
+     */
+    public List<Result> transform(Inputs inputs, OutputStream outputStream) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(outputStream);
+        List<Result> results = new ArrayList<Result>();
+        Deque<Future<Result>> inFlight = new ArrayDeque<Future<Result>>();
+        Set<String> entryNames = new HashSet<String>();
+        entryNames.add(MANIFEST_NAME);
+
+        try {
+            Input input = inputs.next();
+            while (input != null || !inFlight.isEmpty()) {
+                // Keep the pool busy, within the limit.
+                while (input != null && inFlight.size() < m_maxInFlight) {
+                    String entryName = uniqueEntryName(input.getName(), entryNames);
+                    inFlight.add(m_executor.submit(new TransformTask(input, entryName)));
+                    input = inputs.next();
+                }
+
+                Result result = waitFor(inFlight.remove());
+                if (result.m_xml != null) {
+                    zip.putNextEntry(new ZipEntry(result.getEntryName()));
+                    result.m_xml.writeTo(zip);
+                    zip.closeEntry();
+                    result.m_xml = null;
+                }
+                results.add(result);
+            }
+        } finally {
+            // Do not leave transforms running if the batch is abandoned.
+            for (Future<Result> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+
+        zip.putNextEntry(new ZipEntry(MANIFEST_NAME));
+        writeManifest(results, zip);
+        zip.closeEntry();
+        zip.finish();
+        zip.flush();
+
+        return results;
+    }
+
+    /**
+     * Wait for a transform to finish.
+     *
+     * @param future the transform.
+     * @return the result.
+     * @throws IOException if interrupted while waiting.
+     */
+    private static Result waitFor(Future<Result> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transforming batch", e);
+        } catch (ExecutionException e) {
+            // TransformTask catches all exceptions, so this is unexpected.
+            throw new IOException("Error transforming batch", e.getCause());
+        }
+    }
+
+    /**
+     * Write the manifest listing the status of each input.
+     *
+     * @param results the results.
+     * @param outputStream OutputStream to receive the manifest.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeManifest(List<Result> results, OutputStream outputStream)
+            throws IOException {
+        try {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                    .createXMLStreamWriter(outputStream, MANIFEST_ENCODING);
+            writer.writeStartDocument(MANIFEST_ENCODING, "1.0");
+            writer.writeStartElement("batch");
+            for (Result result : results) {
+                writer.writeStartElement("file");
+                writer.writeAttribute("name", result.getName());
+                writer.writeAttribute("status", result.getStatus());
+                if (result.isOk()) {
+                    writer.writeAttribute("output", result.getEntryName());
+                } else {
+                    writer.writeAttribute("message", result.getMessage());
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            // Closing the XMLStreamWriter does not close the underlying stream.
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Error writing batch manifest:", e);
+        }
+    }
+
+    /**
+     * Make the archive entry name for an input, from its base name with
+     * the extension replaced by '.xml'. Any directories are dropped, and a
+     * number is added where needed to keep names unique.
+     *
+     * @param name the input name.
+     * @param entryNames the entry names used so far, to which the new name is added.
+     * @return the entry name.
+     */
+    static String uniqueEntryName(String name, Set<String> entryNames) {
+        String baseName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        int dot = baseName.lastIndexOf('.');
+        if (dot > 0) {
+            baseName = baseName.substring(0, dot);
+        }
+        if (baseName.isEmpty()) {
+            baseName = "input";
+        }
+
+        String entryName = baseName + ".xml";
+        for (int i = 1; !entryNames.add(entryName); i++) {
+            entryName = baseName + "-" + i + ".xml";
+        }
+        return entryName;
+    }
+
+    /**
+     * Task transforming a single input.
+     */
+    private final class TransformTask implements Callable<Result> {
+
+        /** The input. */
+        private final Input m_input;
+
+        /** The archive entry name for the output. */
+        private final String m_entryName;
+
+        /**
+         * Instantiates a new task.
+         *
+         * @param input the input.
+         * @param entryName the archive entry name for the output.
+         */
+        private TransformTask(Input input, String entryName) {
+            m_input = input;
+            m_entryName = entryName;
+        }
+
+        @Override
+        public Result call() {
+            Result result = new Result(m_input.getName(), m_entryName);
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try {
+                InputStream inputStream = m_input.getInputStream();
+                try {
+                    m_processor.processInputFile(inputStream, xml);
+                } finally {
+                    inputStream.close();
+                }
+                result.m_xml = xml;
+            } catch (Exception e) {
+                String msg = e.getMessage();
+                if (e.getCause() != null && e.getCause().getMessage() != null) {
+                    msg = msg + ": " + e.getCause().getMessage();
+                }
+                s_Log.warning("Error processing batch input file " + m_input.getName() + ": " + msg);
+                result.m_message = msg == null ? e.toString() : msg;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Source of the inputs of a batch.
+     */
+    public interface Inputs {
+
+        /**
+         * Gets the next input.
+         *
+         * @return the next input, or null if there are no more.
+         * @throws IOException if the input cannot be read.
+         */
+        Input next() throws IOException;
+    }
+
+    /**
+     * A single input of a batch.
+     */
+    public interface Input {
+
+        /**
+         * Gets the name of the input, usually its file name.
+         *
+         * @return the name.
+         */
+        String getName();
+
+        /**
+         * Gets the contents of the input. This may be called on any thread.
+         *
+         * @return the contents, which are closed after use.
+         * @throws IOException if the input cannot be read.
+         */
+        InputStream getInputStream() throws IOException;
+    }
+
+    /**
+     * An input that could not be read, which fails when transformed so that
+     * it is listed in the manifest as an error.
+     */
+    private static final class FailedInput implements Input {
+
+        /** The input name. */
+        private final String m_name;
+
+        /** Why the input could not be read. */
+        private final String m_message;
+
+        /**
+         * Instantiates a new failed input.
+         *
+         * @param name the input name.
+         * @param message why the input could not be read.
+         */
+        private FailedInput(String name, String message) {
+            m_name = name;
+            m_message = message;
+        }
+
+        @Override
+        public String getName() {
+            return m_name;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException(m_message);
+        }
+    }
+
+    /**
+     * The inputs of a batch read from a ZIP archive, skipping directories.
+     *
+     * <p>Entries must be read in turn, so each is read fully into memory
+     * before it is handed to another thread. To bound memory use however
+     * the archive was made, an entry larger than the size limit is skipped
+     * without being kept, and entries beyond the count limit are not read.
+     * Either is listed in the manifest as an error.
+     */
+    public static class ZipInputs implements Inputs {
+
+        /** The archive. */
+        private final ZipInputStream m_zip;
+
+        /** Maximum size in bytes of an input. */
+        private final long m_maxInputBytes;
+
+        /** Maximum number of inputs. */
+        private final int m_maxInputs;
+
+        /** Number of inputs read so far. */
+        private int m_inputs;
+
+        /**
+         * Instantiates new inputs read from a ZIP archive.
+         *
+         * @param zip the archive.
+         * @param maxInputBytes maximum size in bytes of an input.
+         * @param maxInputs maximum number of inputs.
+         */
+        public ZipInputs(ZipInputStream zip, long maxInputBytes, int maxInputs) {
+            if (maxInputBytes < 0 || maxInputs < 0) {
+                throw new IllegalArgumentException(
+                        "Archive limits must not be negative: " + maxInputBytes + ", " + maxInputs);
+            }
+            m_zip = zip;
+            m_maxInputBytes = maxInputBytes;
+            m_maxInputs = maxInputs;
+        }
+
+        @Override
+        public Input next() throws IOException {
+            if (m_inputs > m_maxInputs) {
+                return null;
+            }
+            ZipEntry entry = m_zip.getNextEntry();
+            while (entry != null && entry.isDirectory()) {
+                entry = m_zip.getNextEntry();
+            }
+            if (entry == null) {
+                return null;
+            }
+
+            final String name = entry.getName();
+            if (++m_inputs > m_maxInputs) {
+                // Report the first entry over the limit, and stop reading.
+                return new FailedInput(name,
+                        "Archive has more than the limit of " + m_maxInputs + " input files");
+            }
+
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = m_zip.read(buffer)) != -1) {
+                if (contents.size() + count > m_maxInputBytes) {
+                    // The rest of the entry is skipped by the next getNextEntry.
+                    return new FailedInput(name,
+                            "Input file is larger than the limit of " + m_maxInputBytes + " bytes");
+                }
+                contents.write(buffer, 0, count);
+            }
+            final byte[] bytes = contents.toByteArray();
+
+            return new Input() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(bytes);
+                }
+            };
+        }
+    }
+
+    /**
+     * The result of transforming a single input.
+     */
+    public static class Result {
+
+        /** The input name. */
+        private final String m_name;
+
+        /** The archive entry name for the output. */
+        private final String m_entryName;
+
+        /** The XML, until written to the archive. */
+        private ByteArrayOutputStream m_xml;
+
+        /** The error message, if the transform failed. */
+        private String m_message;
+
+        /**
+         * Instantiates a new result.
+         *
+         * @param name the input name.
+         * @param entryName the archive entry name for the output.
+         */
+        private Result(String name, String entryName) {
+            m_name = name;
+            m_entryName = entryName;
+        }
+
+        /**
+         * Gets the input name.
+         *
+         * @return the input name.
+         */
+        public String getName() {
+            return m_name;
+        }
+
+        /**
+         * Gets the archive entry name for the output.
+         *
+         * @return the entry name.
+         */
+        public String getEntryName() {
+            return m_entryName;
+        }
+
+        /**
+         * Checks whether the transform succeeded.
+         *
+         * @return true, if successful.
+         */
+        public boolean isOk() {
+            return m_message == null;
+        }
+
+        /**
+         * Gets the status, either {@link BatchTransformer#STATUS_OK} or
+         * {@link BatchTransformer#STATUS_ERROR}.
+         *
+         * @return the status.
+         */
+        public String getStatus() {
+            return isOk() ? STATUS_OK : STATUS_ERROR;
+        }
+
+        /**
+         * Gets the error message.
+         *
+         * @return the error message, or null if the transform succeeded.
+         */
+        public String getMessage() {
+            return m_message;
+        }
+    }
+}
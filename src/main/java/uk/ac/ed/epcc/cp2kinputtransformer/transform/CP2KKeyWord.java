@@ -26,6 +26,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -40,17 +41,20 @@ import java.util.Map;
  */
 public class CP2KKeyWord {
 
-    /** The XML Schema element object. */
-    private XmlSchemaElement m_schemaElement;
+    /** The XML Schema element object, or null if built without a schema. */
+    private final XmlSchemaElement m_schemaElement;
 
     /** The sanitised name of the section as used in schema and XML. */
-    private String m_sanitisedName;
+    private final String m_sanitisedName;
+
+    /** The sanitised name encoded for XML output. */
+    private final byte[] m_xmlName;
 
     /** The true name as used in CP2K input files. */
-    private String m_cp2kName;
+    private final String m_cp2kName;
 
     /** The list of aliases of this keyword. */
-    private List<String> m_aliases;
+    private final List<String> m_aliases;
 
     /** The name of the alias node in the schema. */
     private static final String ALIAS_LOCALNAME = "alias";
@@ -64,22 +68,40 @@ public class CP2KKeyWord {
         m_schemaElement = schemaElement;
         // Sanitised name is the name of the element in the schema.
         m_sanitisedName = m_schemaElement.getName();
+        m_xmlName = XmlEmitter.encode(m_sanitisedName);
 
         // Get the CP2K name from the trueName attribute.
+        String cp2kName = null;
         Map<Object, Object> metaInfoMap = schemaElement.getMetaInfoMap();
         if (metaInfoMap != null) {
             LibhpcTrueNameCustomAttribute customAttrib =
                     (LibhpcTrueNameCustomAttribute) metaInfoMap.get(
                             LibhpcTrueNameCustomAttribute.LIBHPC_TRUE_NAME_CUSTOM_ATTRIBUTE_QNAME);
             if (customAttrib != null) {
-                m_cp2kName = customAttrib.getTrueName();
+                cp2kName = customAttrib.getTrueName();
             }
         } else {
-            m_cp2kName = m_sanitisedName;
+            cp2kName = m_sanitisedName;
         }
+        m_cp2kName = cp2kName;
 
         // Populate the list of aliases
-        populateAliases();
+        m_aliases = Collections.unmodifiableList(populateAliases());
+    }
+
+    /**
+     * Instantiates a new CP2K keyword with known names, without a schema.
+     *
+     * @param sanitisedName the sanitised name as used in schema and XML.
+     * @param cp2kName the true name as used in CP2K input files.
+     * @param aliases the aliases.
+     */
+    public CP2KKeyWord(String sanitisedName, String cp2kName, List<String> aliases) {
+        m_schemaElement = null;
+        m_sanitisedName = sanitisedName;
+        m_xmlName = XmlEmitter.encode(m_sanitisedName);
+        m_cp2kName = cp2kName;
+        m_aliases = Collections.unmodifiableList(new ArrayList<String>(aliases));
     }
 
     /**
@@ -91,6 +113,15 @@ public class CP2KKeyWord {
         return m_sanitisedName;
     }
 
+    /**
+     * Gets the sanitised name encoded for XML output.
+     *
+     * @return the encoded name, which must not be modified.
+     */
+    byte[] getXmlName() {
+        return m_xmlName;
+    }
+
     /**
      * Gets the true name for this section as used by CP2K.
      *
@@ -103,7 +134,7 @@ public class CP2KKeyWord {
     /**
      * Gets the schema element.
      *
-     * @return the schema element.
+     * @return the schema element, or null if built without a schema.
      */
     public XmlSchemaElement getSchemaElement() {
         return m_schemaElement;
@@ -112,16 +143,27 @@ public class CP2KKeyWord {
     /**
      * Gets the list of aliases.
      *
-     * @return the List of aliases.
+     * @return the unmodifiable List of aliases.
      */
     public List<String> getAliases() {
         return m_aliases;
     }
 
     /**
-     * Returns the aliases for this keyword.
+     * Make a copy of this keyword without the schema.
+     *
+     * @return the copy.
+     */
+    public CP2KKeyWord withoutSchema() {
+        return new CP2KKeyWord(m_sanitisedName, m_cp2kName, m_aliases);
+    }
+
+    /**
+     * Reads the aliases for this keyword from the schema.
+     *
+     * @return the List of aliases.
      */
-    private void populateAliases() {
+    private List<String> populateAliases() {
 
         List<String> aliases = new ArrayList<String>();
 
@@ -144,6 +186,6 @@ public class CP2KKeyWord {
             }
         }
 
-        m_aliases = aliases;
+        return aliases;
     }
 }
@@ -25,10 +25,14 @@ import org.apache.ws.commons.schema.XmlSchemaSequence;
 import org.apache.ws.commons.schema.XmlSchemaSequenceMember;
 import org.apache.ws.commons.schema.XmlSchemaType;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -39,7 +43,8 @@ import java.util.logging.Logger;
  * compliant way in schema and XML representations of an input
  * file.
  *
- * <p>It may contain keywords, and sections.
+ * <p>It may contain keywords, and sections. Keywords and sub-sections
+ * are looked up by name ignoring the case of ASCII letters, as CP2K does.
  *
  * @author Jeremy Nowell
  */
@@ -47,27 +52,32 @@ public class CP2KSection {
     /** Logger. */
     private static final Logger s_Log = Logger.getLogger(CP2KSection.class.getName());
 
-    /** The XML Schema element object. */
-    private XmlSchemaElement m_schemaElement;
+    /** The XML Schema element object, or null if built without a schema. */
+    private final XmlSchemaElement m_schemaElement;
 
     /** The sanitised name of the section as used in schema and XML. */
-    private String m_sanitisedName;
+    private final String m_sanitisedName;
 
-    /** The true name as used in CP2K input files. */
-    private String m_cp2kName;
-
-    /** The sub-sections below this section. */
-    private Map<String, CP2KSection> m_subSections;
+    /** The sanitised name encoded for XML output. */
+    private final byte[] m_xmlName;
 
-    /** The key words below this section. */
-    private Map<String, CP2KKeyWord> m_keyWords;
+    /** The true name as used in CP2K input files. */
+    private final String m_cp2kName;
 
     /**
-     * Whether the contents have been populated.
+     * The sub-sections and keywords of this section.
      * To save unnecessary schema processing the section contents are only
-     * populated on-demand when required.
+     * populated on-demand when required. Once populated the contents never
+     * change, so they are safely published through this volatile field and
+     * may then be read by any thread without locking.
+     */
+    private volatile Contents m_contents;
+
+    /**
+     * The section this is a copy of without the schema, until the contents
+     * of this copy are populated from it, else null.
      */
-    private boolean m_contentsPopulated = false;
+    private volatile CP2KSection m_source;
 
     /**
      * Instantiates a new CP2K section.
@@ -77,30 +87,68 @@ public class CP2KSection {
     public CP2KSection(XmlSchemaElement schemaElement) {
         m_schemaElement = schemaElement;
         m_sanitisedName = m_schemaElement.getName();
-        s_Log.fine("New section: " + m_sanitisedName);
+        m_xmlName = XmlEmitter.encode(m_sanitisedName);
 
         Map<Object, Object> metaInfoMap = schemaElement.getMetaInfoMap();
 
         // Get the CP2K defined name from the schema.
+        String cp2kName = m_sanitisedName;
         if (metaInfoMap != null) {
             LibhpcTrueNameCustomAttribute customAttrib =
                     (LibhpcTrueNameCustomAttribute) metaInfoMap.get(
                             LibhpcTrueNameCustomAttribute.LIBHPC_TRUE_NAME_CUSTOM_ATTRIBUTE_QNAME);
 
             if (customAttrib != null) {
-                m_cp2kName = customAttrib.getTrueName();
-            } else {
-                m_cp2kName = m_sanitisedName;
+                cp2kName = customAttrib.getTrueName();
             }
-        } else {
-            m_cp2kName = m_sanitisedName;
         }
+        m_cp2kName = cp2kName;
 
-        s_Log.fine("CP2K name: " + m_cp2kName);
+        if (s_Log.isLoggable(Level.FINE)) {
+            s_Log.fine("New section: " + m_sanitisedName + ", CP2K name: " + m_cp2kName);
+        }
+    }
+
+    /**
+     * Instantiates a new CP2K section with known contents, without a schema.
+     *
+     * @param sanitisedName the sanitised name as used in schema and XML.
+     * @param cp2kName the true name as used in CP2K input files.
+     * @param subSections the sub-sections, in schema order.
+     * @param keyWords the keywords, in schema order.
+     */
+    public CP2KSection(
+            String sanitisedName,
+            String cp2kName,
+            List<CP2KSection> subSections,
+            List<CP2KKeyWord> keyWords) {
+        m_schemaElement = null;
+        m_sanitisedName = sanitisedName;
+        m_xmlName = XmlEmitter.encode(m_sanitisedName);
+        m_cp2kName = cp2kName;
+
+        ContentsBuilder contents = new ContentsBuilder();
+        for (CP2KSection subSection : subSections) {
+            contents.addSubSection(subSection);
+        }
+        for (CP2KKeyWord keyWord : keyWords) {
+            contents.addKeyWord(keyWord);
+        }
+        m_contents = contents.seal();
+    }
 
-        // Create maps for sections and keywords contained in this section.
-        m_subSections = new LinkedHashMap<String, CP2KSection>();
-        m_keyWords = new LinkedHashMap<String, CP2KKeyWord>();
+    /**
+     * Instantiates a copy of a section without the schema, whose contents
+     * are copied from the section on first use.
+     *
+     * @param source the section to copy.
+     */
+    private CP2KSection(CP2KSection source) {
+        m_schemaElement = null;
+        m_sanitisedName = source.m_sanitisedName;
+        m_xmlName = source.m_xmlName;
+        m_cp2kName = source.m_cp2kName;
+        m_source = source;
     }
 
     /**
@@ -112,6 +160,15 @@ public class CP2KSection {
         return m_sanitisedName;
     }
 
+    /**
+     * Gets the sanitised name encoded for XML output.
+     *
+     * @return the encoded name, which must not be modified.
+     */
+    byte[] getXmlName() {
+        return m_xmlName;
+    }
+
     /**
      * Gets the true name for this section as used by CP2K.
      *
@@ -124,7 +181,7 @@ public class CP2KSection {
     /**
      * Gets the schema element.
      *
-     * @return the schema element.
+     * @return the schema element, or null if built without a schema.
      */
     public XmlSchemaElement getSchemaElement() {
         return m_schemaElement;
@@ -137,14 +194,7 @@ public class CP2KSection {
      * @return true, if sub-section present.
      */
     public boolean hasSubSection(String subSectionName) {
-        if (!(m_contentsPopulated)) {
-            populateAllowedContents();
-        }
-
-        if (m_subSections.containsKey(subSectionName)) {
-            return true;
-        }
-        return false;
+        return getContents().m_names.getSection(subSectionName) != null;
     }
 
     /**
@@ -154,14 +204,7 @@ public class CP2KSection {
      * @return true, if keyword present.
      */
     public boolean hasKeyWord(String keyWord) {
-        if (!(m_contentsPopulated)) {
-            populateAllowedContents();
-        }
-
-        if (m_keyWords.containsKey(keyWord)) {
-            return true;
-        }
-        return false;
+        return getContents().m_names.getKeyWord(keyWord) != null;
     }
 
     /**
@@ -171,11 +214,7 @@ public class CP2KSection {
      * @return the sub-section.
      */
     public CP2KSection getSubSection(String subSectionName) {
-        if (!(m_contentsPopulated)) {
-            populateAllowedContents();
-        }
-
-        return m_subSections.get(subSectionName);
+        return getContents().m_names.getSection(subSectionName);
     }
 
     /**
@@ -185,19 +224,193 @@ public class CP2KSection {
      * @return the keyword.
      */
     public CP2KKeyWord getKeyWord(String keyWordName) {
-        if (!(m_contentsPopulated)) {
-            populateAllowedContents();
+        return getContents().m_names.getKeyWord(keyWordName);
+    }
+
+    /**
+     * Finds the sub-section named by a slice of characters, such as part
+     * of a line of input, without creating a String.
+     *
+     * @param chars characters containing the sub-section name, as used by CP2K.
+     * @param start start offset of the name.
+     * @param end end offset of the name.
+     * @return the sub-section, or null if none.
+     */
+    public CP2KSection findSubSection(CharSequence chars, int start, int end) {
+        NameTable names = getContents().m_names;
+        return names.getSection(names.find(chars, start, end));
+    }
+
+    /**
+     * Finds the keyword named by a slice of characters, such as part of a
+     * line of input, without creating a String.
+     *
+     * @param chars characters containing the keyword name or alias, as used by CP2K.
+     * @param start start offset of the name.
+     * @param end end offset of the name.
+     * @return the keyword, or null if none.
+     */
+    public CP2KKeyWord findKeyWord(CharSequence chars, int start, int end) {
+        NameTable names = getContents().m_names;
+        return names.getKeyWord(names.find(chars, start, end));
+    }
+
+    /**
+     * Checks whether a keyword might be found for a line of input starting
+     * with a token, so the line cannot be taken as default keyword without
+     * resolving its keyword name. A keyword name is the whole token or a
+     * prefix of it, or the line has no keyword name.
+     *
+     * @param chars characters containing the first token of the line.
+     * @param start start offset of the token.
+     * @param end end offset of the token, the same as the start if none.
+     * @return true, if a keyword might be found.
+     */
+    boolean hasKeyWordPrefix(CharSequence chars, int start, int end) {
+        return getContents().m_names.hasKeyWordPrefix(chars, start, end);
+    }
+
+    /**
+     * Checks whether the body of this section is expected to be mostly rows
+     * of default keyword, such as the atoms of COORD or VELOCITY. The schema
+     * does not say which sections take default keywords, so all sections
+     * with no sub-sections are taken as holding rows.
+     *
+     * @return true, if the section holds rows.
+     */
+    boolean hasRows() {
+        return getContents().m_subSectionList.isEmpty();
+    }
+
+    /**
+     * Gets all sub-sections of this section, in schema order.
+     *
+     * @return unmodifiable collection of sub-sections.
+     */
+    public Collection<CP2KSection> getSubSections() {
+        return getContents().m_subSectionList;
+    }
+
+    /**
+     * Gets all keywords of this section, in schema order. Each keyword
+     * appears once, regardless of how many aliases it has.
+     *
+     * @return unmodifiable list of keywords.
+     */
+    public List<CP2KKeyWord> getKeyWords() {
+        return getContents().m_keyWordList;
+    }
+
+    /**
+     * Checks whether the contents of this section have been populated.
+     *
+     * @return true, if populated.
+     */
+    public boolean isPopulated() {
+        return m_contents != null;
+    }
+
+    /**
+     * Checks whether this section still refers to the schema, either through
+     * its schema element or through the section it is a copy of.
+     *
+     * @return true, if the schema is retained.
+     */
+    boolean retainsSchema() {
+        return m_schemaElement != null || m_source != null;
+    }
+
+    /**
+     * Gets the number of slots in the name lookup table of this section,
+     * populating the contents if required.
+     *
+     * @return the number of slots, 0 if the section has no contents.
+     */
+    int getNameTableCapacity() {
+        return getContents().m_names.getCapacity();
+    }
+
+    /**
+     * Populate the contents of this section and all sections below it,
+     * so that no further schema processing is needed on later lookups.
+     *
+     * @return the number of sections in this tree, including this one.
+     */
+    public int populateAllContents() {
+        int count = 1;
+        for (CP2KSection subSection : getSubSections()) {
+            count += subSection.populateAllContents();
         }
+        return count;
+    }
 
-        return m_keyWords.get(keyWordName);
+    /**
+     * Make a copy of this section tree holding only the names needed to
+     * transform input files, without the schema. The copy is made on demand,
+     * like the contents of the original: each section of the copy refers to
+     * the original section until its contents are first used, then copies
+     * them. Once every section of the copy has been used, the schema objects
+     * behind the original tree can be garbage collected.
+     *
+     * @return the copy.
+     */
+    public CP2KSection withoutSchema() {
+        return new CP2KSection(this);
+    }
+
+    /**
+     * Gets the contents of this section, populating them on first use.
+     * Uses double-checked locking on the volatile contents field, so only
+     * the first use of a section takes a lock.
+     *
+     * @return the contents.
+     */
+    private Contents getContents() {
+        Contents contents = m_contents;
+        if (contents == null) {
+            synchronized (this) {
+                contents = m_contents;
+                if (contents == null) {
+                    CP2KSection source = m_source;
+                    contents = source != null ? copyContents(source) : populateAllowedContents();
+                    m_contents = contents;
+                    m_source = null;
+                }
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Copy the contents of a section without the schema.
+     *
+     * @param source the section to copy.
+     * @return the copied contents.
+     */
+    private static Contents copyContents(CP2KSection source) {
+        ContentsBuilder contents = new ContentsBuilder();
+        for (CP2KSection subSection : source.getSubSections()) {
+            contents.addSubSection(subSection.withoutSchema());
+        }
+        for (CP2KKeyWord keyWord : source.getKeyWords()) {
+            contents.addKeyWord(keyWord.getSchemaElement() == null ? keyWord : keyWord.withoutSchema());
+        }
+        return contents.seal();
     }
 
     /**
      * Populate allowed contents of this section - the sub-sections
      * and keywords.
+     *
+     * @return the populated contents.
      */
-    private void populateAllowedContents() {
-        s_Log.fine("populateAllowedContents");
+    private Contents populateAllowedContents() {
+        boolean fine = s_Log.isLoggable(Level.FINE);
+        if (fine) {
+            s_Log.fine("populateAllowedContents: " + m_sanitisedName);
+        }
+
+        ContentsBuilder contents = new ContentsBuilder();
 
         XmlSchemaParticle particle =
                 ((XmlSchemaComplexType) m_schemaElement.getSchemaType()).getParticle();
@@ -210,46 +423,119 @@ public class CP2KSection {
         while (it.hasNext()) {
             // Get
             XmlSchemaElement childSchemaElement = (XmlSchemaElement) it.next();
-            String childName = childSchemaElement.getName();
-            s_Log.fine("Got child schema element: " + childName);
             XmlSchemaType childType = childSchemaElement.getSchemaType();
-            s_Log.fine("Got child type: " + childType);
             // ComplexType means a section, else a keyword
             if (childType instanceof XmlSchemaComplexType) {
-                s_Log.fine("Element is section");
-                CP2KSection subSection = new CP2KSection(childSchemaElement);
-                this.addSubSection(subSection);
+                if (fine) {
+                    s_Log.fine("Got child section: " + childSchemaElement.getName());
+                }
+                contents.addSubSection(new CP2KSection(childSchemaElement));
             } else {
-                s_Log.fine("Element is keyword");
-                CP2KKeyWord keyWord = new CP2KKeyWord(childSchemaElement);
-                this.addKeyWord(keyWord);
+                if (fine) {
+                    s_Log.fine("Got child keyword: " + childSchemaElement.getName()
+                            + ", type: " + childType);
+                }
+                contents.addKeyWord(new CP2KKeyWord(childSchemaElement));
             }
         }
 
-        m_contentsPopulated = true;
-
-        return;
+        return contents.seal();
     }
 
     /**
-     * Adds a sub-section to this section.
-     *
-     * @param subSection the sub-section to add.
+     * The contents of a section, built by a {@link ContentsBuilder}. Contents
+     * never change once built.
      */
-    private void addSubSection(CP2KSection subSection) {
-        m_subSections.put(subSection.getCp2kName(), subSection);
+    private static final class Contents {
+
+        /** The sub-sections below this section. */
+        private final List<CP2KSection> m_subSectionList;
+
+        /** The distinct key words below this section. */
+        private final List<CP2KKeyWord> m_keyWordList;
+
+        /** Lookup table of keyword and sub-section names. */
+        private final NameTable m_names;
+
+        /**
+         * Instantiates new contents.
+         *
+         * @param subSectionList the unmodifiable list of sub-sections.
+         * @param keyWordList the unmodifiable list of distinct keywords.
+         * @param names the lookup table of keyword and sub-section names.
+         */
+        private Contents(
+                List<CP2KSection> subSectionList, List<CP2KKeyWord> keyWordList, NameTable names) {
+            m_subSectionList = subSectionList;
+            m_keyWordList = keyWordList;
+            m_names = names;
+        }
     }
 
     /**
-     * Adds a keyword to this section.
-     *
-     * @param keyWord the keyword to add.
+     * Builds the contents of a section, by adding sub-sections and keywords,
+     * then sealing them.
      */
-    private void addKeyWord(CP2KKeyWord keyWord) {
-        m_keyWords.put(keyWord.getCp2kName(), keyWord);
-        // Also add aliases.
-        for (String alias : keyWord.getAliases()) {
-            m_keyWords.put(alias, keyWord);
+    private static final class ContentsBuilder {
+
+        /** The sub-sections below this section, by name. */
+        private final Map<String, CP2KSection> m_subSections = new LinkedHashMap<String, CP2KSection>();
+
+        /** The key words below this section, including aliases. */
+        private final Map<String, CP2KKeyWord> m_keyWords = new LinkedHashMap<String, CP2KKeyWord>();
+
+        /** The distinct key words below this section. */
+        private final List<CP2KKeyWord> m_keyWordList = new ArrayList<CP2KKeyWord>();
+
+        /**
+         * Add a sub-section.
+         *
+         * @param subSection the sub-section.
+         */
+        private void addSubSection(CP2KSection subSection) {
+            m_subSections.put(subSection.getCp2kName(), subSection);
+        }
+
+        /**
+         * Add a keyword, under its name and its aliases.
+         *
+         * @param keyWord the keyword.
+         */
+        private void addKeyWord(CP2KKeyWord keyWord) {
+            m_keyWordList.add(keyWord);
+            m_keyWords.put(keyWord.getCp2kName(), keyWord);
+            // Also add aliases.
+            for (String alias : keyWord.getAliases()) {
+                m_keyWords.put(alias, keyWord);
+            }
+        }
+
+        /**
+         * Build the unmodifiable contents, compiling the names into a lookup
+         * table. The maps used to build them are not kept.
+         *
+         * @return the contents.
+         */
+        private Contents seal() {
+            return new Contents(
+                    unmodifiableList(new ArrayList<CP2KSection>(m_subSections.values())),
+                    unmodifiableList(new ArrayList<CP2KKeyWord>(m_keyWordList)),
+                    new NameTable(m_keyWords, m_subSections));
+        }
+
+        /**
+         * Make an unmodifiable copy of a list, sharing the empty list.
+         *
+         * @param list the list, which is not used elsewhere.
+         * @param <T> the type of list elements.
+         * @return the unmodifiable list.
+         */
+        private static <T> List<T> unmodifiableList(ArrayList<T> list) {
+            if (list.isEmpty()) {
+                return Collections.emptyList();
+            }
+            list.trimToSize();
+            return Collections.unmodifiableList(list);
         }
     }
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+/**
+ * Hand-written lexer for single lines of a CP2K input file.
+ *
+ * <p>A line is classified in a single scan, and the section name and
+ * parameters, or keyword name, value and unit, are recorded as offsets
+ * into the line. Strings are only created when asked for. One lexer may be
+ * reused for any number of lines, but is not thread-safe.
+ *
+ * <p>The results are the same as those of the regular expressions
+ * previously used to process input lines:
+ * <pre>
+ *   comment         ^\s*#.*
+ *   section start   ^\s*&amp;(\S+)\s?(.+)?
+ *   section end     ^\s*&amp;END.*
+ *   keyword value   ^\s*(\S+)\s*(?:\[.+\])?([\w\.\-\+\s]*)(?:\[.+\]\s*)?$
+ *   bare keyword    ^\s*(\S+)\s*$
+ *   keyword unit    ^\s*(\S+).+\[(\S+)\].*
+ * </pre>
+ * except that the Unicode line separators, which cannot appear in CP2K
+ * input, are treated as ordinary characters, and 'END' is matched
+ * ignoring case, as CP2K does.
+ *
+ * @author Jeremy Nowell
+ */
+public class LineLexer {
+
+    /**
+     * The type of a line.
+     */
+    public enum LineType {
+        /** Section end, '&amp;END'. */
+        SECTION_END,
+        /** Comment, starting with '#'. */
+        COMMENT,
+        /** Section start, '&amp;' and section name. */
+        SECTION_START,
+        /** Anything else, a keyword or default keyword line. */
+        KEYWORD
+    }
+
+    /** Marks an offset that has not been found. */
+    private static final int NONE = -1;
+
+    /** Marks an offset that has not yet been scanned for. */
+    private static final int UNSCANNED = -2;
+
+    /** The current line. */
+    private CharSequence m_line;
+
+    /** The length of the current line. */
+    private int m_length;
+
+    /** The type of the current line. */
+    private LineType m_type;
+
+    /** Offset of the first non-whitespace character, or the length if none. */
+    private int m_firstChar;
+
+    /** End offset of the first whitespace delimited token. */
+    private int m_firstTokenEnd;
+
+    /** Start offset of the section name. */
+    private int m_sectionNameStart;
+
+    /** End offset of the section name. */
+    private int m_sectionNameEnd;
+
+    /** Start offset of the section parameters. */
+    private int m_sectionParametersStart;
+
+    /** Start offset of the keyword name. */
+    private int m_keywordNameStart;
+
+    /** End offset of the keyword name. */
+    private int m_keywordNameEnd;
+
+    /** Start offset of the trimmed keyword value. */
+    private int m_keywordValueStart;
+
+    /** End offset of the trimmed keyword value. */
+    private int m_keywordValueEnd;
+
+    /** Start offset of the keyword unit. */
+    private int m_unitStart;
+
+    /** End offset of the keyword unit. */
+    private int m_unitEnd;
+
+    /**
+     * Classifies a line, ready for its parts to be read.
+     *
+     * @param line the line, without line terminator.
+     * @return the type of line.
+     */
+    public LineType lex(CharSequence line) {
+        m_line = line;
+        m_length = line.length();
+        m_keywordNameStart = UNSCANNED;
+        m_unitStart = UNSCANNED;
+        m_sectionNameStart = NONE;
+        m_sectionParametersStart = NONE;
+
+        int first = skipWhitespace(0);
+        m_firstChar = first;
+        m_firstTokenEnd = skipToken(first);
+
+        if (first < m_length && line.charAt(first) == '&' && m_firstTokenEnd > first + 1) {
+            // Section start; section end lines also match.
+            m_sectionNameStart = first + 1;
+            m_sectionNameEnd = m_firstTokenEnd;
+            // One separating whitespace character is not part of the parameters.
+            if (m_firstTokenEnd + 1 < m_length) {
+                m_sectionParametersStart = m_firstTokenEnd + 1;
+            }
+            if (regionMatches(first + 1, "END")) {
+                m_type = LineType.SECTION_END;
+            } else {
+                m_type = LineType.SECTION_START;
+            }
+        } else if (first < m_length && line.charAt(first) == '#') {
+            m_type = LineType.COMMENT;
+        } else {
+            m_type = LineType.KEYWORD;
+        }
+        return m_type;
+    }
+
+    /**
+     * Gets the type of the current line.
+     *
+     * @return the type of line.
+     */
+    public LineType getType() {
+        return m_type;
+    }
+
+    /**
+     * Checks whether the current line has the form of a section start.
+     * This is true for section end lines as well as section start lines.
+     *
+     * @return true, if the line has a section name.
+     */
+    public boolean hasSectionName() {
+        return m_sectionNameStart != NONE;
+    }
+
+    /**
+     * Gets the start offset of the section name.
+     *
+     * @return the offset, or -1 if no section name.
+     */
+    public int getSectionNameStart() {
+        return m_sectionNameStart;
+    }
+
+    /**
+     * Gets the end offset of the section name.
+     *
+     * @return the offset, or -1 if no section name.
+     */
+    public int getSectionNameEnd() {
+        return hasSectionName() ? m_sectionNameEnd : NONE;
+    }
+
+    /**
+     * Gets the section name.
+     *
+     * @return the section name, or null if the line has no section name.
+     */
+    public String getSectionName() {
+        return hasSectionName() ? substring(m_sectionNameStart, m_sectionNameEnd) : null;
+    }
+
+    /**
+     * Gets the section parameters, everything after the section name
+     * and one whitespace character.
+     *
+     * @return the section parameters, or null if there are none.
+     */
+    public String getSectionParameters() {
+        if (m_sectionParametersStart == NONE) {
+            return null;
+        }
+        return substring(m_sectionParametersStart, m_length);
+    }
+
+    /**
+     * Checks whether the current line has a keyword name.
+     *
+     * @return true, if the line has a keyword name.
+     */
+    public boolean hasKeywordName() {
+        scanKeyword();
+        return m_keywordNameStart != NONE;
+    }
+
+    /**
+     * Gets the start offset of the keyword name.
+     *
+     * @return the offset, or -1 if no keyword name.
+     */
+    public int getKeywordNameStart() {
+        scanKeyword();
+        return m_keywordNameStart;
+    }
+
+    /**
+     * Gets the end offset of the keyword name.
+     *
+     * @return the offset, or -1 if no keyword name.
+     */
+    public int getKeywordNameEnd() {
+        return hasKeywordName() ? m_keywordNameEnd : NONE;
+    }
+
+    /**
+     * Gets the keyword name.
+     *
+     * @return the keyword name, or null if the line has no keyword name.
+     */
+    public String getKeywordName() {
+        return hasKeywordName() ? substring(m_keywordNameStart, m_keywordNameEnd) : null;
+    }
+
+    /**
+     * Checks whether the current line has a keyword value. A keyword
+     * value may be empty.
+     *
+     * @return true, if the line has a keyword value.
+     */
+    public boolean hasKeywordValue() {
+        scanKeyword();
+        return m_keywordValueStart != NONE;
+    }
+
+    /**
+     * Gets the start offset of the trimmed keyword value.
+     *
+     * @return the offset, or -1 if no keyword value.
+     */
+    public int getKeywordValueStart() {
+        scanKeyword();
+        return m_keywordValueStart;
+    }
+
+    /**
+     * Gets the end offset of the trimmed keyword value.
+     *
+     * @return the offset, or -1 if no keyword value.
+     */
+    public int getKeywordValueEnd() {
+        return hasKeywordValue() ? m_keywordValueEnd : NONE;
+    }
+
+    /**
+     * Gets the trimmed keyword value.
+     *
+     * @return the keyword value, or null if the line has no keyword value.
+     */
+    public String getKeywordValue() {
+        return hasKeywordValue() ? substring(m_keywordValueStart, m_keywordValueEnd) : null;
+    }
+
+    /**
+     * Checks whether the current line has a keyword unit.
+     *
+     * @return true, if the line has a keyword unit.
+     */
+    public boolean hasKeywordUnit() {
+        scanUnit();
+        return m_unitStart != NONE;
+    }
+
+    /**
+     * Gets the keyword unit, the contents of the last '[unit]' on the line.
+     *
+     * @return the unit, or null if the line has no unit.
+     */
+    public String getKeywordUnit() {
+        return hasKeywordUnit() ? substring(m_unitStart, m_unitEnd) : null;
+    }
+
+    /**
+     * Finds the keyword name and value, if not already done.
+     */
+    private void scanKeyword() {
+        if (m_keywordNameStart != UNSCANNED) {
+            return;
+        }
+        m_keywordNameStart = NONE;
+        m_keywordValueStart = NONE;
+
+        int first = m_firstChar;
+        int tokenEnd = m_firstTokenEnd;
+        if (first == m_length) {
+            return;
+        }
+
+        if (skipWhitespace(tokenEnd) == m_length) {
+            // Bare keyword: a single token, so no value.
+            m_keywordNameStart = first;
+            m_keywordNameEnd = tokenEnd;
+            return;
+        }
+
+        // Keyword and value. Try the same alternatives, in the same order,
+        // as the backtracking regular expression: the longest name first,
+        // then an optional leading [unit] spanning as far as possible.
+        for (int nameEnd = tokenEnd; nameEnd > first; nameEnd--) {
+            int pos = (nameEnd == tokenEnd) ? skipWhitespace(nameEnd) : nameEnd;
+
+            if (pos < m_length && m_line.charAt(pos) == '[') {
+                for (int close = lastIndexOf(']', m_length - 1); close >= pos + 2;
+                        close = lastIndexOf(']', close - 1)) {
+                    int valueEnd = matchValue(close + 1);
+                    if (valueEnd != NONE) {
+                        setKeyword(first, nameEnd, close + 1, valueEnd);
+                        return;
+                    }
+                }
+            }
+
+            int valueEnd = matchValue(pos);
+            if (valueEnd != NONE) {
+                setKeyword(first, nameEnd, pos, valueEnd);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Matches a value, made of word characters, '.', '-', '+' and whitespace,
+     * optionally followed by a trailing '[unit]' at the end of the line.
+     *
+     * @param start offset to start matching from.
+     * @return the end offset of the value, or -1 if there is no match.
+     */
+    private int matchValue(int start) {
+        int end = start;
+        while (end < m_length && isValueChar(m_line.charAt(end))) {
+            end++;
+        }
+        if (end == m_length) {
+            return end;
+        }
+        if (m_line.charAt(end) == '[') {
+            int close = trimEnd(end, m_length) - 1;
+            if (close >= end + 2 && m_line.charAt(close) == ']') {
+                return end;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Records the keyword name and trimmed value offsets.
+     *
+     * @param nameStart start of the name.
+     * @param nameEnd end of the name.
+     * @param valueStart start of the value.
+     * @param valueEnd end of the value.
+     */
+    private void setKeyword(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        m_keywordNameStart = nameStart;
+        m_keywordNameEnd = nameEnd;
+        m_keywordValueStart = skipWhitespace(valueStart);
+        m_keywordValueEnd = trimEnd(m_keywordValueStart, valueEnd);
+    }
+
+    /**
+     * Finds the keyword unit, if not already done. The unit is taken from
+     * the last '[' after the first two characters of the keyword which is
+     * followed by a non-whitespace run containing a later ']'.
+     */
+    private void scanUnit() {
+        if (m_unitStart != UNSCANNED) {
+            return;
+        }
+        m_unitStart = NONE;
+
+        for (int open = lastIndexOf('[', m_length - 1); open >= m_firstChar + 2;
+                open = lastIndexOf('[', open - 1)) {
+            int runEnd = skipToken(open + 1);
+            int close = lastIndexOf(']', runEnd - 1);
+            if (close >= open + 2) {
+                m_unitStart = open + 1;
+                m_unitEnd = close;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Skips whitespace.
+     *
+     * @param from offset to start from.
+     * @return offset of the next non-whitespace character, or the line length.
+     */
+    private int skipWhitespace(int from) {
+        int i = from;
+        while (i < m_length && isWhitespace(m_line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skips non-whitespace.
+     *
+     * @param from offset to start from.
+     * @return offset of the next whitespace character, or the line length.
+     */
+    private int skipToken(int from) {
+        int i = from;
+        while (i < m_length && !isWhitespace(m_line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the end of a region with trailing whitespace removed.
+     *
+     * @param start start of the region.
+     * @param end end of the region.
+     * @return the end of the trimmed region, not less than start.
+     */
+    private int trimEnd(int start, int end) {
+        int i = end;
+        while (i > start && isWhitespace(m_line.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the last occurrence of a character at or before an offset.
+     *
+     * @param c the character.
+     * @param from the offset to search back from.
+     * @return the offset, or -1 if not found.
+     */
+    private int lastIndexOf(char c, int from) {
+        for (int i = from; i >= 0; i--) {
+            if (m_line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Checks whether the line contains some text at an offset, ignoring
+     * the case of ASCII letters.
+     *
+     * @param offset the offset.
+     * @param text the text to look for.
+     * @return true, if the text is present.
+     */
+    private boolean regionMatches(int offset, String text) {
+        if (offset + text.length() > m_length) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (NameTable.foldCase(m_line.charAt(offset + i)) != NameTable.foldCase(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets part of the line as a String.
+     *
+     * @param start the start offset.
+     * @param end the end offset.
+     * @return the String.
+     */
+    private String substring(int start, int end) {
+        return m_line.subSequence(start, end).toString();
+    }
+
+    /**
+     * Checks for whitespace, as matched by '\s' in a regular expression.
+     *
+     * @param c the character.
+     * @return true, if whitespace.
+     */
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Checks for characters allowed in a keyword value: word characters,
+     * '.', '-', '+' and whitespace.
+     *
+     * @param c the character.
+     * @return true, if allowed.
+     */
+    private static boolean isValueChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == '.' || c == '-' || c == '+' || isWhitespace(c);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the lines of a CP2K input file into a reusable buffer.
+ *
+ * <p>Unlike {@link java.io.BufferedReader#readLine()} no String is created
+ * for each line: the reader is itself the current line, as a
+ * {@link CharSequence}, and its characters may be read straight from the
+ * buffer. The current line is only valid until the next line is read.
+ * Lines are ended by '\n', '\r' or "\r\n", as by BufferedReader, and a
+ * line may be of any length.
+ *
+ * @author Jeremy Nowell
+ */
+public class LineReader implements CharSequence {
+
+    /** The initial size of the buffer. */
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    /** The input, or null if reading an array. */
+    private final Reader m_reader;
+
+    /** The buffer of characters read. */
+    private char[] m_buffer = new char[INITIAL_BUFFER_SIZE];
+
+    /** Offset of the first character in the buffer not yet in a line. */
+    private int m_next;
+
+    /** Offset of the end of the characters in the buffer. */
+    private int m_end;
+
+    /** Offset of the current line in the buffer. */
+    private int m_lineStart;
+
+    /** Length of the current line. */
+    private int m_lineLength;
+
+    /** Whether the last line ended with '\r', so a following '\n' is skipped. */
+    private boolean m_skipLineFeed;
+
+    /** Whether the end of the input has been reached. */
+    private boolean m_endOfInput;
+
+    /**
+     * Instantiates a new line reader.
+     *
+     * @param reader the input, which is not closed.
+     */
+    public LineReader(Reader reader) {
+        m_reader = reader;
+    }
+
+    /**
+     * Instantiates a line reader of part of an array of characters, which
+     * is neither copied nor modified, so several readers may share it.
+     *
+     * @param chars the characters.
+     * @param start the offset of the first character.
+     * @param end the offset after the last character.
+     */
+    public LineReader(char[] chars, int start, int end) {
+        m_reader = null;
+        m_buffer = chars;
+        m_next = start;
+        m_end = end;
+        m_endOfInput = true;
+    }
+
+    /**
+     * Read all the remaining input into the buffer. Lines read afterwards
+     * are not moved, so each stays at its offset in the buffer, which is
+     * not replaced, after the next line is read.
+     *
+     * @return the number of characters not yet read as lines.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public int readAll() throws IOException {
+        while (!m_endOfInput) {
+            fill();
+        }
+        return m_end - m_next;
+    }
+
+    /**
+     * Read the next line, which becomes the current line.
+     *
+     * @return true, if a line was read, false at the end of the input.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public boolean readLine() throws IOException {
+        int scan = m_next;
+        while (true) {
+            if (m_skipLineFeed && m_next < m_end) {
+                if (m_buffer[m_next] == '\n') {
+                    m_next++;
+                    scan = m_next;
+                }
+                m_skipLineFeed = false;
+            }
+
+            for (; scan < m_end; scan++) {
+                char c = m_buffer[scan];
+                if (c == '\n' || c == '\r') {
+                    m_lineStart = m_next;
+                    m_lineLength = scan - m_next;
+                    m_next = scan + 1;
+                    m_skipLineFeed = c == '\r';
+                    return true;
+                }
+            }
+
+            if (m_endOfInput) {
+                m_skipLineFeed = false;
+                if (m_next == m_end) {
+                    m_lineLength = 0;
+                    return false;
+                }
+                // Last line, with no terminator.
+                m_lineStart = m_next;
+                m_lineLength = m_end - m_next;
+                m_next = m_end;
+                return true;
+            }
+
+            scan -= fill();
+        }
+    }
+
+    /**
+     * Read more input into the buffer, first moving the characters not
+     * yet in a line to the start of the buffer, and growing the buffer if
+     * they fill it.
+     *
+     * @return the distance the characters were moved.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private int fill() throws IOException {
+        int moved = m_next;
+        if (moved > 0) {
+            System.arraycopy(m_buffer, m_next, m_buffer, 0, m_end - m_next);
+            m_end -= moved;
+            m_next = 0;
+        }
+        if (m_end == m_buffer.length) {
+            char[] buffer = new char[2 * m_buffer.length];
+            System.arraycopy(m_buffer, 0, buffer, 0, m_end);
+            m_buffer = buffer;
+        }
+
+        int count = m_reader.read(m_buffer, m_end, m_buffer.length - m_end);
+        if (count < 0) {
+            m_endOfInput = true;
+        } else {
+            m_end += count;
+        }
+        return moved;
+    }
+
+    /**
+     * Gets the buffer holding the current line, valid until the next line
+     * is read.
+     *
+     * @return the buffer.
+     */
+    public char[] getBuffer() {
+        return m_buffer;
+    }
+
+    /**
+     * Gets the offset of the current line in the buffer.
+     *
+     * @return the offset.
+     */
+    public int getLineStart() {
+        return m_lineStart;
+    }
+
+    /**
+     * Gets the offset after the terminator of the current line in the
+     * buffer, or after the line if it has no terminator. For a line ended by
+     * "\r\n" this is the offset after the '\r'.
+     *
+     * @return the offset.
+     */
+    public int getLineEnd() {
+        return m_next;
+    }
+
+    @Override
+    public int length() {
+        return m_lineLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= m_lineLength) {
+            throw new IndexOutOfBoundsException("Index " + index + ", length " + m_lineLength);
+        }
+        return m_buffer[m_lineStart + index];
+    }
+
+    /**
+     * Gets part of the current line, as a new String.
+     *
+     * @param start the start offset in the line.
+     * @param end the end offset in the line.
+     * @return the characters.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > m_lineLength || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + " to " + end + ", length " + m_lineLength);
+        }
+        return new String(m_buffer, m_lineStart + start, end - start);
+    }
+
+    /**
+     * Gets the current line as a new String.
+     *
+     * @return the line.
+     */
+    @Override
+    public String toString() {
+        return new String(m_buffer, m_lineStart, m_lineLength);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable lookup table of the keyword and sub-section names of a section.
+ *
+ * <p>Names are held in an open addressing hash table with linear probing,
+ * with the keyword and the sub-section for each name in parallel arrays, so
+ * a single probe finds both. Names may be looked up straight from a slice of
+ * a line of input, without creating a String. The table uses much less heap
+ * than a pair of hash maps, as there are no entry objects. The lengths of
+ * the keyword names are also recorded, so a line can be checked for a
+ * keyword name with a probe for each of those lengths only.
+ *
+ * <p>Names are matched ignoring the case of ASCII letters, as CP2K does,
+ * without making an upper case copy of the characters looked up. The
+ * table holds the names folded to upper case, and the hash ignores case,
+ * so only characters differing from the name need to be folded. Names in
+ * the schema differing only in case share a slot: a keyword and a
+ * sub-section can both be found, but of two keywords or two sub-sections
+ * only the first added.
+ *
+ * @author Jeremy Nowell
+ */
+final class NameTable {
+
+    /** Slot returned when a name is not found. */
+    static final int NOT_FOUND = -1;
+
+    /** The bit by which the upper and lower case of an ASCII letter differ. */
+    private static final int CASE_BIT = 'a' - 'A';
+
+    /** Names of a table with no entries. */
+    private static final String[] NO_NAMES = new String[1];
+
+    /** The names folded to upper case, indexed by slot, null for an empty slot. */
+    private final String[] m_names;
+
+    /** The keyword for each slot, or null. */
+    private final CP2KKeyWord[] m_keyWords;
+
+    /** The sub-section for each slot, or null. */
+    private final CP2KSection[] m_sections;
+
+    /** Mask giving a slot from a hash. */
+    private final int m_mask;
+
+    /**
+     * Bit n set if a keyword name has length n, with bit 63 set for all
+     * lengths of 63 and over.
+     */
+    private final long m_keyWordLengths;
+
+    /** The keyword with no name, if any. */
+    private final CP2KKeyWord m_nullKeyWord;
+
+    /** The sub-section with no name, if any. */
+    private final CP2KSection m_nullSection;
+
+    /**
+     * Instantiates a new table.
+     *
+     * @param keyWords the keywords, by name and alias.
+     * @param subSections the sub-sections, by name.
+     */
+    NameTable(Map<String, CP2KKeyWord> keyWords, Map<String, CP2KSection> subSections) {
+        Set<String> names = new LinkedHashSet<String>(keyWords.keySet());
+        names.addAll(subSections.keySet());
+        names.remove(null);
+        m_nullKeyWord = keyWords.get(null);
+        m_nullSection = subSections.get(null);
+
+        long keyWordLengths = 0;
+        for (String name : keyWords.keySet()) {
+            if (name != null && !name.isEmpty()) {
+                keyWordLengths |= 1L << Math.min(name.length(), 63);
+            }
+        }
+        m_keyWordLengths = keyWordLengths;
+
+        if (names.isEmpty()) {
+            m_names = NO_NAMES;
+            m_keyWords = null;
+            m_sections = null;
+            m_mask = 0;
+            return;
+        }
+
+        // Keep the table at most half full, so probe sequences stay short.
+        int capacity = Integer.highestOneBit(names.size() * 2 - 1) << 1;
+        m_names = new String[capacity];
+        m_keyWords = keyWords.isEmpty() ? null : new CP2KKeyWord[capacity];
+        m_sections = subSections.isEmpty() ? null : new CP2KSection[capacity];
+        m_mask = capacity - 1;
+
+        for (String name : names) {
+            int slot = hash(name, 0, name.length()) & m_mask;
+            while (m_names[slot] != null && !matches(m_names[slot], name, 0, name.length())) {
+                slot = (slot + 1) & m_mask;
+            }
+            // A name differing only in case from one already added shares its
+            // slot, filling in the keyword or sub-section if the slot has none.
+            if (m_names[slot] == null) {
+                m_names[slot] = foldCase(name);
+            }
+            if (m_keyWords != null && m_keyWords[slot] == null) {
+                m_keyWords[slot] = keyWords.get(name);
+            }
+            if (m_sections != null && m_sections[slot] == null) {
+                m_sections[slot] = subSections.get(name);
+            }
+        }
+    }
+
+    /**
+     * Find the slot of a name, ignoring the case of ASCII letters.
+     *
+     * @param chars characters containing the name.
+     * @param start start offset of the name.
+     * @param end end offset of the name.
+     * @return the slot, or NOT_FOUND.
+     */
+    int find(CharSequence chars, int start, int end) {
+        int slot = hash(chars, start, end) & m_mask;
+        String name;
+        while ((name = m_names[slot]) != null) {
+            if (matches(name, chars, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & m_mask;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Fold an ASCII lower case letter to upper case, leaving any other
+     * character unchanged.
+     *
+     * @param c the character.
+     * @return the folded character.
+     */
+    static char foldCase(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - CASE_BIT) : c;
+    }
+
+    /**
+     * Fold the ASCII lower case letters of a name to upper case.
+     *
+     * @param name the name.
+     * @return the folded name, the same String if already upper case.
+     */
+    private static String foldCase(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (foldCase(name.charAt(i)) != name.charAt(i)) {
+                char[] chars = name.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    chars[j] = foldCase(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Gets the keyword in a slot.
+     *
+     * @param slot the slot, or NOT_FOUND.
+     * @return the keyword, or null if none.
+     */
+    CP2KKeyWord getKeyWord(int slot) {
+        return slot == NOT_FOUND || m_keyWords == null ? null : m_keyWords[slot];
+    }
+
+    /**
+     * Gets the sub-section in a slot.
+     *
+     * @param slot the slot, or NOT_FOUND.
+     * @return the sub-section, or null if none.
+     */
+    CP2KSection getSection(int slot) {
+        return slot == NOT_FOUND || m_sections == null ? null : m_sections[slot];
+    }
+
+    /**
+     * Check whether any keyword could be found for a line starting with a
+     * token, as a keyword name is the token or a prefix of it, or there is
+     * a keyword with no name. Only the prefixes with the length of a
+     * keyword name are looked up.
+     *
+     * @param chars characters containing the token.
+     * @param start start offset of the token.
+     * @param end end offset of the token.
+     * @return true, if a keyword might be found.
+     */
+    boolean hasKeyWordPrefix(CharSequence chars, int start, int end) {
+        if (m_nullKeyWord != null) {
+            return true;
+        }
+        int maxLength = end - start;
+        long lengths = m_keyWordLengths;
+        while (lengths != 0) {
+            int length = Long.numberOfTrailingZeros(lengths);
+            if (length > maxLength) {
+                return false;
+            }
+            int last = length < 63 ? length : maxLength;
+            for (; length <= last; length++) {
+                if (getKeyWord(find(chars, start, start + length)) != null) {
+                    return true;
+                }
+            }
+            lengths &= lengths - 1;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the keyword with a name.
+     *
+     * @param name the name, or null.
+     * @return the keyword, or null if none.
+     */
+    CP2KKeyWord getKeyWord(String name) {
+        if (name == null) {
+            return m_nullKeyWord;
+        }
+        return getKeyWord(find(name, 0, name.length()));
+    }
+
+    /**
+     * Gets the sub-section with a name.
+     *
+     * @param name the name, or null.
+     * @return the sub-section, or null if none.
+     */
+    CP2KSection getSection(String name) {
+        if (name == null) {
+            return m_nullSection;
+        }
+        return getSection(find(name, 0, name.length()));
+    }
+
+    /**
+     * Gets the number of slots in the table.
+     *
+     * @return the number of slots.
+     */
+    int getCapacity() {
+        return m_names == NO_NAMES ? 0 : m_names.length;
+    }
+
+    /**
+     * Hash a name. Bit 5, the only bit by which the upper and lower case of
+     * an ASCII letter differ, is cleared from every character, so a name
+     * hashes the same whatever its case without testing for letters.
+     *
+     * @param chars characters containing the name.
+     * @param start start offset of the name.
+     * @param end end offset of the name.
+     * @return the hash.
+     */
+    private static int hash(CharSequence chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + (chars.charAt(i) & ~CASE_BIT);
+        }
+        // Spread the high bits down, as only the low bits select a slot.
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Check whether a name equals a slice of characters, ignoring the case
+     * of ASCII letters.
+     *
+     * @param name the name, folded to upper case.
+     * @param chars characters containing the slice.
+     * @param start start offset of the slice.
+     * @param end end offset of the slice.
+     * @return true, if equal.
+     */
+    private static boolean matches(String name, CharSequence chars, int start, int end) {
+        int length = end - start;
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char n = name.charAt(i);
+            char c = chars.charAt(start + i);
+            // Only a lower case letter matches a different character.
+            if (n != c && (n != c - CASE_BIT || (char) (c - 'a') > 'z' - 'a')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
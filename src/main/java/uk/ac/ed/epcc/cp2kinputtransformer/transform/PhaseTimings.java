@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.util.Locale;
+
+/**
+ * Time spent in each phase of handling a transform request. A timer is
+ * used by one thread at a time, and is not thread-safe.
+ *
+ * <p>The time of the current phase runs from when it is started until the
+ * next phase is started or the timer is stopped, so switching phase needs a
+ * single clock read. The shared {@link #DISABLED} timer ignores everything,
+ * so code can be timed unconditionally at the cost of a field check.
+ *
+ * @author Jeremy Nowell
+ */
+public final class PhaseTimings {
+
+    /**
+     * The phases of a transform request.
+     */
+    public enum Phase {
+        /** Receiving the uploaded input file. */
+        UPLOAD("upload"),
+        /** Waiting for a transform thread. */
+        QUEUE("queue"),
+        /** Getting the schema for the template. */
+        SCHEMA("schema"),
+        /** Reading and lexing input lines. */
+        LEX("lex"),
+        /** Resolving section and keyword names. */
+        RESOLVE("resolve"),
+        /** Writing XML. */
+        XML("xml");
+
+        /** Name of the phase in a Server-Timing header. */
+        private final String m_metricName;
+
+        /**
+         * Instantiates a new phase.
+         *
+         * @param metricName name of the phase in a Server-Timing header.
+         */
+        Phase(String metricName) {
+            m_metricName = metricName;
+        }
+
+        /**
+         * Gets the name of the phase as used in Server-Timing headers and metrics.
+         *
+         * @return the name.
+         */
+        public String getMetricName() {
+            return m_metricName;
+        }
+    }
+
+    /** A timer which records nothing. */
+    public static final PhaseTimings DISABLED = new PhaseTimings(false);
+
+    /** Whether times are recorded. */
+    private final boolean m_enabled;
+
+    /** Time recorded for each phase, in nanoseconds. */
+    private final long[] m_nanos = new long[Phase.values().length];
+
+    /** The current phase, or null if none. */
+    private Phase m_current;
+
+    /** Time the current phase started, from {@link System#nanoTime()}. */
+    private long m_currentStart;
+
+    /**
+     * Instantiates a new, enabled, timer.
+     */
+    public PhaseTimings() {
+        this(true);
+    }
+
+    /**
+     * Instantiates a new timer.
+     *
+     * @param enabled whether times are recorded.
+     */
+    private PhaseTimings(boolean enabled) {
+        m_enabled = enabled;
+    }
+
+    /**
+     * Checks whether times are recorded.
+     *
+     * @return true, if enabled.
+     */
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Start a phase, ending the current phase if any.
+     *
+     * @param phase the phase.
+     */
+    public void start(Phase phase) {
+        if (!m_enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (m_current != null) {
+            m_nanos[m_current.ordinal()] += now - m_currentStart;
+        }
+        m_current = phase;
+        m_currentStart = now;
+    }
+
+    /**
+     * End the current phase, if any.
+     */
+    public void stop() {
+        if (!m_enabled || m_current == null) {
+            return;
+        }
+        m_nanos[m_current.ordinal()] += System.nanoTime() - m_currentStart;
+        m_current = null;
+    }
+
+    /**
+     * Add time measured elsewhere to a phase.
+     *
+     * @param phase the phase.
+     * @param nanos the time, in nanoseconds.
+     */
+    public void add(Phase phase, long nanos) {
+        if (m_enabled) {
+            m_nanos[phase.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * Gets the time recorded for a phase, excluding any time since the
+     * phase was last started if it is still current.
+     *
+     * @param phase the phase.
+     * @return the time, in nanoseconds.
+     */
+    public long getNanos(Phase phase) {
+        return m_nanos[phase.ordinal()];
+    }
+
+    /**
+     * Format the recorded times as the value of a Server-Timing header,
+     * with durations in milliseconds.
+     *
+     * @return the header value.
+     */
+    public String toServerTiming() {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(phase.getMetricName()).append(";dur=")
+                    .append(String.format(Locale.ROOT, "%.3f", m_nanos[phase.ordinal()] / 1e6));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe cache of loaded CP2K schemas, keyed by template ID.
+ *
+ * <p>Each template is loaded from the compiled schema index 'ID.idx', or
+ * if there is no usable index from the schema file 'ID.xsd', the first time
+ * it is requested and the resulting top level {@link CP2KSection} is shared
+ * by all later requests. The number of cached templates is bounded, with the
+ * least recently used template evicted when the bound is exceeded.
+ *
+ * <p>In lean mode, the default, a template loaded from its schema is copied
+ * in full when loaded into sections and keywords which do not refer to the
+ * schema, so the schema objects can be garbage collected straight away.
+ * The estimated heap footprint of each loaded template is recorded in its
+ * statistics, and measured again by {@link #populate}.
+ *
+ * <p>Concurrent requests for a template which is not cached share a single
+ * load, so many requests arriving together for a newly deployed template
+ * load its schema only once.
+ *
+ * <p>Statistics are kept for a template only once it has loaded, so requests
+ * for templates which do not exist cannot grow them without bound. Failed
+ * loads of such templates are counted under {@link #UNKNOWN_TEMPLATE}.
+ *
+ * @author Jeremy Nowell
+ */
+public class SchemaCache {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(SchemaCache.class.getName());
+
+    /** The default maximum number of cached templates. */
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    /** Name of the resource listing the bundled templates. */
+    public static final String TEMPLATE_LIST_FILE_NAME = "/templates.list";
+
+    /** Template ID under which requests for templates never loaded are counted. */
+    public static final String UNKNOWN_TEMPLATE = "unknown";
+
+    /** The maximum number of cached templates. */
+    private final int m_maxEntries;
+
+    /** Whether loaded templates are copied without their schema. */
+    private final boolean m_lean;
+
+    /** The cached top level sections, in least recently used order. */
+    private final Map<String, CP2KSection> m_sections;
+
+    /** The loads in progress, by template ID. */
+    private final ConcurrentMap<String, FutureTask<CP2KSection>> m_loading =
+            new ConcurrentHashMap<String, FutureTask<CP2KSection>>();
+
+    /** The load statistics for each template loaded. */
+    private final ConcurrentMap<String, TemplateStatistics> m_statistics =
+            new ConcurrentHashMap<String, TemplateStatistics>();
+
+    /**
+     * Instantiates a new schema cache with the default size bound.
+     */
+    public SchemaCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Instantiates a new schema cache.
+     *
+     * @param maxEntries the maximum number of templates to hold.
+     */
+    public SchemaCache(int maxEntries) {
+        this(maxEntries, true);
+    }
+
+    /**
+     * Instantiates a new schema cache.
+     *
+     * @param maxEntries the maximum number of templates to hold.
+     * @param lean whether to copy loaded templates without their schema.
+     */
+    public SchemaCache(int maxEntries, boolean lean) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        }
+        m_maxEntries = maxEntries;
+        m_lean = lean;
+        m_sections = new LinkedHashMap<String, CP2KSection>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CP2KSection> eldest) {
+                if (size() > m_maxEntries) {
+                    s_Log.fine("Evicting schema: " + eldest.getKey());
+                    getOrCreateStatistics(eldest.getKey()).m_evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the top level section for a template, loading the schema if
+     * it is not already cached.
+     *
+     * @param templateId ID of the template, used to find the schema file 'ID.xsd'.
+     * @return the top level CP2K section.
+     * @throws IOException if the schema cannot be loaded.
+     */
+    public CP2KSection getTopLevelSection(final String templateId) throws IOException {
+        CP2KSection section = getCached(templateId);
+        if (section != null) {
+            getOrCreateStatistics(templateId).m_hits.incrementAndGet();
+            return section;
+        }
+
+        // Join a load in progress, or start one. Load outside the lock so
+        // other templates can be served meanwhile.
+        FutureTask<CP2KSection> load = new FutureTask<CP2KSection>(new Callable<CP2KSection>() {
+            @Override
+            public CP2KSection call() throws IOException {
+                // The template may have been cached since this request missed.
+                CP2KSection cached = getCached(templateId);
+                return cached != null ? cached : load(templateId);
+            }
+        });
+        FutureTask<CP2KSection> inProgress = m_loading.putIfAbsent(templateId, load);
+        boolean coalesced = inProgress != null;
+        if (inProgress == null) {
+            try {
+                load.run();
+            } finally {
+                m_loading.remove(templateId, load);
+            }
+            inProgress = load;
+        } else {
+            s_Log.fine("Waiting for schema load in progress: " + templateId);
+        }
+
+        // The miss is counted once the outcome of the load is known.
+        boolean loaded = false;
+        try {
+            section = await(inProgress, "loading schema for template " + templateId);
+            loaded = true;
+            return section;
+        } finally {
+            TemplateStatistics stats =
+                    loaded ? getOrCreateStatistics(templateId) : getFailureStatistics(templateId);
+            stats.m_misses.incrementAndGet();
+            if (coalesced) {
+                stats.m_coalesced.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wait for a task shared between requests to finish.
+     *
+     * @param <T> the type of the result.
+     * @param task the task.
+     * @param what what the task is doing, for error messages.
+     * @return the result of the task.
+     * @throws IOException if the task failed or the wait was interrupted.
+     */
+    private static <T> T await(FutureTask<T> task, String what) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while " + what);
+            interrupted.initCause(e);
+            throw interrupted;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Error " + what, e.getCause());
+        }
+    }
+
+    /**
+     * Gets a cached top level section.
+     *
+     * @param templateId ID of the template.
+     * @return the top level CP2K section, or null if not cached.
+     */
+    private CP2KSection getCached(String templateId) {
+        synchronized (m_sections) {
+            return m_sections.get(templateId);
+        }
+    }
+
+    /**
+     * Load a template and cache it.
+     *
+     * @param templateId ID of the template.
+     * @return the top level CP2K section.
+     * @throws IOException if the schema cannot be loaded.
+     */
+    private CP2KSection load(String templateId) throws IOException {
+        long start = System.nanoTime();
+        CP2KSection section;
+        FutureTask<Long> checksum;
+        try {
+            SchemaIndex.Loaded index = loadIndex(templateId);
+            if (index != null) {
+                section = index.getTopLevelSection();
+                checksum = checksumTask(section, index.getChecksum());
+                checksum.run();
+            } else {
+                // Most sections are never used, so the copy must be made in
+                // full to release the schema. Otherwise the tree is populated
+                // on demand, including by the checksum.
+                section = TextInputProcessor.loadSchema(getSchemaFileName(templateId));
+                if (m_lean) {
+                    section = section.withoutSchema();
+                    section.populateAllContents();
+                }
+                checksum = checksumTask(section, null);
+            }
+        } catch (IOException e) {
+            getFailureStatistics(templateId).m_loadFailures.incrementAndGet();
+            throw e;
+        }
+        long loadTime = System.nanoTime() - start;
+        TemplateStatistics stats = getOrCreateStatistics(templateId);
+        SchemaFootprint footprint = SchemaFootprint.measure(section);
+        stats.m_checksum = checksum;
+        stats.m_loads.incrementAndGet();
+        stats.m_lastLoadTimeNanos.set(loadTime);
+        stats.m_totalLoadTimeNanos.addAndGet(loadTime);
+        stats.m_footprint = footprint;
+        s_Log.info("Loaded schema for template " + templateId + " in "
+                + (loadTime / 1000000) + " ms: " + footprint);
+
+        synchronized (m_sections) {
+            m_sections.put(templateId, section);
+        }
+        return section;
+    }
+
+    /**
+     * Gets the top level section for a template, loading it if it is not
+     * already cached, and populates the whole section tree so no request
+     * waits for the schema to be processed. The footprint of the template
+     * is measured again once populated.
+     *
+     * @param templateId ID of the template.
+     * @return the top level CP2K section.
+     * @throws IOException if the schema cannot be loaded.
+     */
+    public CP2KSection populate(String templateId) throws IOException {
+        CP2KSection section = getTopLevelSection(templateId);
+        section.populateAllContents();
+        getOrCreateStatistics(templateId).m_footprint = SchemaFootprint.measure(section);
+        return section;
+    }
+
+    /**
+     * Make the task giving the checksum of a loaded template, which is
+     * run once however many requests need it.
+     *
+     * @param topLevelSection the top level section of the template.
+     * @param checksum the checksum if known, else null to compute it.
+     * @return the task.
+     */
+    private static FutureTask<Long> checksumTask(final CP2KSection topLevelSection, final Long checksum) {
+        return new FutureTask<Long>(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return checksum != null ? checksum : SchemaIndex.checksum(topLevelSection);
+            }
+        });
+    }
+
+    /**
+     * Load a template, from its schema index if there is a usable one, else
+     * from its schema.
+     *
+     * @param templateId ID of the template.
+     * @return the top level CP2K section.
+     * @throws IOException if the template cannot be loaded.
+     */
+    static CP2KSection loadTemplate(String templateId) throws IOException {
+        SchemaIndex.Loaded index = loadIndex(templateId);
+        if (index != null) {
+            return index.getTopLevelSection();
+        }
+        return TextInputProcessor.loadSchema(getSchemaFileName(templateId));
+    }
+
+    /**
+     * Load the schema index of a template.
+     *
+     * @param templateId ID of the template.
+     * @return the loaded index, or null if there is no usable index.
+     */
+    private static SchemaIndex.Loaded loadIndex(String templateId) {
+        try {
+            return SchemaIndex.load(SchemaIndex.getIndexFileName(templateId));
+        } catch (IOException e) {
+            s_Log.warning("Unable to load schema index for template " + templateId
+                    + ", loading schema instead: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the checksum of a template, which changes when the schema of the
+     * template changes. The checksum of a template loaded from its index is
+     * read from the index header. That of a template loaded from its schema
+     * is computed on first use, populating the whole section tree, by the
+     * first request needing it while concurrent requests wait for it.
+     *
+     * @param templateId ID of the template, which has been loaded.
+     * @param topLevelSection the top level section of the template.
+     * @return the checksum, see {@link SchemaIndex#checksum}.
+     * @throws IOException if the checksum cannot be computed.
+     */
+    public long getChecksum(String templateId, CP2KSection topLevelSection) throws IOException {
+        FutureTask<Long> checksum = getOrCreateStatistics(templateId).m_checksum;
+        if (checksum == null) {
+            // Not loaded by this cache.
+            return SchemaIndex.checksum(topLevelSection);
+        }
+        // Does nothing if the checksum is already computed or being computed.
+        checksum.run();
+        return await(checksum, "computing checksum of template " + templateId);
+    }
+
+    /**
+     * Checks whether a template is currently cached.
+     *
+     * @param templateId ID of the template.
+     * @return true, if cached.
+     */
+    public boolean contains(String templateId) {
+        synchronized (m_sections) {
+            return m_sections.containsKey(templateId);
+        }
+    }
+
+    /**
+     * Gets the number of cached templates.
+     *
+     * @return the number of cached templates.
+     */
+    public int size() {
+        synchronized (m_sections) {
+            return m_sections.size();
+        }
+    }
+
+    /**
+     * Gets the maximum number of cached templates.
+     *
+     * @return the maximum number of cached templates.
+     */
+    public int getMaxEntries() {
+        return m_maxEntries;
+    }
+
+    /**
+     * Checks whether loaded templates are copied without their schema.
+     *
+     * @return true, if in lean mode.
+     */
+    public boolean isLean() {
+        return m_lean;
+    }
+
+    /**
+     * Removes all cached templates. Statistics are kept.
+     */
+    public void clear() {
+        synchronized (m_sections) {
+            m_sections.clear();
+        }
+    }
+
+    /**
+     * Gets the load statistics for a template.
+     *
+     * @param templateId ID of the template.
+     * @return the statistics, or null if the template has never been loaded.
+     */
+    public TemplateStatistics getStatistics(String templateId) {
+        return m_statistics.get(templateId);
+    }
+
+    /**
+     * Gets the load statistics for all templates loaded so far, and for
+     * {@link #UNKNOWN_TEMPLATE} if any request has failed.
+     *
+     * @return unmodifiable map of template ID to statistics, sorted by ID.
+     */
+    public Map<String, TemplateStatistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<String, TemplateStatistics>(m_statistics));
+    }
+
+    /**
+     * Gets the IDs of the templates bundled with the service, as listed
+     * when their schemas were compiled.
+     *
+     * @return the template IDs, empty if there is no list.
+     * @throws IOException if the list cannot be read.
+     */
+    public static List<String> getBundledTemplateIds() throws IOException {
+        List<String> templateIds = new ArrayList<String>();
+        InputStream is = SchemaCache.class.getResourceAsStream(TEMPLATE_LIST_FILE_NAME);
+        if (is == null) {
+            s_Log.fine("No template list: " + TEMPLATE_LIST_FILE_NAME);
+            return templateIds;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    templateIds.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return templateIds;
+    }
+
+    /**
+     * Gets the schema file name for a template.
+     *
+     * @param templateId ID of the template.
+     * @return the schema file name.
+     */
+    public static String getSchemaFileName(String templateId) {
+        return "/" + templateId + ".xsd";
+    }
+
+    /**
+     * Gets the statistics for a template, creating them if required.
+     *
+     * @param templateId ID of the template.
+     * @return the statistics.
+     */
+    private TemplateStatistics getOrCreateStatistics(String templateId) {
+        TemplateStatistics stats = m_statistics.get(templateId);
+        if (stats == null) {
+            TemplateStatistics newStats = new TemplateStatistics();
+            stats = m_statistics.putIfAbsent(templateId, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Gets the statistics under which a failed request for a template is
+     * counted: its own if it has loaded before, else those of
+     * {@link #UNKNOWN_TEMPLATE}.
+     *
+     * @param templateId ID of the template.
+     * @return the statistics.
+     */
+    private TemplateStatistics getFailureStatistics(String templateId) {
+        TemplateStatistics stats = m_statistics.get(templateId);
+        return stats != null ? stats : getOrCreateStatistics(UNKNOWN_TEMPLATE);
+    }
+
+    /**
+     * Load statistics for a single template.
+     */
+    public static class TemplateStatistics {
+
+        /** Number of requests served from the cache. */
+        private final AtomicLong m_hits = new AtomicLong();
+
+        /** Number of requests not served from the cache. */
+        private final AtomicLong m_misses = new AtomicLong();
+
+        /** Number of requests which waited for a load in progress. */
+        private final AtomicLong m_coalesced = new AtomicLong();
+
+        /** Number of successful schema loads. */
+        private final AtomicLong m_loads = new AtomicLong();
+
+        /** Number of failed schema loads. */
+        private final AtomicLong m_loadFailures = new AtomicLong();
+
+        /** Number of times the template has been evicted. */
+        private final AtomicLong m_evictions = new AtomicLong();
+
+        /** Time taken by the most recent load, in nanoseconds. */
+        private final AtomicLong m_lastLoadTimeNanos = new AtomicLong();
+
+        /** Total time taken by all loads, in nanoseconds. */
+        private final AtomicLong m_totalLoadTimeNanos = new AtomicLong();
+
+        /** Footprint of the most recently loaded template, or null if never loaded. */
+        private volatile SchemaFootprint m_footprint;
+
+        /**
+         * Task giving the checksum of the most recently loaded template, see
+         * {@link SchemaIndex#checksum}, or null if never loaded.
+         */
+        private volatile FutureTask<Long> m_checksum;
+
+        /**
+         * Gets the number of requests served from the cache.
+         *
+         * @return the hit count.
+         */
+        public long getHits() {
+            return m_hits.get();
+        }
+
+        /**
+         * Gets the number of requests not served from the cache.
+         *
+         * @return the miss count.
+         */
+        public long getMisses() {
+            return m_misses.get();
+        }
+
+        /**
+         * Gets the number of requests not served from the cache which
+         * waited for a load already in progress, rather than loading.
+         *
+         * @return the coalesced count.
+         */
+        public long getCoalesced() {
+            return m_coalesced.get();
+        }
+
+        /**
+         * Gets the number of successful schema loads.
+         *
+         * @return the load count.
+         */
+        public long getLoads() {
+            return m_loads.get();
+        }
+
+        /**
+         * Gets the number of failed schema loads.
+         *
+         * @return the load failure count.
+         */
+        public long getLoadFailures() {
+            return m_loadFailures.get();
+        }
+
+        /**
+         * Gets the number of times the template has been evicted.
+         *
+         * @return the eviction count.
+         */
+        public long getEvictions() {
+            return m_evictions.get();
+        }
+
+        /**
+         * Gets the time taken by the most recent load.
+         *
+         * @return the load time in nanoseconds.
+         */
+        public long getLastLoadTimeNanos() {
+            return m_lastLoadTimeNanos.get();
+        }
+
+        /**
+         * Gets the total time taken by all loads.
+         *
+         * @return the total load time in nanoseconds.
+         */
+        public long getTotalLoadTimeNanos() {
+            return m_totalLoadTimeNanos.get();
+        }
+
+        /**
+         * Gets the estimated heap footprint of the most recently loaded
+         * template.
+         *
+         * @return the footprint, or null if the template has never been loaded.
+         */
+        public SchemaFootprint getFootprint() {
+            return m_footprint;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An estimate of the heap used by a loaded CP2K section tree.
+ *
+ * <p>The estimate assumes a 64 bit JVM with compressed object pointers and
+ * two bytes per string character. It covers the sections, keywords, names,
+ * encoded XML names and lookup tables, but not any schema objects the tree still refers to,
+ * so a tree which {@link #retainsSchema() retains its schema} uses more.
+ *
+ * @author Jeremy Nowell
+ */
+public final class SchemaFootprint {
+
+    /** Size of an object header. */
+    private static final int OBJECT_HEADER = 12;
+
+    /** Size of an array header. */
+    private static final int ARRAY_HEADER = 16;
+
+    /** Size of an object reference. */
+    private static final int REFERENCE = 4;
+
+    /** Size of a String, excluding its characters. */
+    private static final int STRING = 24;
+
+    /** Size of an unmodifiable list wrapping an array list, excluding its array. */
+    private static final int LIST = 48;
+
+    /** Size of a section, including its contents and name table but not their arrays. */
+    private static final int SECTION = align(OBJECT_HEADER + 6 * REFERENCE)
+            + align(OBJECT_HEADER + 3 * REFERENCE)
+            + align(OBJECT_HEADER + 6 * REFERENCE + 8);
+
+    /** Size of a keyword, excluding its aliases. */
+    private static final int KEYWORD = align(OBJECT_HEADER + 5 * REFERENCE);
+
+    /** Number of sections. */
+    private final int m_sections;
+
+    /** Number of distinct keywords. */
+    private final int m_keyWords;
+
+    /** Number of distinct name strings. */
+    private final int m_names;
+
+    /** Estimated size in bytes. */
+    private final long m_estimatedBytes;
+
+    /** Whether any section or keyword still refers to the schema. */
+    private final boolean m_retainsSchema;
+
+    /**
+     * Instantiates a new footprint.
+     *
+     * @param sections number of sections.
+     * @param keyWords number of keywords.
+     * @param names number of distinct names.
+     * @param estimatedBytes estimated size in bytes.
+     * @param retainsSchema whether the schema is retained.
+     */
+    private SchemaFootprint(
+            int sections, int keyWords, int names, long estimatedBytes, boolean retainsSchema) {
+        m_sections = sections;
+        m_keyWords = keyWords;
+        m_names = names;
+        m_estimatedBytes = estimatedBytes;
+        m_retainsSchema = retainsSchema;
+    }
+
+    /**
+     * Measure a section tree without populating it. Sections whose contents
+     * have not been populated are counted without their contents.
+     *
+     * @param topLevelSection the top level section of the tree.
+     * @return the footprint.
+     */
+    public static SchemaFootprint measure(CP2KSection topLevelSection) {
+        Set<String> names = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        int sections = 0;
+        int keyWords = 0;
+        long bytes = 0;
+        boolean retainsSchema = false;
+
+        Deque<CP2KSection> pending = new ArrayDeque<CP2KSection>();
+        pending.push(topLevelSection);
+        while (!pending.isEmpty()) {
+            CP2KSection section = pending.pop();
+            sections++;
+            retainsSchema |= section.retainsSchema();
+            bytes += SECTION + byteArray(section.getXmlName())
+                    + names(names, section.getSanitisedName(), section.getCp2kName());
+            if (!section.isPopulated()) {
+                continue;
+            }
+
+            List<CP2KKeyWord> sectionKeyWords = section.getKeyWords();
+            int subSections = section.getSubSections().size();
+            bytes += list(sectionKeyWords.size()) + list(subSections);
+
+            int capacity = section.getNameTableCapacity();
+            if (capacity > 0) {
+                bytes += array(capacity);
+                if (!sectionKeyWords.isEmpty()) {
+                    bytes += array(capacity);
+                }
+                if (subSections > 0) {
+                    bytes += array(capacity);
+                }
+            }
+
+            for (CP2KKeyWord keyWord : sectionKeyWords) {
+                keyWords++;
+                retainsSchema |= keyWord.getSchemaElement() != null;
+                bytes += KEYWORD + byteArray(keyWord.getXmlName()) + list(keyWord.getAliases().size())
+                        + names(names, keyWord.getSanitisedName(), keyWord.getCp2kName());
+                for (String alias : keyWord.getAliases()) {
+                    bytes += names(names, alias, null);
+                }
+            }
+            for (CP2KSection subSection : section.getSubSections()) {
+                pending.push(subSection);
+            }
+        }
+        return new SchemaFootprint(sections, keyWords, names.size(), bytes, retainsSchema);
+    }
+
+    /**
+     * Gets the number of sections.
+     *
+     * @return the number of sections.
+     */
+    public int getSections() {
+        return m_sections;
+    }
+
+    /**
+     * Gets the number of distinct keywords.
+     *
+     * @return the number of keywords.
+     */
+    public int getKeyWords() {
+        return m_keyWords;
+    }
+
+    /**
+     * Gets the number of distinct name strings.
+     *
+     * @return the number of names.
+     */
+    public int getNames() {
+        return m_names;
+    }
+
+    /**
+     * Gets the estimated size of the tree.
+     *
+     * @return the estimated size in bytes.
+     */
+    public long getEstimatedBytes() {
+        return m_estimatedBytes;
+    }
+
+    /**
+     * Checks whether the tree still refers to the schema it was loaded
+     * from, keeping the schema objects reachable.
+     *
+     * @return true, if the schema is retained.
+     */
+    public boolean retainsSchema() {
+        return m_retainsSchema;
+    }
+
+    @Override
+    public String toString() {
+        return m_sections + " sections, " + m_keyWords + " keywords, "
+                + m_names + " names, about " + (m_estimatedBytes / 1024) + " KB"
+                + (m_retainsSchema ? " plus schema" : "");
+    }
+
+    /**
+     * Estimate the size of names not already counted.
+     *
+     * @param seen the names already counted.
+     * @param first the first name, or null.
+     * @param second the second name, or null.
+     * @return the size of the new names.
+     */
+    private static long names(Set<String> seen, String first, String second) {
+        long bytes = 0;
+        if (first != null && seen.add(first)) {
+            bytes += STRING + align(ARRAY_HEADER + 2 * first.length());
+        }
+        if (second != null && seen.add(second)) {
+            bytes += STRING + align(ARRAY_HEADER + 2 * second.length());
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimate the size of an unmodifiable list, where empty lists are shared.
+     *
+     * @param size the number of elements.
+     * @return the size.
+     */
+    private static long list(int size) {
+        return size == 0 ? 0 : LIST + array(size);
+    }
+
+    /**
+     * Estimate the size of an array of bytes.
+     *
+     * @param array the array.
+     * @return the size.
+     */
+    private static long byteArray(byte[] array) {
+        return align(ARRAY_HEADER + (long) array.length);
+    }
+
+    /**
+     * Estimate the size of an array of references.
+     *
+     * @param length the array length.
+     * @return the size.
+     */
+    private static long array(int length) {
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    /**
+     * Round a size up to the object alignment.
+     *
+     * @param size the size.
+     * @return the aligned size.
+     */
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Round a size up to the object alignment.
+     *
+     * @param size the size.
+     * @return the aligned size.
+     */
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the compiled binary index of a CP2K schema.
+ *
+ * <p>The index holds just the section tree: the names of each section,
+ * and the names and aliases of its keywords. Loading it is much faster
+ * than reading the schema, so schemas are compiled to an index, 'ID.idx',
+ * when the project is built, by {@link SchemaIndexCompiler}.
+ *
+ * <p>The index starts with a header of the magic number, the format
+ * version, and a CRC32 checksum of the rest of the index. Then comes a
+ * table of the distinct strings used, then the section tree, depth first.
+ * Names in the tree are given by their index in the string table, with -1
+ * for a missing name. All integers are big-endian.
+ *
+ * @author Jeremy Nowell
+ */
+public final class SchemaIndex {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(SchemaIndex.class.getName());
+
+    /** Magic number at the start of an index, 'CPKI'. */
+    static final int MAGIC = 0x43504B49;
+
+    /** Version of the index format. */
+    static final int VERSION = 1;
+
+    /** Encoding of strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Not instantiable.
+     */
+    private SchemaIndex() {
+    }
+
+    /**
+     * Gets the index file name for a template.
+     *
+     * @param templateId ID of the template.
+     * @return the index file name.
+     */
+    public static String getIndexFileName(String templateId) {
+        return "/" + templateId + ".idx";
+    }
+
+    /**
+     * Load an index resource. An index in a file is memory mapped, any
+     * other is read into memory.
+     *
+     * @param indexFileName relative file name of the index.
+     * @return the loaded index, or null if there is no such index.
+     * @throws IOException if the index cannot be read or is invalid.
+     */
+    public static Loaded load(String indexFileName) throws IOException {
+        URL url = SchemaIndex.class.getResource(indexFileName);
+        if (url == null) {
+            return null;
+        }
+
+        s_Log.fine("Loading schema index: " + url);
+
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return load(new File(url.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid schema index location: " + url, e);
+            }
+        }
+
+        InputStream is = url.openStream();
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                contents.write(buffer, 0, count);
+            }
+            return read(ByteBuffer.wrap(contents.toByteArray()));
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Load an index file through a memory mapping.
+     *
+     * @param indexFile the index file.
+     * @return the loaded index.
+     * @throws IOException if the index cannot be read or is invalid.
+     */
+    public static Loaded load(File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Read an index.
+     *
+     * @param buffer the index.
+     * @return the loaded index.
+     * @throws IOException if the index is invalid.
+     */
+    public static Loaded read(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a schema index");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported schema index version: " + version);
+            }
+            int checksum = buffer.getInt();
+
+            ByteBuffer body = buffer.slice();
+            CRC32 crc = new CRC32();
+            if (body.hasArray()) {
+                crc.update(body.array(), body.arrayOffset(), body.remaining());
+            } else {
+                byte[] bytes = new byte[body.remaining()];
+                body.duplicate().get(bytes);
+                crc.update(bytes);
+            }
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Schema index checksum mismatch");
+            }
+
+            String[] strings = new String[body.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[body.getInt()];
+                body.get(bytes);
+                strings[i] = new String(bytes, UTF8);
+            }
+
+            CP2KSection section = readSection(body, strings);
+            if (body.hasRemaining()) {
+                throw new IOException("Unexpected data after schema index");
+            }
+            return new Loaded(section, checksum & 0xFFFFFFFFL);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated schema index", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Invalid schema index", e);
+        } catch (NegativeArraySizeException e) {
+            throw new IOException("Invalid schema index", e);
+        }
+    }
+
+    /**
+     * Read a section and all sections below it.
+     *
+     * @param buffer the index, positioned at the section.
+     * @param strings the string table.
+     * @return the section.
+     */
+    private static CP2KSection readSection(ByteBuffer buffer, String[] strings) {
+        String sanitisedName = readString(buffer, strings);
+        String cp2kName = readString(buffer, strings);
+
+        int keyWordCount = buffer.getInt();
+        List<CP2KKeyWord> keyWords = new ArrayList<CP2KKeyWord>(keyWordCount);
+        for (int i = 0; i < keyWordCount; i++) {
+            String keyWordSanitisedName = readString(buffer, strings);
+            String keyWordCp2kName = readString(buffer, strings);
+            int aliasCount = buffer.getInt();
+            List<String> aliases = new ArrayList<String>(aliasCount);
+            for (int j = 0; j < aliasCount; j++) {
+                aliases.add(readString(buffer, strings));
+            }
+            keyWords.add(new CP2KKeyWord(keyWordSanitisedName, keyWordCp2kName, aliases));
+        }
+
+        int subSectionCount = buffer.getInt();
+        List<CP2KSection> subSections = new ArrayList<CP2KSection>(subSectionCount);
+        for (int i = 0; i < subSectionCount; i++) {
+            subSections.add(readSection(buffer, strings));
+        }
+
+        return new CP2KSection(sanitisedName, cp2kName, subSections, keyWords);
+    }
+
+    /**
+     * Read a string reference.
+     *
+     * @param buffer the index, positioned at the reference.
+     * @param strings the string table.
+     * @return the string, or null.
+     */
+    private static String readString(ByteBuffer buffer, String[] strings) {
+        int index = buffer.getInt();
+        return index < 0 ? null : strings[index];
+    }
+
+    /**
+     * Write the index of a section tree. All the contents of the tree are
+     * populated.
+     *
+     * @param topLevelSection the top level section.
+     * @param outputStream OutputStream to receive the index, which is not closed.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void write(CP2KSection topLevelSection, OutputStream outputStream)
+            throws IOException {
+        byte[] bodyBytes = writeBody(topLevelSection);
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        DataOutputStream output = new DataOutputStream(outputStream);
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt((int) crc.getValue());
+        output.write(bodyBytes);
+        output.flush();
+    }
+
+    /**
+     * Gets the checksum of the index of a section tree, as written in the
+     * index header. Trees with the same names and aliases have the same
+     * checksum, whether loaded from a schema or an index, so the checksum
+     * identifies the version of a template. This writes the index body, so
+     * populates the whole tree; for a tree loaded from an index the checksum
+     * is read from its header instead.
+     *
+     * @param topLevelSection the top level section.
+     * @return the CRC32 checksum.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static long checksum(CP2KSection topLevelSection) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(writeBody(topLevelSection));
+        return crc.getValue();
+    }
+
+    /**
+     * Write the body of the index of a section tree, the string table
+     * followed by the tree.
+     *
+     * @param topLevelSection the top level section.
+     * @return the body.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static byte[] writeBody(CP2KSection topLevelSection) throws IOException {
+        // Build the string table and the tree referring to it.
+        Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        writeSection(topLevelSection, new DataOutputStream(tree), stringIndexes, strings);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOutput = new DataOutputStream(body);
+        bodyOutput.writeInt(strings.size());
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(UTF8);
+            bodyOutput.writeInt(bytes.length);
+            bodyOutput.write(bytes);
+        }
+        tree.writeTo(bodyOutput);
+        bodyOutput.flush();
+        return body.toByteArray();
+    }
+
+    /**
+     * Write a section and all sections below it.
+     *
+     * @param section the section.
+     * @param output the output.
+     * @param stringIndexes the index of each string in the table.
+     * @param strings the string table.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeSection(
+            CP2KSection section,
+            DataOutputStream output,
+            Map<String, Integer> stringIndexes,
+            List<String> strings) throws IOException {
+
+        writeString(section.getSanitisedName(), output, stringIndexes, strings);
+        writeString(section.getCp2kName(), output, stringIndexes, strings);
+
+        List<CP2KKeyWord> keyWords = section.getKeyWords();
+        output.writeInt(keyWords.size());
+        for (CP2KKeyWord keyWord : keyWords) {
+            writeString(keyWord.getSanitisedName(), output, stringIndexes, strings);
+            writeString(keyWord.getCp2kName(), output, stringIndexes, strings);
+            List<String> aliases = keyWord.getAliases();
+            output.writeInt(aliases.size());
+            for (String alias : aliases) {
+                writeString(alias, output, stringIndexes, strings);
+            }
+        }
+
+        output.writeInt(section.getSubSections().size());
+        for (CP2KSection subSection : section.getSubSections()) {
+            writeSection(subSection, output, stringIndexes, strings);
+        }
+    }
+
+    /**
+     * Write a string reference, adding the string to the table if new.
+     *
+     * @param string the string, or null.
+     * @param output the output.
+     * @param stringIndexes the index of each string in the table.
+     * @param strings the string table.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeString(
+            String string,
+            DataOutputStream output,
+            Map<String, Integer> stringIndexes,
+            List<String> strings) throws IOException {
+
+        if (string == null) {
+            output.writeInt(-1);
+            return;
+        }
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndexes.put(string, index);
+        }
+        output.writeInt(index);
+    }
+
+    /**
+     * A section tree loaded from an index, with the checksum from the
+     * index header.
+     */
+    public static final class Loaded {
+
+        /** The top level section. */
+        private final CP2KSection m_topLevelSection;
+
+        /** The CRC32 checksum of the index. */
+        private final long m_checksum;
+
+        /**
+         * Instantiates a new loaded index.
+         *
+         * @param topLevelSection the top level section.
+         * @param checksum the CRC32 checksum of the index.
+         */
+        private Loaded(CP2KSection topLevelSection, long checksum) {
+            m_topLevelSection = topLevelSection;
+            m_checksum = checksum;
+        }
+
+        /**
+         * Gets the top level section.
+         *
+         * @return the top level section.
+         */
+        public CP2KSection getTopLevelSection() {
+            return m_topLevelSection;
+        }
+
+        /**
+         * Gets the checksum of the index, the same as
+         * {@link SchemaIndex#checksum(CP2KSection)} of the section tree.
+         *
+         * @return the CRC32 checksum.
+         */
+        public long getChecksum() {
+            return m_checksum;
+        }
+    }
+}
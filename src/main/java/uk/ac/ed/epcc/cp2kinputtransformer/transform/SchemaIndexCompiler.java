@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Compiles CP2K schemas to binary indexes, see {@link SchemaIndex}.
+ * This is run when the project is built, compiling each schema 'ID.xsd'
+ * in the schema directory to an index 'ID.idx' in the output directory,
+ * and listing the IDs of all the schemas in 'templates.list', see
+ * {@link SchemaCache#getBundledTemplateIds()}.
+ *
+ * @author Jeremy Nowell
+ */
+public final class SchemaIndexCompiler {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(SchemaIndexCompiler.class.getName());
+
+    /** File name extension of schemas. */
+    private static final String SCHEMA_EXTENSION = ".xsd";
+
+    /** File name extension of indexes. */
+    private static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * Not instantiable.
+     */
+    private SchemaIndexCompiler() {
+    }
+
+    /**
+     * Compile a schema to an index.
+     *
+     * @param schemaFile the schema file.
+     * @param indexFile the index file to write.
+     * @return the number of sections in the schema.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static int compile(File schemaFile, File indexFile) throws IOException {
+        CP2KSection topLevelSection;
+        InputStream is = new BufferedInputStream(new FileInputStream(schemaFile));
+        try {
+            topLevelSection = TextInputProcessor.loadSchema(is);
+        } finally {
+            is.close();
+        }
+        int sectionCount = topLevelSection.populateAllContents();
+
+        // Write to a temporary file first, so a failed build leaves no partial index.
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            SchemaIndex.write(topLevelSection, os);
+        } finally {
+            os.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to replace schema index: " + indexFile);
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Unable to write schema index: " + indexFile);
+        }
+        return sectionCount;
+    }
+
+    /**
+     * Compile all schemas in a directory.
+     *
+     * @param schemaDirectory the directory containing the schemas.
+     * @param outputDirectory the directory to write the indexes to.
+     * @return the number of schemas compiled.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static int compileAll(File schemaDirectory, File outputDirectory) throws IOException {
+        File[] schemaFiles = schemaDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SCHEMA_EXTENSION);
+            }
+        });
+        if (schemaFiles == null) {
+            s_Log.warning("No schema directory: " + schemaDirectory);
+            return 0;
+        }
+        Arrays.sort(schemaFiles);
+
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory: " + outputDirectory);
+        }
+
+        List<String> templateIds = new ArrayList<String>();
+        for (File schemaFile : schemaFiles) {
+            String name = schemaFile.getName();
+            String templateId = name.substring(0, name.length() - SCHEMA_EXTENSION.length());
+            templateIds.add(templateId);
+            File indexFile = new File(outputDirectory, templateId + INDEX_EXTENSION);
+
+            long start = System.nanoTime();
+            int sectionCount = compile(schemaFile, indexFile);
+            s_Log.info("Compiled schema " + name + ": " + sectionCount + " sections, "
+                    + indexFile.length() + " bytes, in "
+                    + ((System.nanoTime() - start) / 1000000) + " ms");
+        }
+        writeTemplateList(templateIds,
+                new File(outputDirectory, SchemaCache.TEMPLATE_LIST_FILE_NAME.substring(1)));
+        return schemaFiles.length;
+    }
+
+    /**
+     * Write the list of template IDs, one per line.
+     *
+     * @param templateIds the template IDs.
+     * @param listFile the file to write.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeTemplateList(List<String> templateIds, File listFile)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(listFile), "UTF-8");
+        try {
+            for (String templateId : templateIds) {
+                writer.write(templateId);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Compile all schemas in a directory.
+     *
+     * @param args the schema directory and the output directory.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SchemaIndexCompiler SCHEMA_DIRECTORY OUTPUT_DIRECTORY");
+            System.exit(1);
+        }
+        compileAll(new File(args[0]), new File(args[1]));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads templates into a {@link SchemaCache} ahead of their first use,
+ * in parallel on a fork-join pool, fully populating each section tree.
+ *
+ * <p>The warmer is ready once every template has been loaded or has failed
+ * to load. A warmer which has never been started is always ready, so
+ * templates are then loaded on first use as usual.
+ *
+ * @author Jeremy Nowell
+ */
+public class TemplateWarmer {
+    /** Logger. */
+    private static final Logger s_Log = Logger.getLogger(TemplateWarmer.class.getName());
+
+    /** The cache to load templates into. */
+    private final SchemaCache m_cache;
+
+    /** The maximum number of templates loaded at once. */
+    private final int m_parallelism;
+
+    /** Counted down when all templates have been loaded. */
+    private final CountDownLatch m_finished = new CountDownLatch(1);
+
+    /** Number of templates still to load. */
+    private final AtomicInteger m_remaining = new AtomicInteger();
+
+    /** Number of templates which failed to load. */
+    private final AtomicInteger m_failures = new AtomicInteger();
+
+    /** The pool loading templates, or null if not started. */
+    private ForkJoinPool m_pool;
+
+    /** Time the warm-up started, in nanoseconds. */
+    private long m_startNanos;
+
+    /** Whether the warmer has been shut down. */
+    private boolean m_shutdown;
+
+    /**
+     * Instantiates a new template warmer.
+     *
+     * @param cache the cache to load templates into.
+     * @param parallelism the maximum number of templates loaded at once.
+     */
+    public TemplateWarmer(SchemaCache cache, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        m_cache = cache;
+        m_parallelism = parallelism;
+    }
+
+    /**
+     * Start loading templates in the background. Only the first call has
+     * any effect, and none once shut down.
+     *
+     * @param templateIds IDs of the templates to load.
+     * @return true, if this call started the warm-up.
+     */
+    public synchronized boolean start(List<String> templateIds) {
+        if (m_pool != null || m_shutdown) {
+            return false;
+        }
+        if (templateIds.size() > m_cache.getMaxEntries()) {
+            s_Log.warning("Warming up " + templateIds.size()
+                    + " templates, more than the schema cache holds: " + m_cache.getMaxEntries());
+        }
+        m_startNanos = System.nanoTime();
+        m_pool = new ForkJoinPool(Math.max(1, Math.min(m_parallelism, templateIds.size())));
+        m_remaining.set(templateIds.size());
+        if (templateIds.isEmpty()) {
+            m_finished.countDown();
+        }
+        for (final String templateId : templateIds) {
+            m_pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warm(templateId);
+                }
+            });
+        }
+        // Let the queued loads finish, then release the threads.
+        m_pool.shutdown();
+        return true;
+    }
+
+    /**
+     * Load a single template.
+     *
+     * @param templateId ID of the template.
+     */
+    private void warm(String templateId) {
+        try {
+            m_cache.populate(templateId);
+        } catch (IOException e) {
+            m_failures.incrementAndGet();
+            s_Log.warning("Unable to warm up template " + templateId + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            m_failures.incrementAndGet();
+            s_Log.log(Level.WARNING, "Unable to warm up template " + templateId, e);
+        } finally {
+            if (m_remaining.decrementAndGet() == 0) {
+                s_Log.info("Warmed up templates in "
+                        + ((System.nanoTime() - m_startNanos) / 1000000) + " ms, "
+                        + m_failures.get() + " failed");
+                m_finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the warm-up has finished, or was never started.
+     *
+     * @return true, if ready.
+     */
+    public synchronized boolean isReady() {
+        return m_pool == null || m_finished.getCount() == 0;
+    }
+
+    /**
+     * Waits for the warm-up to finish.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout.
+     * @return true, if ready.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            if (m_pool == null) {
+                return true;
+            }
+        }
+        return m_finished.await(timeout, unit);
+    }
+
+    /**
+     * Gets the number of templates still to load.
+     *
+     * @return the number of templates.
+     */
+    public int getRemaining() {
+        return m_remaining.get();
+    }
+
+    /**
+     * Gets the number of templates which failed to load.
+     *
+     * @return the number of failures.
+     */
+    public int getFailures() {
+        return m_failures.get();
+    }
+
+    /**
+     * Stops loading templates, interrupting any loads in progress. Loads not
+     * yet started are abandoned, so the warm-up never finishes.
+     */
+    public synchronized void shutdownNow() {
+        m_shutdown = true;
+        if (m_pool != null) {
+            m_pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks whether the warmer has been shut down, after which a new
+     * warmer is needed to load templates again.
+     *
+     * @return true, if shut down.
+     */
+    public synchronized boolean isShutdown() {
+        return m_shutdown;
+    }
+}
@@ -21,28 +21,49 @@ package uk.ac.ed.epcc.cp2kinputtransformer.transform;
 import org.apache.ws.commons.schema.XmlSchema;
 import org.apache.ws.commons.schema.XmlSchemaCollection;
 import org.apache.ws.commons.schema.XmlSchemaElement;
-import org.apache.ws.commons.schema.constants.Constants;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.xml.namespace.QName;
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.stream.StreamSource;
 
 /**
  * Class for processing CP2K input files in text into libhpc compatible
  * XML files.
  *
+ * <p>A processor holds no state for individual transforms, so a single
+ * processor may be used for any number of transforms, including
+ * concurrently from several threads.
+ *
+ * <p>A processor given a fork-join pool transforms the sections directly
+ * below the top level of large input files in parallel in the pool. The
+ * whole input file is then read into memory before it is transformed.
+ *
+ * <p>Each line of default keyword, such as an atom in a COORD section, is
+ * written as a separate default keyword element. A processor may instead
+ * write compact rows, with a run of lines of default keyword written as a
+ * single element holding the lines separated by newlines.
+ *
  * @author Jeremy Nowell
  */
 public class TextInputProcessor {
@@ -52,58 +73,70 @@ public class TextInputProcessor {
     private static final Logger s_Log = Logger.getLogger(TextInputProcessor.class.getName());
 
     /**
-     * Schema file name.
+     * Default maximum depth of nested sections below the top level.
+     */
+    public static final int DEFAULT_MAX_SECTION_DEPTH = 64;
+
+    /**
+     * Default minimum number of characters of input transformed in parallel.
      */
-    private CP2KSection m_topLevelSection;
+    public static final int DEFAULT_PARALLEL_MIN_CHARS = 1 << 20;
 
     /**
-     * Buffered string reader for input.
+     * Number of lines between checks for interruption of the transform.
      */
-    private BufferedReader m_inputReader;
+    private static final int INTERRUPT_CHECK_INTERVAL = 1024;
 
     /**
-     * XML output writer.
+     * Encoding of input files read from input streams.
      */
-    private XMLStreamWriter m_outputWriter;
+    private static final Charset INPUT_ENCODING = Charset.forName("UTF-8");
 
     /**
-     * The comment regexp.
-     * Whitespace, then a '#', then anything.
+     * Name of the element holding default keywords.
      */
-    private static final Pattern COMMENT = Pattern.compile("^\\s*#.*");
+    private static final byte[] DEFAULT_KEYWORD = XmlEmitter.encode("CP2K_KEYWORD_DEFAULT_KEYWORD");
 
     /**
-     * The START_SECTION regexp.
-     * Whitespace, then an '&', then section name.
+     * Name of the element holding section parameters.
      */
-    private static final Pattern START_SECTION = Pattern.compile("^\\s*&(\\S+)\\s?(.+)?");
+    private static final byte[] SECTION_PARAMETERS =
+            XmlEmitter.encode("CP2K_KEYWORD_SECTION_PARAMETERS");
 
     /**
-     * The END_SECTION regexp.
-     * Whitespace, then '&END'.
+     * Name of the attribute holding keyword units.
      */
-    private static final Pattern END_SECTION = Pattern.compile("^\\s*&END.*");
+    private static final byte[] UNIT = XmlEmitter.encode("UNIT");
 
     /**
-     * The KEYWORD_VALUE regexp.
-     * Whitespace, then keyword name, [possible unit], then keyword value, [possible unit].
+     * Separator of the lines of default keyword in a compact row element.
      */
-    private static final Pattern KEYWORD_VALUE =
-            Pattern.compile("^\\s*(\\S+)\\s*(?:\\[.+\\])?([\\w\\.\\-\\+\\s]*)(?:\\[.+\\]\\s*)?$");
+    private static final char[] ROW_SEPARATOR = {'\n'};
 
     /**
-     * The bare keyword regexp.
-     * Whitespace then keyword name, whitespace, line end.
+     * Top level section of the schema.
      */
-    private static final Pattern BARE_KEYWORD =
-            Pattern.compile("^\\s*(\\S+)\\s*$");
+    private final CP2KSection m_topLevelSection;
 
     /**
-     * Keyword, and unit regexp.
-     * Space, followed by [unit] before value.
+     * Maximum depth of nested sections below the top level.
      */
-    private static final Pattern KEYWORD_UNIT =
-            Pattern.compile("^\\s*(\\S+).+\\[(\\S+)\\].*");
+    private final int m_maxSectionDepth;
+
+    /**
+     * Pool transforming sections in parallel, or null to transform sequentially.
+     */
+    private final ForkJoinPool m_parallelPool;
+
+    /**
+     * Minimum number of characters of input transformed in parallel.
+     */
+    private final int m_parallelMinChars;
+
+    /**
+     * Whether runs of default keyword lines are written as single elements.
+     */
+    private final boolean m_compactRows;
 
     /**
      * Constructor.
@@ -112,21 +145,130 @@ public class TextInputProcessor {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public TextInputProcessor(String schemaFileName) throws IOException {
+        this(loadSchema(schemaFileName));
+    }
+
+    /**
+     * Constructor using an already loaded schema.
+     *
+     * @param topLevelSection the top level CP2K section of the schema.
+     */
+    public TextInputProcessor(CP2KSection topLevelSection) {
+        this(topLevelSection, DEFAULT_MAX_SECTION_DEPTH);
+    }
 
-        s_Log.fine("Constructing processor for schema: " + schemaFileName);
+    /**
+     * Constructor using an already loaded schema and a limit on section nesting.
+     *
+     * @param topLevelSection the top level CP2K section of the schema.
+     * @param maxSectionDepth maximum depth of nested sections below the top level.
+     */
+    public TextInputProcessor(CP2KSection topLevelSection, int maxSectionDepth) {
+        this(topLevelSection, maxSectionDepth, null);
+    }
 
-        // Add custom extension registry to system properties for processor.
-        System.setProperty(
-                Constants.SystemConstants.EXTENSION_REGISTRY_KEY,
-                CustomExtensionRegistry.class.getName());
+    /**
+     * Constructor using an already loaded schema and a limit on section
+     * nesting, transforming input files of at least
+     * {@link #DEFAULT_PARALLEL_MIN_CHARS} characters in parallel.
+     *
+     * @param topLevelSection the top level CP2K section of the schema.
+     * @param maxSectionDepth maximum depth of nested sections below the top level.
+     * @param parallelPool the pool to transform sections in, or null to
+     *                     transform sequentially.
+     */
+    public TextInputProcessor(
+            CP2KSection topLevelSection, int maxSectionDepth, ForkJoinPool parallelPool) {
+        this(topLevelSection, maxSectionDepth, parallelPool, false);
+    }
 
-        // TODO check schema file exists, throw exception if not.
-        InputStream is = this.getClass().getResourceAsStream(schemaFileName);
+    /**
+     * Constructor using an already loaded schema and a limit on section
+     * nesting, transforming input files of at least
+     * {@link #DEFAULT_PARALLEL_MIN_CHARS} characters in parallel, and
+     * optionally writing compact rows of default keyword.
+     *
+     * @param topLevelSection the top level CP2K section of the schema.
+     * @param maxSectionDepth maximum depth of nested sections below the top level.
+     * @param parallelPool the pool to transform sections in, or null to
+     *                     transform sequentially.
+     * @param compactRows whether a run of default keyword lines is written
+     *                    as a single element, rather than an element per line.
+     */
+    public TextInputProcessor(CP2KSection topLevelSection, int maxSectionDepth,
+            ForkJoinPool parallelPool, boolean compactRows) {
+        this(topLevelSection, maxSectionDepth, parallelPool, DEFAULT_PARALLEL_MIN_CHARS, compactRows);
+    }
+
+    /**
+     * Constructor using an already loaded schema and a limit on section
+     * nesting, transforming large input files in parallel.
+     *
+     * @param topLevelSection the top level CP2K section of the schema.
+     * @param maxSectionDepth maximum depth of nested sections below the top level.
+     * @param parallelPool the pool to transform sections in, or null to
+     *                     transform sequentially.
+     * @param parallelMinChars the minimum number of characters of input
+     *                         transformed in parallel.
+     * @param compactRows whether a run of default keyword lines is written
+     *                    as a single element, rather than an element per line.
+     */
+    TextInputProcessor(CP2KSection topLevelSection, int maxSectionDepth,
+            ForkJoinPool parallelPool, int parallelMinChars, boolean compactRows) {
+        if (maxSectionDepth < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum section depth must be positive: " + maxSectionDepth);
+        }
+        m_topLevelSection = topLevelSection;
+        m_maxSectionDepth = maxSectionDepth;
+        m_parallelPool = parallelPool;
+        m_parallelMinChars = parallelMinChars;
+        m_compactRows = compactRows;
+    }
 
+    /**
+     * Load a schema file and create the top level section from it.
+     *
+     * @param schemaFileName relative file name of schema.
+     * @return the top level CP2K section.
+     * @throws IOException if the schema cannot be found or read.
+     */
+    public static CP2KSection loadSchema(String schemaFileName) throws IOException {
+
+        s_Log.fine("Loading schema: " + schemaFileName);
+
+        InputStream is = TextInputProcessor.class.getResourceAsStream(schemaFileName);
+
+        if (is == null) {
+            throw new IOException("Unable to find schema file: " + schemaFileName);
+        }
+
+        try {
+            return loadSchema(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Load a schema and create the top level section from it.
+     *
+     * @param is InputStream of the schema, which is not closed.
+     * @return the top level CP2K section.
+     * @throws IOException if the schema cannot be read.
+     */
+    public static CP2KSection loadSchema(InputStream is) throws IOException {
+
+        // Use the custom extension registry for this collection only, so
+        // concurrent loads cannot interfere with each other or with other
+        // XmlSchema users in the same JVM.
         XmlSchemaCollection schemaCol = new XmlSchemaCollection();
+        schemaCol.setExtReg(new CustomExtensionRegistry());
         XmlSchema schema = schemaCol.read(new StreamSource(is));
 
-        s_Log.fine("Got schema:\n" + schema);
+        if (s_Log.isLoggable(Level.FINE)) {
+            s_Log.fine("Got schema:\n" + schema);
+        }
 
         // Root schema element
         QName element = new QName("http://www.libhpc.imperial.ac.uk", "CP2K");
@@ -138,10 +280,16 @@ public class TextInputProcessor {
 
         s_Log.fine("Got schema root element");
 
-        m_topLevelSection = new CP2KSection(rootSchemaElement);
+        return new CP2KSection(rootSchemaElement);
+    }
 
-        // Remove registry from system properties.
-        System.getProperties().remove(Constants.SystemConstants.EXTENSION_REGISTRY_KEY);
+    /**
+     * Gets the maximum depth of nested sections below the top level.
+     *
+     * @return the maximum section depth.
+     */
+    public int getMaxSectionDepth() {
+        return m_maxSectionDepth;
     }
 
     /**
@@ -155,30 +303,30 @@ public class TextInputProcessor {
 
         s_Log.fine("processInputFile");
 
-        // Create reader for input string
-        StringReader stringReader = new StringReader(inputFileContents);
-        m_inputReader = new BufferedReader(stringReader);
-
         // Create writer for output string
         StringWriter stringWriter = new StringWriter();
-        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        processInputFile(new StringReader(inputFileContents), stringWriter);
 
-        try {
-            m_outputWriter = factory.createXMLStreamWriter(stringWriter);
+        String output = stringWriter.toString();
+        stringWriter.close();
 
-            // Start XML output document
-            m_outputWriter.writeStartDocument();
+        return output;
+    }
 
-            // Process input
-            processSection(m_topLevelSection, null);
+    /**
+     * Process UTF-8 encoded text input file into XML.
+     *
+     * @param inputStream InputStream containing contents of CP2K input file to be converted.
+     * @return the string
+     * @throws IOException when problem processing file.
+     */
+    public String processInputFile(InputStream inputStream) throws IOException {
 
-            // End XML output document
-            m_outputWriter.writeEndDocument();
-            m_outputWriter.flush();
-            m_outputWriter.close();
-        } catch (XMLStreamException e) {
-            throw new IOException("Error creating XML Document:", e);
-        }
+        s_Log.fine("processInputFile");
+
+        // Create writer for output string
+        StringWriter stringWriter = new StringWriter();
+        processInputFile(new InputStreamReader(inputStream, INPUT_ENCODING), stringWriter);
 
         String output = stringWriter.toString();
         stringWriter.close();
@@ -187,152 +335,631 @@ public class TextInputProcessor {
     }
 
     /**
-     * Process text input file into XML.
+     * Process text input file into XML, writing the XML as it is produced.
+     * The writer is flushed but not closed. The XML is encoded as UTF-8 and
+     * decoded again on the way to the writer, so unpaired surrogates in the
+     * input are written as '?', and the stream form is faster for large
+     * files.
+     *
+     * @param reader Reader for contents of CP2K input file to be converted.
+     * @param writer Writer to receive the XML.
+     * @return the number of input lines read.
+     * @throws IOException when problem processing file.
+     */
+    public long processInputFile(Reader reader, Writer writer) throws IOException {
+
+        s_Log.fine("processInputFile");
+
+        return processDocument(new TransformContext(
+                new LineReader(reader), new XmlEmitter(writer), PhaseTimings.DISABLED, null));
+    }
+
+    /**
+     * Process UTF-8 encoded text input file into UTF-8 encoded XML, writing
+     * the XML as it is produced. The output stream is flushed but not closed.
      *
      * @param inputStream InputStream containing contents of CP2K input file to be converted.
-     * @return the string
+     * @param outputStream OutputStream to receive the XML.
+     * @return the number of input lines read.
      * @throws IOException when problem processing file.
      */
-    public String processInputFile(InputStream inputStream) throws IOException {
+    public long processInputFile(InputStream inputStream, OutputStream outputStream)
+            throws IOException {
+        return processInputFile(inputStream, outputStream, PhaseTimings.DISABLED);
+    }
+
+    /**
+     * Process UTF-8 encoded text input file into UTF-8 encoded XML, writing
+     * the XML as it is produced, and timing the lexing, name resolution and
+     * XML phases. The output stream is flushed but not closed.
+     *
+     * @param inputStream InputStream containing contents of CP2K input file to be converted.
+     * @param outputStream OutputStream to receive the XML.
+     * @param timings the timer to record the phases in.
+     * @return the number of input lines read.
+     * @throws IOException when problem processing file.
+     */
+    public long processInputFile(
+            InputStream inputStream, OutputStream outputStream, PhaseTimings timings)
+            throws IOException {
+        return processInputFile(inputStream, outputStream, timings, null);
+    }
+
+    /**
+     * Process UTF-8 encoded text input file into UTF-8 encoded XML, writing
+     * the XML as it is produced, timing the phases and tracing each line.
+     * The output stream is flushed but not closed.
+     *
+     * @param inputStream InputStream containing contents of CP2K input file to be converted.
+     * @param outputStream OutputStream to receive the XML.
+     * @param timings the timer to record the phases in.
+     * @param trace the trace to write, or null to trace only if this class
+     *              logs at level FINE.
+     * @return the number of input lines read.
+     * @throws IOException when problem processing file.
+     */
+    public long processInputFile(
+            InputStream inputStream,
+            OutputStream outputStream,
+            PhaseTimings timings,
+            TransformTrace trace) throws IOException {
 
         s_Log.fine("processInputFile");
 
-        // Create reader for input string
-        InputStreamReader streamReader = new InputStreamReader(inputStream);
-        m_inputReader = new BufferedReader(streamReader);
+        return processDocument(new TransformContext(
+                new LineReader(new InputStreamReader(inputStream, INPUT_ENCODING)),
+                new XmlEmitter(outputStream), timings, trace));
+    }
 
-        // Create writer for output string
-        StringWriter stringWriter = new StringWriter();
-        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    /**
+     * Process the input into an XML output document.
+     *
+     * @param context the state of this transform.
+     * @return the number of input lines read.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private long processDocument(TransformContext context) throws IOException {
 
+        XmlEmitter emitter = context.m_emitter;
         try {
-            m_outputWriter = factory.createXMLStreamWriter(stringWriter);
-
             // Start XML output document
-            m_outputWriter.writeStartDocument();
+            emitter.startDocument();
 
             // Process input
-            processSection(m_topLevelSection, null);
+            processSections(context);
 
             // End XML output document
-            m_outputWriter.writeEndDocument();
-            m_outputWriter.flush();
-            m_outputWriter.close();
-        } catch (XMLStreamException e) {
-            throw new IOException("Error creating XML Document:", e);
+            context.m_timings.start(PhaseTimings.Phase.XML);
+            emitter.endDocument();
+            context.m_timings.stop();
+            return context.m_lineNumber;
+        } finally {
+            emitter.release();
         }
+    }
 
-        String output = stringWriter.toString();
-        stringWriter.close();
+    /**
+     * Process all input lines. Nested sections are tracked on an explicit
+     * stack rather than by recursion, so deeply nested input cannot
+     * exhaust the thread stack. Lines are lexed in the buffer of the line
+     * reader, and keyword values, default keywords and comments written
+     * from it, so Strings are only created for section parameters and units.
+     * Large input is transformed in parallel if this processor has a pool
+     * and the transform is not traced.
+     *
+     * @param context the state of this transform.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void processSections(TransformContext context) throws IOException {
 
-        return output;
+        PhaseTimings timings = context.m_timings;
+        LineReader line = context.m_inputReader;
+
+        try {
+            if (m_parallelPool != null && context.m_trace == null) {
+                timings.start(PhaseTimings.Phase.LEX);
+                if (line.readAll() >= m_parallelMinChars) {
+                    processSectionsInParallel(context);
+                    return;
+                }
+            }
+
+            timings.start(PhaseTimings.Phase.XML);
+            startSection(context, m_topLevelSection, null);
+
+            if (processLines(context, line)) {
+                // End of input, so close all open sections.
+                timings.start(PhaseTimings.Phase.XML);
+                closeSections(context, 0);
+            }
+        } catch (IOException e) {
+            throw new IOException("Unable to process input string", e);
+        }
     }
 
     /**
-     * Process section.
+     * Process input lines within the open sections, until the end of the
+     * input or of the top level section. Once a line of default keyword
+     * has been written in a section holding rows, the lines following it
+     * are handled by {@link #processRows} until one is not a row, unless
+     * the transform is traced.
      *
-     * @param currentSection the current section
-     * @param sectionParameters the section parameters
-     * @throws XMLStreamException the XML stream exception
+     * @param context the state of this transform.
+     * @param line the reader of the lines.
+     * @return true at the end of the input, false if the top level section
+     *         was ended.
      * @throws IOException Signals that an I/O exception has occurred.
      */
-    private void processSection(CP2KSection currentSection, String sectionParameters)
-            throws XMLStreamException, IOException {
+    private boolean processLines(TransformContext context, LineReader line) throws IOException {
+
+        XmlEmitter emitter = context.m_emitter;
+        LineLexer lexer = context.m_lexer;
+        Deque<SectionFrame> sections = context.m_sections;
+        PhaseTimings timings = context.m_timings;
+        TransformTrace trace = context.m_trace;
+
+        SectionFrame current = sections.peek();
+        // Whether the current line was read, but not handled, by processRows.
+        boolean pending = false;
+
+        timings.start(PhaseTimings.Phase.LEX);
+        while (pending || line.readLine()) {
+            if (pending) {
+                pending = false;
+            } else {
+                context.m_lineNumber++;
+                checkCancelled(context);
+            }
 
-        String sectionName = currentSection.getSanitisedName();
-        m_outputWriter.writeStartElement(sectionName);
+            LineLexer.LineType lineType = lexer.lex(line);
+            timings.start(PhaseTimings.Phase.XML);
 
-        if (sectionParameters != null) {
-            m_outputWriter.writeStartElement("CP2K_KEYWORD_SECTION_PARAMETERS");
-            m_outputWriter.writeCharacters(sectionParameters);
-            m_outputWriter.writeEndElement();
+            if (trace != null) {
+                trace.log("Line " + context.m_lineNumber + " " + lineType + ": " + line);
+            }
+
+            if (lineType == LineLexer.LineType.SECTION_END) {
+
+                endSection(context, current);
+                if (sections.isEmpty()) {
+                    // End of top level section, ignore anything further.
+                    return false;
+                }
+                current = sections.peek();
+            } else if (lineType == LineLexer.LineType.COMMENT) {
+                emitter.comment(line.getBuffer(), line.getLineStart(), line.length());
+            } else if (lineType == LineLexer.LineType.SECTION_START) {
+                // New section starting
+                // Close default keyword element if open.
+                closeDefaultKeyword(context, current);
+
+                timings.start(PhaseTimings.Phase.RESOLVE);
+                CP2KSection newSection = current.m_section.findSubSection(
+                        line, lexer.getSectionNameStart(), lexer.getSectionNameEnd());
+                timings.start(PhaseTimings.Phase.XML);
+                if (trace != null) {
+                    trace.log("Section " + lexer.getSectionName()
+                            + (newSection != null ? "" : " not in schema, ignored"));
+                }
+                if (newSection != null) {
+                    checkSectionDepth(sections.size(), context.m_lineNumber);
+                    String newSectionParameters = lexer.getSectionParameters();
+                    current = startSection(context, newSection, newSectionParameters);
+                }
+            } else {
+                processKeyword(context, current, line);
+                if (current.m_defaultKeywordOpen && current.m_rows && trace == null) {
+                    pending = processRows(context, current, line);
+                }
+            }
+            timings.start(PhaseTimings.Phase.LEX);
         }
+        return true;
+    }
 
-        String line;
+    /**
+     * Process the lines following a line of default keyword in a section
+     * holding rows, writing each line that is certainly another row of
+     * default keyword straight from the line reader, without lexing the
+     * line or looking up its first token unless a keyword name could start
+     * it. The output is the same as that of {@link #processKeyword}. The
+     * time taken is recorded as writing XML.
+     *
+     * @param context the state of this transform.
+     * @param current the current section, with its default keyword open.
+     * @param line the reader of the lines.
+     * @return true if a line which may not be a row was read and left to
+     *         be processed, false at the end of the input.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private boolean processRows(TransformContext context, SectionFrame current, LineReader line)
+            throws IOException {
 
-        boolean defaultKeywordOpen = false;
+        XmlEmitter emitter = context.m_emitter;
+        CP2KSection section = current.m_section;
+        boolean compactRows = m_compactRows;
 
-        try {
-            while ((line = m_inputReader.readLine()) != null) {
+        while (line.readLine()) {
+            context.m_lineNumber++;
+            checkCancelled(context);
 
-                s_Log.fine("Processing line:\n" + line);
+            char[] buffer = line.getBuffer();
+            int start = line.getLineStart();
+            int end = start + line.length();
 
-                if (isSectionEnd(line)) {
-                    s_Log.fine("Got Section END");
+            int first = start;
+            while (first < end && LineLexer.isWhitespace(buffer[first])) {
+                first++;
+            }
+            if (first < end && (buffer[first] == '&' || buffer[first] == '#')) {
+                // A section or comment.
+                return true;
+            }
+            int tokenEnd = first;
+            while (tokenEnd < end && !LineLexer.isWhitespace(buffer[tokenEnd])) {
+                tokenEnd++;
+            }
+            if (section.hasKeyWordPrefix(line, first - start, tokenEnd - start)) {
+                return true;
+            }
 
-                    if (defaultKeywordOpen) {
-                        m_outputWriter.writeEndElement();
-                        defaultKeywordOpen = false;
-                    }
+            if (compactRows) {
+                emitter.characters(ROW_SEPARATOR, 0, ROW_SEPARATOR.length);
+            } else {
+                emitter.restartElement();
+            }
+            emitter.characters(buffer, start, end - start);
+        }
+        return false;
+    }
 
-                    m_outputWriter.writeEndElement();
-                    return;
-                }
-                if (isComment(line)) {
-                    m_outputWriter.writeComment(line);
+    /**
+     * Throw if the transform has been cancelled, checking only on every
+     * {@link #INTERRUPT_CHECK_INTERVAL} lines.
+     *
+     * @param context the state of this transform.
+     * @throws InterruptedIOException if the transform has been cancelled.
+     */
+    private static void checkCancelled(TransformContext context) throws InterruptedIOException {
+        // Allow a cancelled transform to stop early.
+        if (context.m_lineNumber % INTERRUPT_CHECK_INTERVAL == 0 && context.isCancelled()) {
+            throw new InterruptedIOException(
+                    "Transform interrupted at line " + context.m_lineNumber);
+        }
+    }
+
+    /**
+     * Check a new section may be opened.
+     *
+     * @param openSections the number of open sections, including the top level.
+     * @param lineNumber the number of the line starting the section.
+     * @throws IOException if the new section would be nested too deeply.
+     */
+    private void checkSectionDepth(int openSections, long lineNumber) throws IOException {
+        if (openSections > m_maxSectionDepth) {
+            throw new IOException("Sections nested deeper than "
+                    + m_maxSectionDepth + " at line " + lineNumber);
+        }
+    }
+
+    /**
+     * Process input already read into the buffer of the line reader,
+     * transforming the sections directly below the top level in parallel.
+     *
+     * <p>A scan of the input finds where each of these sections starts and
+     * ends, following the open sections exactly as the transform does, and
+     * hands each section to the pool as soon as its end is found. The lines
+     * between them, which belong to the top level section, are transformed
+     * on this thread, and the XML of each section copied into the output
+     * in its place, so the output is the same as a sequential transform.
+     * Times of the phases are summed over all threads.
+     *
+     * @param context the state of this transform.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void processSectionsInParallel(TransformContext context) throws IOException {
+
+        PhaseTimings timings = context.m_timings;
+        LineReader line = context.m_inputReader;
+        char[] input = line.getBuffer();
+
+        timings.start(PhaseTimings.Phase.XML);
+        SectionFrame topLevel = startSection(context, m_topLevelSection, null);
+
+        List<InputBlock> blocks = new ArrayList<InputBlock>();
+        try {
+            long lines = splitTopLevel(context, line, blocks);
+
+            for (InputBlock block : blocks) {
+                if (!block.m_section) {
+                    context.m_lineNumber = block.m_firstLine - 1;
+                    if (!processLines(context, new LineReader(input, block.m_start, block.m_end))) {
+                        break;
+                    }
                 } else {
-                    if (isSectionStart(line)) {
-                        // New section starting
-                        s_Log.fine("Got Section START");
-
-                        // Close default keyword element if open.
-                        if (defaultKeywordOpen) {
-                            m_outputWriter.writeEndElement();
-                            defaultKeywordOpen = false;
-                        }
-
-                        String newSectionName = getSectionName(line);
-                        s_Log.fine("Section name: " + newSectionName);
-                        if (currentSection.hasSubSection(newSectionName)) {
-                            CP2KSection newSection = currentSection.getSubSection(newSectionName);
-                            String newSectionParameters = getSectionParameters(line);
-                            processSection(newSection, newSectionParameters);
-                        }
-                    } else {
-                        String keyWordName = getKeywordName(line);
-                        s_Log.fine("Keyword: " + keyWordName);
-                        // Check if line corresponds to an allowed keyword in this section
-                        if (currentSection.hasKeyWord(keyWordName)) {
-                            CP2KKeyWord keyWord = currentSection.getKeyWord(keyWordName);
-                            m_outputWriter.writeStartElement(keyWord.getSanitisedName());
-                            // Write measurement unit as attribute if present
-                            if (keywordHasUnit(line)) {
-                                String unit = getKeywordUnit(line);
-                                m_outputWriter.writeAttribute("UNIT", unit);
-                            }
-                            // Get keyword value
-                            String value = getKeywordValue(line);
-                            // Assume that empty keyword values should be set to T(RUE)
-                            if (value == null || value.isEmpty()) {
-                                value = "T";
-                            }
-                            s_Log.fine("Value: " + value);
-                            m_outputWriter.writeCharacters(value);
-                            m_outputWriter.writeEndElement();
-                        } else {
-                            // Not a keyword, so must be default section parameters
-                            if (!(defaultKeywordOpen)) {
-                                m_outputWriter.writeStartElement("CP2K_KEYWORD_DEFAULT_KEYWORD");
-                                defaultKeywordOpen = true;
-                            } else {
-                                // Repeated section parameter, eg atoms in co-ord section.
-                                // Write extra DEFAULT_KEYWORD element.
-                                m_outputWriter.writeEndElement();
-                                m_outputWriter.writeStartElement("CP2K_KEYWORD_DEFAULT_KEYWORD");
-                            }
-                            m_outputWriter.writeCharacters(line);
-                        }
+                    timings.start(PhaseTimings.Phase.XML);
+                    closeDefaultKeyword(context, topLevel);
+                    timings.stop();
+                    block.await();
+                    timings.start(PhaseTimings.Phase.XML);
+                    block.m_xml.copyTo(context.m_emitter);
+                    for (PhaseTimings.Phase phase : PhaseTimings.Phase.values()) {
+                        timings.add(phase, block.m_timings.getNanos(phase));
                     }
                 }
             }
+            context.m_lineNumber = lines;
+
+            timings.start(PhaseTimings.Phase.XML);
+            closeSections(context, 0);
+        } finally {
+            // Stop any sections still being transformed after a failure.
+            context.m_cancelled.set(true);
+            for (InputBlock block : blocks) {
+                if (block.m_task != null) {
+                    block.m_task.cancel(false);
+                }
+            }
+        }
+    }
 
-            // For CP2K top level element
-            m_outputWriter.writeEndElement();
+    /**
+     * Scan the input for the sections directly below the top level,
+     * following the open sections as {@link #processLines} does, and hand
+     * each section to the pool to transform as soon as its end is found.
+     *
+     * @param context the state of this transform.
+     * @param line the reader of the lines, with all the input read.
+     * @param blocks the list to add the blocks of input to, in order.
+     * @return the number of lines of input processed.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private long splitTopLevel(TransformContext context, LineReader line, List<InputBlock> blocks)
+            throws IOException {
 
-        } catch (IOException e) {
-            throw new IOException("Unable to process input string", e);
+        LineLexer lexer = context.m_lexer;
+        PhaseTimings timings = context.m_timings;
+
+        // The open sections below the top level, innermost first.
+        Deque<CP2KSection> sections = new ArrayDeque<CP2KSection>();
+        InputBlock block = null;
+        long lineNumber = 0;
+
+        timings.start(PhaseTimings.Phase.LEX);
+        while (line.readLine()) {
+            lineNumber++;
+
+            if (lineNumber % INTERRUPT_CHECK_INTERVAL == 0 && context.isCancelled()) {
+                throw new InterruptedIOException("Transform interrupted at line " + lineNumber);
+            }
+
+            LineLexer.LineType lineType = lexer.lex(line);
+            boolean topLevel = sections.isEmpty();
+            CP2KSection newSection = null;
+            if (lineType == LineLexer.LineType.SECTION_START) {
+                timings.start(PhaseTimings.Phase.RESOLVE);
+                newSection = (topLevel ? m_topLevelSection : sections.peek()).findSubSection(
+                        line, lexer.getSectionNameStart(), lexer.getSectionNameEnd());
+                timings.start(PhaseTimings.Phase.LEX);
+            }
+
+            if (topLevel && (block == null || block.m_section || newSection != null)) {
+                block = new InputBlock(line.getLineStart(), lineNumber, newSection != null);
+                blocks.add(block);
+            }
+            // Include the terminator, so a reader of the block reads an empty
+            // last line rather than taking it as the end of the input.
+            block.m_end = line.getLineEnd();
+
+            if (lineType == LineLexer.LineType.SECTION_END) {
+                if (topLevel) {
+                    // End of top level section, ignore anything further.
+                    return lineNumber;
+                }
+                sections.pop();
+                if (sections.isEmpty()) {
+                    submit(context, line.getBuffer(), block);
+                }
+            } else if (newSection != null) {
+                checkSectionDepth(sections.size() + 1, lineNumber);
+                sections.push(newSection);
+            }
         }
+        if (block != null && block.m_section && block.m_task == null) {
+            // Section still open at the end of the input.
+            submit(context, line.getBuffer(), block);
+        }
+        return lineNumber;
+    }
 
+    /**
+     * Hand a section directly below the top level to the pool to transform.
+     *
+     * @param context the state of this transform.
+     * @param input the characters of the input.
+     * @param block the block of input holding the section.
+     */
+    private void submit(final TransformContext context, final char[] input, final InputBlock block) {
+        block.m_task = m_parallelPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processBlock(context, input, block);
+                } catch (Throwable t) {
+                    block.m_failure = t;
+                }
+            }
+        });
+    }
+
+    /**
+     * Transform a section directly below the top level into its own XML,
+     * held by the block.
+     *
+     * @param parent the state of the whole transform.
+     * @param input the characters of the input.
+     * @param block the block of input holding the section.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void processBlock(TransformContext parent, char[] input, InputBlock block)
+            throws IOException {
+        PhaseTimings timings = parent.m_timings.isEnabled() ? new PhaseTimings() : PhaseTimings.DISABLED;
+        XmlFragment xml = new XmlFragment();
+        TransformContext context = new TransformContext(parent,
+                new LineReader(input, block.m_start, block.m_end), new XmlEmitter(xml), timings);
+        try {
+            // The top level section is already started in the output.
+            context.m_sections.push(new SectionFrame(m_topLevelSection));
+            context.m_lineNumber = block.m_firstLine - 1;
+            processLines(context, context.m_inputReader);
+
+            // Close the section if it is still open at the end of the input.
+            timings.start(PhaseTimings.Phase.XML);
+            closeSections(context, 1);
+            context.m_emitter.flush();
+            timings.stop();
+        } finally {
+            context.m_emitter.release();
+        }
+        block.m_xml = xml;
+        block.m_timings = timings;
+    }
+
+    /**
+     * Process a keyword line.
+     *
+     * @param context the state of this transform.
+     * @param current the current section.
+     * @param line the line
+     */
+    private void processKeyword(TransformContext context, SectionFrame current, LineReader line)
+            throws IOException {
+
+        XmlEmitter emitter = context.m_emitter;
+        LineLexer lexer = context.m_lexer;
+
+        PhaseTimings timings = context.m_timings;
+
+        timings.start(PhaseTimings.Phase.RESOLVE);
+        CP2KKeyWord keyWord;
+        if (lexer.hasKeywordName()) {
+            keyWord = current.m_section.findKeyWord(
+                    line, lexer.getKeywordNameStart(), lexer.getKeywordNameEnd());
+        } else {
+            keyWord = current.m_section.getKeyWord(null);
+        }
+        timings.start(PhaseTimings.Phase.XML);
+        TransformTrace trace = context.m_trace;
+        // Check if line corresponds to an allowed keyword in this section
+        if (keyWord != null) {
+            emitter.startElement(keyWord.getXmlName());
+            // Write measurement unit as attribute if present
+            if (lexer.hasKeywordUnit()) {
+                String unit = lexer.getKeywordUnit();
+                emitter.attribute(UNIT, unit);
+            }
+            // Write keyword value from the line, assuming that empty
+            // keyword values should be set to T(RUE)
+            int valueStart = lexer.getKeywordValueStart();
+            int valueLength = lexer.getKeywordValueEnd() - valueStart;
+            if (valueStart == -1 || valueLength == 0) {
+                if (trace != null) {
+                    trace.log("Keyword " + keyWord.getSanitisedName() + ": T");
+                }
+                emitter.characters("T");
+            } else {
+                if (trace != null) {
+                    trace.log("Keyword " + keyWord.getSanitisedName() + ": " + lexer.getKeywordValue());
+                }
+                emitter.characters(line.getBuffer(), line.getLineStart() + valueStart, valueLength);
+            }
+            emitter.endElement();
+        } else {
+            // Not a keyword, so must be default section parameters
+            if (trace != null) {
+                trace.log("Default keyword: " + line);
+            }
+            if (!(current.m_defaultKeywordOpen)) {
+                emitter.startElement(DEFAULT_KEYWORD);
+                current.m_defaultKeywordOpen = true;
+            } else if (m_compactRows) {
+                // Repeated section parameter, added to the open element.
+                emitter.characters(ROW_SEPARATOR, 0, ROW_SEPARATOR.length);
+            } else {
+                // Repeated section parameter, eg atoms in co-ord section.
+                // Write extra DEFAULT_KEYWORD element.
+                emitter.restartElement();
+            }
+            emitter.characters(line.getBuffer(), line.getLineStart(), line.length());
+        }
+    }
+
+    /**
+     * Start a section, writing its element and parameters.
+     *
+     * @param context the state of this transform.
+     * @param section the section to start
+     * @param sectionParameters the section parameters
+     * @return the frame for the new section, now on top of the stack.
+     */
+    private SectionFrame startSection(
+            TransformContext context,
+            CP2KSection section,
+            String sectionParameters) throws IOException {
+
+        XmlEmitter emitter = context.m_emitter;
+
+        emitter.startElement(section.getXmlName());
+
+        if (sectionParameters != null) {
+            emitter.startElement(SECTION_PARAMETERS);
+            emitter.characters(sectionParameters);
+            emitter.endElement();
+        }
+
+        SectionFrame frame = new SectionFrame(section);
+        context.m_sections.push(frame);
+        return frame;
+    }
+
+    /**
+     * End the section on top of the stack, closing its element.
+     *
+     * @param context the state of this transform.
+     * @param current the current section.
+     */
+    private void endSection(TransformContext context, SectionFrame current)
+            throws IOException {
+        closeDefaultKeyword(context, current);
+        context.m_emitter.endElement();
+        context.m_sections.pop();
+    }
+
+    /**
+     * End open sections until only the given number remain open.
+     *
+     * @param context the state of this transform.
+     * @param remaining the number of sections to leave open.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void closeSections(TransformContext context, int remaining) throws IOException {
+        while (context.m_sections.size() > remaining) {
+            endSection(context, context.m_sections.peek());
+        }
+    }
+
+    /**
+     * Close the default keyword element of a section if open.
+     *
+     * @param context the state of this transform.
+     * @param current the current section.
+     */
+    private void closeDefaultKeyword(TransformContext context, SectionFrame current)
+            throws IOException {
+        if (current.m_defaultKeywordOpen) {
+            context.m_emitter.endElement();
+            current.m_defaultKeywordOpen = false;
+        }
     }
 
     /**
@@ -342,8 +969,7 @@ public class TextInputProcessor {
      * @return true if is comment line
      */
     protected static boolean isComment(String line) {
-        Matcher matcher = COMMENT.matcher(line);
-        return matcher.matches();
+        return lex(line).getType() == LineLexer.LineType.COMMENT;
     }
 
     /**
@@ -353,19 +979,18 @@ public class TextInputProcessor {
      * @return true, if is section end
      */
     protected static boolean isSectionEnd(String line) {
-        Matcher matcher = END_SECTION.matcher(line);
-        return matcher.matches();
+        return lex(line).getType() == LineLexer.LineType.SECTION_END;
     }
 
     /**
-     * Checks if line is section start.
+     * Checks if line is section start. Section end lines also have
+     * the form of a section start.
      *
      * @param line the line
      * @return true, if is section start
      */
     protected static boolean isSectionStart(String line) {
-        Matcher matcher = START_SECTION.matcher(line);
-        return matcher.matches();
+        return lex(line).hasSectionName();
     }
 
     /**
@@ -375,12 +1000,7 @@ public class TextInputProcessor {
      * @return the section name
      */
     protected static String getSectionName(String line) {
-        Matcher matcher = START_SECTION.matcher(line);
-        if (matcher.matches()) {
-            return matcher.group(1);
-        } else {
-            return null;
-        }
+        return lex(line).getSectionName();
     }
 
     /**
@@ -390,12 +1010,7 @@ public class TextInputProcessor {
      * @return the section parameters
      */
     protected static String getSectionParameters(String line) {
-        Matcher matcher = START_SECTION.matcher(line);
-        if (matcher.matches()) {
-            return matcher.group(2);
-        } else {
-            return null;
-        }
+        return lex(line).getSectionParameters();
     }
 
     /**
@@ -405,16 +1020,7 @@ public class TextInputProcessor {
      * @return the keyword name
      */
     protected static String getKeywordName(String line) {
-        Matcher matcher = BARE_KEYWORD.matcher(line);
-        if (matcher.matches()) {
-            return matcher.group(1);
-        }
-        matcher = KEYWORD_VALUE.matcher(line);
-        if (matcher.matches()) {
-            return matcher.group(1);
-        } else {
-            return null;
-        }
+        return lex(line).getKeywordName();
     }
 
     /**
@@ -424,16 +1030,7 @@ public class TextInputProcessor {
      * @return the keyword value
      */
     protected static String getKeywordValue(String line) {
-        Matcher matcher = BARE_KEYWORD.matcher(line);
-        if (matcher.matches()) {
-            return null;
-        }
-        matcher = KEYWORD_VALUE.matcher(line);
-        if (matcher.matches()) {
-            return (matcher.group(2)).trim();
-        } else {
-            return null;
-        }
+        return lex(line).getKeywordValue();
     }
 
     /**
@@ -443,8 +1040,7 @@ public class TextInputProcessor {
      * @return boolean
      */
     protected static boolean keywordHasUnit(String line) {
-        Matcher matcher = KEYWORD_UNIT.matcher(line);
-        return matcher.matches();
+        return lex(line).hasKeywordUnit();
     }
 
     /**
@@ -454,11 +1050,226 @@ public class TextInputProcessor {
      * @return the keyword unit or null if no unit
      */
     protected static String getKeywordUnit(String line) {
-        Matcher matcher = KEYWORD_UNIT.matcher(line);
-        if (matcher.matches()) {
-            return matcher.group(2);
-        } else {
-            return null;
+        return lex(line).getKeywordUnit();
+    }
+
+    /**
+     * Lex a single line with a new lexer.
+     *
+     * @param line the line to process
+     * @return the lexer, ready to read the parts of the line
+     */
+    private static LineLexer lex(String line) {
+        LineLexer lexer = new LineLexer();
+        lexer.lex(line);
+        return lexer;
+    }
+
+    /**
+     * The state of a single transform.
+     */
+    private static final class TransformContext {
+
+        /** Reader for input lines. */
+        private final LineReader m_inputReader;
+
+        /** XML output. */
+        private final XmlEmitter m_emitter;
+
+        /** Lexer for input lines. */
+        private final LineLexer m_lexer = new LineLexer();
+
+        /** The open sections, innermost first. */
+        private final Deque<SectionFrame> m_sections = new ArrayDeque<SectionFrame>();
+
+        /** Timer for the phases of the transform. */
+        private final PhaseTimings m_timings;
+
+        /** Trace of the transform, or null if not tracing. */
+        private final TransformTrace m_trace;
+
+        /** Number of the current input line. */
+        private long m_lineNumber;
+
+        /** The thread the transform belongs to. */
+        private final Thread m_owner;
+
+        /** Whether parts of the transform on other threads should stop. */
+        private final AtomicBoolean m_cancelled;
+
+        /**
+         * Instantiates the state for a new transform.
+         *
+         * @param reader reader of the lines of the CP2K input file to be converted.
+         * @param emitter XML output.
+         * @param timings timer for the phases of the transform.
+         * @param trace trace of the transform, or null to trace only if
+         *              logging at level FINE.
+         */
+        private TransformContext(
+                LineReader reader,
+                XmlEmitter emitter,
+                PhaseTimings timings,
+                TransformTrace trace) {
+            m_inputReader = reader;
+            m_emitter = emitter;
+            m_timings = timings;
+            if (trace == null && s_Log.isLoggable(Level.FINE)) {
+                trace = new TransformTrace(s_Log, Level.FINE, "");
+            }
+            m_trace = trace;
+            m_owner = Thread.currentThread();
+            m_cancelled = new AtomicBoolean();
+        }
+
+        /**
+         * Instantiates the state for transforming part of the input of
+         * another transform, on another thread, without tracing.
+         *
+         * @param parent the state of the whole transform.
+         * @param reader reader of the lines of the part of the input.
+         * @param emitter XML output for the part.
+         * @param timings timer for the phases of transforming the part.
+         */
+        private TransformContext(
+                TransformContext parent,
+                LineReader reader,
+                XmlEmitter emitter,
+                PhaseTimings timings) {
+            m_inputReader = reader;
+            m_emitter = emitter;
+            m_timings = timings;
+            m_trace = null;
+            m_owner = parent.m_owner;
+            m_cancelled = parent.m_cancelled;
+        }
+
+        /**
+         * Checks whether the transform should stop, because the thread it
+         * belongs to was interrupted or it failed on another thread.
+         *
+         * @return true, if cancelled.
+         */
+        private boolean isCancelled() {
+            return m_cancelled.get() || m_owner.isInterrupted();
+        }
+    }
+
+    /**
+     * An open section of the input.
+     */
+    private static final class SectionFrame {
+
+        /** The section. */
+        private final CP2KSection m_section;
+
+        /** Whether the section is expected to hold rows of default keyword. */
+        private final boolean m_rows;
+
+        /** Whether a default keyword element is open in this section. */
+        private boolean m_defaultKeywordOpen;
+
+        /**
+         * Instantiates a new frame.
+         *
+         * @param section the section.
+         */
+        private SectionFrame(CP2KSection section) {
+            m_section = section;
+            m_rows = section.hasRows();
+        }
+    }
+
+    /**
+     * A block of input lines, either a section directly below the top level
+     * or lines between them.
+     */
+    private static final class InputBlock {
+
+        /** Offset of the first line in the input. */
+        private final int m_start;
+
+        /** Number of the first line. */
+        private final long m_firstLine;
+
+        /** Whether the block is a section transformed in the pool. */
+        private final boolean m_section;
+
+        /** Offset after the last line, including its terminator. */
+        private int m_end;
+
+        /** The task transforming the section, or null if not a section or not yet submitted. */
+        private Future<?> m_task;
+
+        /** XML of the section, once transformed. */
+        private XmlFragment m_xml;
+
+        /** Times of the phases of transforming the section. */
+        private PhaseTimings m_timings;
+
+        /** Failure transforming the section, or null. */
+        private Throwable m_failure;
+
+        /**
+         * Instantiates a new block.
+         *
+         * @param start offset of the first line in the input.
+         * @param firstLine number of the first line.
+         * @param section whether the block is a section transformed in the pool.
+         */
+        private InputBlock(int start, long firstLine, boolean section) {
+            m_start = start;
+            m_firstLine = firstLine;
+            m_section = section;
+        }
+
+        /**
+         * Wait for the section to be transformed.
+         *
+         * @throws IOException if the section could not be transformed, or
+         *                     the wait was interrupted.
+         */
+        private void await() throws IOException {
+            try {
+                m_task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transform interrupted at line " + m_firstLine);
+            } catch (ExecutionException e) {
+                m_failure = e.getCause();
+            }
+            if (m_failure instanceof IOException) {
+                throw (IOException) m_failure;
+            } else if (m_failure instanceof RuntimeException) {
+                throw (RuntimeException) m_failure;
+            } else if (m_failure instanceof Error) {
+                throw (Error) m_failure;
+            } else if (m_failure != null) {
+                throw new IOException(m_failure);
+            }
+        }
+    }
+
+    /**
+     * XML written for part of the input.
+     */
+    private static final class XmlFragment extends ByteArrayOutputStream {
+
+        /**
+         * Instantiates a new fragment.
+         */
+        private XmlFragment() {
+            super(XmlEmitter.BUFFER_SIZE);
+        }
+
+        /**
+         * Copy the XML to an emitter.
+         *
+         * @param emitter the emitter.
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private void copyTo(XmlEmitter emitter) throws IOException {
+            emitter.encoded(buf, 0, count);
         }
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A diagnostic trace of a single transform, recording each input line and
+ * how it was handled.
+ *
+ * <p>A transform without a trace builds no trace messages at all, so
+ * tracing costs nothing when it is off. A trace is created for every
+ * transform when the processor's logger is at level FINE, or may be given
+ * for a single transform to trace just that one, eg on request.
+ *
+ * @author Jeremy Nowell
+ */
+public final class TransformTrace {
+
+    /** The logger to write the trace to. */
+    private final Logger m_logger;
+
+    /** The level to write the trace at. */
+    private final Level m_level;
+
+    /** Prefix of every message, identifying the transform. */
+    private final String m_prefix;
+
+    /**
+     * Instantiates a new trace.
+     *
+     * @param logger the logger to write the trace to.
+     * @param level the level to write the trace at.
+     * @param prefix prefix of every message, identifying the transform.
+     */
+    public TransformTrace(Logger logger, Level level, String prefix) {
+        m_logger = logger;
+        m_level = level;
+        m_prefix = prefix;
+    }
+
+    /**
+     * Write a message to the trace.
+     *
+     * @param message the message.
+     */
+    public void log(String message) {
+        m_logger.log(m_level, m_prefix + message);
+    }
+}
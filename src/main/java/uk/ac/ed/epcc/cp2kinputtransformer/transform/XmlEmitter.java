@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the XML of transformed input files, encoded as UTF-8.
+ *
+ * <p>The output only ever has elements with schema names, a single
+ * attribute and comments, so this writes them straight into a byte buffer
+ * rather than through a general XMLStreamWriter. Element names are given
+ * already encoded, as held by each section and keyword. The output is the
+ * same, byte for byte, as that of the JDK XMLStreamWriter for the same
+ * calls: character data has '&amp;', '&lt;' and '&gt;' escaped, attribute
+ * values also '"', comments are written as they are, and elements are
+ * never written as empty element tags. The only difference is that an
+ * unpaired surrogate character is written as '?'.
+ *
+ * <p>Output to a {@link Writer} is encoded into the same byte buffer and
+ * then decoded, so it pays for two conversions. It is meant for the
+ * convenience methods returning strings, not for large transforms. It is the
+ * same as the characters written by the JDK XMLStreamWriter only if the
+ * character data is well-formed UTF-16. An unpaired surrogate is written
+ * as '?' here too, where the JDK writer passes it through.
+ *
+ * <p>Buffers are taken from a shared pool and returned by
+ * {@link #release()}, so a transform does not allocate its buffer.
+ *
+ * @author Jeremy Nowell
+ */
+final class XmlEmitter {
+
+    /** Size of the output buffer. */
+    static final int BUFFER_SIZE = 8192;
+
+    /** Maximum number of idle buffers kept in the pool. */
+    private static final int POOL_SIZE = 64;
+
+    /** Maximum number of bytes written for a single character. */
+    private static final int MAX_CHARACTER_BYTES = 6;
+
+    /** UTF-8. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Declaration written to a Writer, whose encoding is not known. */
+    private static final byte[] DECLARATION = encode("<?xml version=\"1.0\" ?>");
+
+    /** Declaration written to an OutputStream. */
+    private static final byte[] UTF_8_DECLARATION =
+            encode("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+
+    /** Start of a comment. */
+    private static final byte[] COMMENT_START = encode("<!--");
+
+    /** End of a comment. */
+    private static final byte[] COMMENT_END = encode("-->");
+
+    /** Escape for '&amp;'. */
+    private static final byte[] AMP = encode("&amp;");
+
+    /** Escape for '&lt;'. */
+    private static final byte[] LT = encode("&lt;");
+
+    /** Escape for '&gt;'. */
+    private static final byte[] GT = encode("&gt;");
+
+    /** Escape for '"'. */
+    private static final byte[] QUOT = encode("&quot;");
+
+    /** Idle buffers. */
+    private static final BlockingQueue<byte[]> s_Buffers = new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+
+    /** The output stream written to, or null if writing to a Writer. */
+    private final OutputStream m_outputStream;
+
+    /** The writer written to, or null if writing to an OutputStream. */
+    private final Writer m_writer;
+
+    /** Decoder of the buffer for the writer, or null. */
+    private final CharsetDecoder m_decoder;
+
+    /** Buffer of characters decoded for the writer, or null. */
+    private final CharBuffer m_chars;
+
+    /** The output buffer, or null once released. */
+    private byte[] m_buffer;
+
+    /** Number of bytes in the output buffer. */
+    private int m_count;
+
+    /** Characters of strings being written, reused. */
+    private char[] m_scratch = new char[64];
+
+    /** Names of the open elements, innermost last. */
+    private byte[][] m_openElements = new byte[16][];
+
+    /** Number of open elements. */
+    private int m_depth;
+
+    /** Whether the start tag of the innermost element still needs its '&gt;'. */
+    private boolean m_startTagOpen;
+
+    /**
+     * Instantiates an emitter writing to an output stream.
+     *
+     * @param outputStream the output stream, which is not closed.
+     */
+    XmlEmitter(OutputStream outputStream) {
+        m_outputStream = outputStream;
+        m_writer = null;
+        m_decoder = null;
+        m_chars = null;
+        m_buffer = acquire();
+    }
+
+    /**
+     * Instantiates an emitter writing to a writer. The output is encoded as
+     * UTF-8 and decoded again, so prefer an output stream for large output.
+     *
+     * @param writer the writer, which is not closed.
+     */
+    XmlEmitter(Writer writer) {
+        m_outputStream = null;
+        m_writer = writer;
+        m_decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        m_chars = CharBuffer.allocate(BUFFER_SIZE);
+        m_buffer = acquire();
+    }
+
+    /**
+     * Encode a name or other markup as UTF-8.
+     *
+     * @param name the name.
+     * @return the encoded name.
+     */
+    static byte[] encode(String name) {
+        return name.getBytes(UTF_8);
+    }
+
+    /**
+     * Write the XML declaration. The encoding is declared when writing to
+     * an output stream.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void startDocument() throws IOException {
+        write(m_outputStream != null ? UTF_8_DECLARATION : DECLARATION);
+    }
+
+    /**
+     * Start an element.
+     *
+     * @param name the encoded name of the element.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void startElement(byte[] name) throws IOException {
+        closeStartTag();
+        if (m_depth == m_openElements.length) {
+            byte[][] openElements = new byte[2 * m_depth][];
+            System.arraycopy(m_openElements, 0, openElements, 0, m_depth);
+            m_openElements = openElements;
+        }
+        m_openElements[m_depth++] = name;
+        writeByte('<');
+        write(name);
+        m_startTagOpen = true;
+    }
+
+    /**
+     * Write an attribute of the element just started.
+     *
+     * @param name the encoded name of the attribute.
+     * @param value the value.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void attribute(byte[] name, String value) throws IOException {
+        if (!m_startTagOpen) {
+            throw new IllegalStateException("Attribute written outside a start tag");
+        }
+        writeByte(' ');
+        write(name);
+        writeByte('=');
+        writeByte('"');
+        writeEscaped(toChars(value), 0, value.length(), true);
+        writeByte('"');
+    }
+
+    /**
+     * Write character data.
+     *
+     * @param text the characters.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void characters(String text) throws IOException {
+        closeStartTag();
+        writeEscaped(toChars(text), 0, text.length(), false);
+    }
+
+    /**
+     * Write character data from part of an array.
+     *
+     * @param text the array of characters.
+     * @param start the offset of the first character.
+     * @param length the number of characters.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void characters(char[] text, int start, int length) throws IOException {
+        closeStartTag();
+        writeEscaped(text, start, start + length, false);
+    }
+
+    /**
+     * Write a comment. The text is not checked or escaped.
+     *
+     * @param text the array of characters.
+     * @param start the offset of the first character.
+     * @param length the number of characters.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void comment(char[] text, int start, int length) throws IOException {
+        closeStartTag();
+        write(COMMENT_START);
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            if (m_count > m_buffer.length - MAX_CHARACTER_BYTES) {
+                flushBuffer();
+            }
+            i = writeCharacter(text[i], text, i, end);
+        }
+        write(COMMENT_END);
+    }
+
+    /**
+     * Write XML already encoded, such as that written by another emitter
+     * to an output stream.
+     *
+     * @param xml the array of encoded XML.
+     * @param start the offset of the first byte.
+     * @param length the number of bytes.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void encoded(byte[] xml, int start, int length) throws IOException {
+        closeStartTag();
+        write(xml, start, length);
+    }
+
+    /**
+     * End the innermost open element.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void endElement() throws IOException {
+        if (m_depth == 0) {
+            throw new IllegalStateException("No element to end");
+        }
+        closeStartTag();
+        byte[] name = m_openElements[--m_depth];
+        m_openElements[m_depth] = null;
+        writeByte('<');
+        writeByte('/');
+        write(name);
+        writeByte('>');
+    }
+
+    /**
+     * End the innermost open element and start another with the same name,
+     * as for each of a run of repeated elements.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void restartElement() throws IOException {
+        if (m_depth == 0) {
+            throw new IllegalStateException("No element to restart");
+        }
+        closeStartTag();
+        byte[] name = m_openElements[m_depth - 1];
+        writeByte('<');
+        writeByte('/');
+        write(name);
+        writeByte('>');
+        writeByte('<');
+        write(name);
+        m_startTagOpen = true;
+    }
+
+    /**
+     * End any open elements and flush the output.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void endDocument() throws IOException {
+        while (m_depth > 0) {
+            endElement();
+        }
+        flush();
+    }
+
+    /**
+     * Write the buffered output and flush the output stream or writer.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void flush() throws IOException {
+        flushBuffer();
+        if (m_outputStream != null) {
+            m_outputStream.flush();
+        } else {
+            m_writer.flush();
+        }
+    }
+
+    /**
+     * Return the buffer to the pool, discarding any output not flushed.
+     * The emitter cannot be used afterwards.
+     */
+    void release() {
+        if (m_buffer != null) {
+            s_Buffers.offer(m_buffer);
+            m_buffer = null;
+        }
+    }
+
+    /**
+     * Take a buffer from the pool, or make a new one if none is idle.
+     *
+     * @return the buffer.
+     */
+    private static byte[] acquire() {
+        byte[] buffer = s_Buffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Finish the start tag of the innermost element if it is still open.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void closeStartTag() throws IOException {
+        if (m_startTagOpen) {
+            writeByte('>');
+            m_startTagOpen = false;
+        }
+    }
+
+    /**
+     * Write characters, escaping markup.
+     *
+     * @param text the characters.
+     * @param start the offset of the first character.
+     * @param end the offset after the last character.
+     * @param attribute whether the characters are an attribute value, so
+     *                  '"' is also escaped.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeEscaped(char[] text, int start, int end, boolean attribute)
+            throws IOException {
+        byte[] buffer = m_buffer;
+        for (int i = start; i < end; i++) {
+            if (m_count > buffer.length - MAX_CHARACTER_BYTES) {
+                flushBuffer();
+            }
+            char c = text[i];
+            if (c == '&') {
+                writeUnchecked(AMP);
+            } else if (c == '<') {
+                writeUnchecked(LT);
+            } else if (c == '>') {
+                writeUnchecked(GT);
+            } else if (c == '"' && attribute) {
+                writeUnchecked(QUOT);
+            } else if (c < 0x80) {
+                buffer[m_count++] = (byte) c;
+            } else {
+                i = writeCharacter(c, text, i, end);
+            }
+        }
+    }
+
+    /**
+     * Encode a single character, or a surrogate pair, with room in the
+     * buffer already ensured.
+     *
+     * @param c the character.
+     * @param text the characters, for the second of a surrogate pair.
+     * @param index the offset of the character.
+     * @param end the offset after the last character.
+     * @return the offset of the last character encoded.
+     */
+    private int writeCharacter(char c, char[] text, int index, int end) {
+        byte[] buffer = m_buffer;
+        if (c < 0x80) {
+            buffer[m_count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[m_count++] = (byte) (0xc0 | (c >> 6));
+            buffer[m_count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (!Character.isSurrogate(c)) {
+            buffer[m_count++] = (byte) (0xe0 | (c >> 12));
+            buffer[m_count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[m_count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < end
+                && Character.isLowSurrogate(text[index + 1])) {
+            int codePoint = Character.toCodePoint(c, text[++index]);
+            buffer[m_count++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[m_count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[m_count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[m_count++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            buffer[m_count++] = '?';
+        }
+        return index;
+    }
+
+    /**
+     * Copy a string into the scratch array, growing it if required.
+     *
+     * @param text the string.
+     * @return the scratch array holding the characters of the string.
+     */
+    private char[] toChars(String text) {
+        if (text.length() > m_scratch.length) {
+            m_scratch = new char[Math.max(text.length(), 2 * m_scratch.length)];
+        }
+        text.getChars(0, text.length(), m_scratch, 0);
+        return m_scratch;
+    }
+
+    /**
+     * Write a single ASCII character.
+     *
+     * @param c the character.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeByte(char c) throws IOException {
+        if (m_count == m_buffer.length) {
+            flushBuffer();
+        }
+        m_buffer[m_count++] = (byte) c;
+    }
+
+    /**
+     * Write encoded bytes.
+     *
+     * @param bytes the bytes.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write part of an array of encoded bytes.
+     *
+     * @param bytes the array of bytes.
+     * @param start the offset of the first byte.
+     * @param length the number of bytes.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void write(byte[] bytes, int start, int length) throws IOException {
+        int offset = start;
+        int end = start + length;
+        while (offset < end) {
+            if (m_count == m_buffer.length) {
+                flushBuffer();
+            }
+            int count = Math.min(end - offset, m_buffer.length - m_count);
+            System.arraycopy(bytes, offset, m_buffer, m_count, count);
+            m_count += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * Write a short escape, with room in the buffer already ensured.
+     *
+     * @param bytes the bytes.
+     */
+    private void writeUnchecked(byte[] bytes) {
+        System.arraycopy(bytes, 0, m_buffer, m_count, bytes.length);
+        m_count += bytes.length;
+    }
+
+    /**
+     * Write the buffer to the output stream, or decode it to the writer.
+     * Bytes of a character split by the end of the buffer are kept for the
+     * next write to the writer.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void flushBuffer() throws IOException {
+        if (m_outputStream != null) {
+            m_outputStream.write(m_buffer, 0, m_count);
+            m_count = 0;
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(m_buffer, 0, m_count);
+        boolean overflow;
+        do {
+            overflow = m_decoder.decode(bytes, m_chars, false).isOverflow();
+            m_writer.write(m_chars.array(), 0, m_chars.position());
+            m_chars.clear();
+        } while (overflow);
+        m_count = bytes.remaining();
+        System.arraycopy(m_buffer, bytes.position(), m_buffer, 0, m_count);
+    }
+}
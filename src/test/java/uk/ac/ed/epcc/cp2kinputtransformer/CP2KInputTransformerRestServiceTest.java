@@ -20,6 +20,10 @@ package uk.ac.ed.epcc.cp2kinputtransformer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
@@ -31,10 +35,26 @@ import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.builder.Input;
 import org.xmlunit.diff.Diff;
 
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.TemplateWarmer;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Application;
@@ -75,6 +95,112 @@ public class CP2KInputTransformerRestServiceTest extends JerseyTest {
                 response.readEntity(String.class));
     }
 
+    /**
+     * Test the ready method, once any bundled templates are loaded.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void testReady() throws InterruptedException {
+        assertTrue(CP2KInputTransformerRestService.getTemplateWarmer()
+                .awaitReady(60, TimeUnit.SECONDS));
+        final Response response = target("ready").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("Ready", response.readEntity(String.class));
+    }
+
+    /**
+     * Test the service stops its threads when shut down, and replaces them
+     * when started again.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testShutdownAndRestart() throws IOException, URISyntaxException, InterruptedException {
+        TransformExecutor executor = CP2KInputTransformerRestService.getTransformExecutor();
+        TemplateWarmer warmer = CP2KInputTransformerRestService.getTemplateWarmer();
+        CP2KInputTransformerRestService.shutdown();
+        assertTrue(executor.isShutdown());
+        assertTrue(warmer.isShutdown());
+
+        CP2KInputTransformerRestService.start();
+        assertNotSame(executor, CP2KInputTransformerRestService.getTransformExecutor());
+        assertFalse(CP2KInputTransformerRestService.getTransformExecutor().isShutdown());
+        assertNotSame(warmer, CP2KInputTransformerRestService.getTemplateWarmer());
+        assertTrue(CP2KInputTransformerRestService.getTemplateWarmer().awaitReady(60, TimeUnit.SECONDS));
+        assertEquals(Response.Status.OK.getStatusCode(), target("ready").request().get().getStatus());
+        submitTransform("simple-input.inp", "simple-input.xml");
+    }
+
+    /**
+     * Test the health method reports a template once it has been used.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testHealth() throws IOException, URISyntaxException {
+        submitTransform("simple-input.inp", "simple-input.xml");
+
+        final Response response = target("health").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        String health = response.readEntity(String.class);
+        assertTrue(health, health.contains("<template id=\"cp2k-3.0\" loaded=\"true\""));
+        assertTrue(health, health.contains("estimatedBytes=\""));
+    }
+
+    /**
+     * Test the metrics method reports transforms and the schema cache.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testMetrics() throws IOException, URISyntaxException {
+        submitTransform("simple-input.inp", "simple-input.xml");
+
+        final Response response = target("metrics").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertTrue(response.getMediaType().toString().startsWith("text/plain"));
+        String metrics = response.readEntity(String.class);
+        assertTrue(metrics, metrics.contains(
+                "cp2k_transform_requests_total{template=\"cp2k-3.0\",status=\"ok\"} "));
+        assertTrue(metrics, metrics.contains("# TYPE cp2k_transform_duration_seconds histogram\n"));
+        assertTrue(metrics, metrics.contains("cp2k_transform_lines_total{template=\"cp2k-3.0\"} "));
+        assertTrue(metrics, metrics.contains("cp2k_schema_cache_misses_total{template=\"cp2k-3.0\"} "));
+        assertTrue(metrics, metrics.contains("cp2k_transform_queued 0\n"));
+        assertTrue(CP2KInputTransformerRestService.getMetrics().getTransformCount("cp2k-3.0", true) > 0);
+    }
+
+    /**
+     * Test requests for a template which does not exist are not reported
+     * under its ID by the health or metrics methods.
+     *
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testUnknownTemplateNotReported() throws URISyntaxException {
+        FormDataMultiPart mp = new FormDataMultiPart();
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("single-section.inp")));
+        Response response = target("bogus-template/transform")
+                .request().post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+
+        response = target("health").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        String health = response.readEntity(String.class);
+        assertFalse(health, health.contains("bogus-template"));
+        assertTrue(health, health.contains("<template id=\"" + ServiceMetrics.UNKNOWN_TEMPLATE + "\""));
+
+        response = target("metrics").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        String metrics = response.readEntity(String.class);
+        assertFalse(metrics, metrics.contains("bogus-template"));
+        assertTrue(metrics, metrics.contains("cp2k_schema_load_failures_total{template=\""
+                + ServiceMetrics.UNKNOWN_TEMPLATE + "\"} "));
+    }
+
     /**
      * Test the transform method with a simple input file.
      *
@@ -97,6 +223,275 @@ public class CP2KInputTransformerRestServiceTest extends JerseyTest {
         submitTransform("single-section.inp", "single-section.xml");
     }
 
+    /**
+     * Test the transform method returns the times of each phase when
+     * timing is enabled.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testTransformServerTiming() throws IOException, URISyntaxException {
+        CP2KInputTransformerRestService.setServerTiming(true);
+        try {
+            FormDataMultiPart mp = new FormDataMultiPart();
+            mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("simple-input.inp")));
+
+            final Response response = target("cp2k-3.0/transform")
+                    .request().post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+            String serverTiming = response.getHeaderString("Server-Timing");
+            assertNotNull(serverTiming);
+            for (String phase : new String[] {"upload", "queue", "schema", "lex", "resolve", "xml"}) {
+                assertTrue(serverTiming, serverTiming.contains(phase + ";dur="));
+            }
+            assertXmlEquals("simple-input.xml", response.readEntity(String.class));
+        } finally {
+            CP2KInputTransformerRestService.setServerTiming(false);
+        }
+
+        // Streamed responses have no timings.
+        FormDataMultiPart mp = new FormDataMultiPart();
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("simple-input.inp")));
+        final Response response = target("cp2k-3.0/transform")
+                .request().post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+        assertNull(response.getHeaderString("Server-Timing"));
+        response.close();
+    }
+
+    /**
+     * Test a transform is traced on request only when traces are allowed.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testTransformTrace() throws IOException, URISyntaxException {
+        final List<String> messages = new ArrayList<String>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                synchronized (messages) {
+                    messages.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger traceLog = Logger.getLogger("uk.ac.ed.epcc.cp2kinputtransformer.trace");
+        traceLog.addHandler(handler);
+        try {
+            FormDataMultiPart mp = new FormDataMultiPart();
+            mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("simple-input.inp")));
+            Response response = target("cp2k-3.0/transform").request()
+                    .header(CP2KInputTransformerRestService.TRACE_HEADER, "true")
+                    .post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+            assertNull(response.getHeaderString(CP2KInputTransformerRestService.TRACE_ID_HEADER));
+            response.close();
+            synchronized (messages) {
+                assertTrue(messages.toString(), messages.isEmpty());
+            }
+
+            CP2KInputTransformerRestService.setRequestTrace(true);
+            mp = new FormDataMultiPart();
+            mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("simple-input.inp")));
+            response = target("cp2k-3.0/transform").queryParam("trace", "true").request()
+                    .post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            String traceId = response.getHeaderString(CP2KInputTransformerRestService.TRACE_ID_HEADER);
+            assertNotNull(traceId);
+            assertXmlEquals("simple-input.xml", response.readEntity(String.class));
+            synchronized (messages) {
+                assertTrue(messages.toString(),
+                        messages.contains("[trace " + traceId + "] Transform with template cp2k-3.0"));
+                assertTrue(messages.toString(), messages.size() > 2);
+            }
+        } finally {
+            CP2KInputTransformerRestService.setRequestTrace(false);
+            traceLog.removeHandler(handler);
+        }
+    }
+
+    /**
+     * Test a repeated transform is served from the result cache, and is not
+     * sent again if the client holds it.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testTransformCached() throws IOException, URISyntaxException {
+        ResultCache cache = CP2KInputTransformerRestService.getResultCache();
+        cache.clear();
+        long hits = cache.getHits();
+
+        FormDataMultiPart mp = new FormDataMultiPart();
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("single-section.inp")));
+        Response response = target("cp2k-3.0/transform")
+                .request().post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("miss", response.getHeaderString(CP2KInputTransformerRestService.CACHE_HEADER));
+        String etag = response.getHeaderString("ETag");
+        assertNotNull(etag);
+        String xml = response.readEntity(String.class);
+        assertXmlEquals("single-section.xml", xml);
+
+        mp = new FormDataMultiPart();
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("single-section.inp")));
+        response = target("cp2k-3.0/transform")
+                .request().post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("hit", response.getHeaderString(CP2KInputTransformerRestService.CACHE_HEADER));
+        assertEquals(etag, response.getHeaderString("ETag"));
+        assertEquals(xml, response.readEntity(String.class));
+        assertEquals(hits + 1, cache.getHits());
+
+        for (String ifNoneMatch : new String[] {etag, "\"other\", W/" + etag}) {
+            mp = new FormDataMultiPart();
+            mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("single-section.inp")));
+            response = target("cp2k-3.0/transform").request().header("If-None-Match", ifNoneMatch)
+                    .post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+            assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+            assertEquals(etag, response.getHeaderString("ETag"));
+            response.close();
+        }
+
+        // Other input has another tag.
+        mp = new FormDataMultiPart();
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("simple-input.inp")));
+        response = target("cp2k-3.0/transform").request().header("If-None-Match", etag)
+                .post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertFalse(etag.equals(response.getHeaderString("ETag")));
+        assertXmlEquals("simple-input.xml", response.readEntity(String.class));
+    }
+
+    /**
+     * Test matching of If-None-Match headers.
+     */
+    @Test
+    public void testMatchesEntityTag() {
+        assertFalse(CP2KInputTransformerRestService.matchesEntityTag(null, "abc"));
+        assertTrue(CP2KInputTransformerRestService.matchesEntityTag("\"abc\"", "abc"));
+        assertTrue(CP2KInputTransformerRestService.matchesEntityTag("W/\"abc\"", "abc"));
+        assertTrue(CP2KInputTransformerRestService.matchesEntityTag("\"x\" , \"abc\"", "abc"));
+        assertTrue(CP2KInputTransformerRestService.matchesEntityTag("*", "abc"));
+        assertFalse(CP2KInputTransformerRestService.matchesEntityTag("\"abcd\"", "abc"));
+        assertFalse(CP2KInputTransformerRestService.matchesEntityTag("abc", "abc"));
+    }
+
+    /**
+     * Test the batch transform method with several input files.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testTransformBatchMultipart() throws IOException, URISyntaxException {
+        FormDataMultiPart mp = new FormDataMultiPart();
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("simple-input.inp")));
+        mp.bodyPart(new FileDataBodyPart("inputFile", getInputFile("single-section.inp")));
+
+        final Response response = target("cp2k-3.0/transform/batch")
+                .request().post(Entity.entity(mp, MediaType.MULTIPART_FORM_DATA));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        Map<String, String> entries = readZip(response.readEntity(InputStream.class));
+        assertEquals(3, entries.size());
+        assertXmlEquals("simple-input.xml", entries.get("simple-input.xml"));
+        assertXmlEquals("single-section.xml", entries.get("single-section.xml"));
+        assertTrue(entries.get("manifest.xml").contains(
+                "<file name=\"single-section.inp\" status=\"OK\" output=\"single-section.xml\">"));
+    }
+
+    /**
+     * Test the batch transform method with a ZIP archive of input files.
+     *
+     * @throws IOException if problem
+     * @throws URISyntaxException if problem
+     */
+    @Test
+    public void testTransformBatchZip() throws IOException, URISyntaxException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(archive);
+        zip.putNextEntry(new ZipEntry("inputs/"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("inputs/simple-input.inp"));
+        zip.write(Files.readAllBytes(getInputFile("simple-input.inp").toPath()));
+        zip.closeEntry();
+        zip.close();
+
+        final Response response = target("cp2k-3.0/transform/batch")
+                .request().post(Entity.entity(archive.toByteArray(), "application/zip"));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        Map<String, String> entries = readZip(response.readEntity(InputStream.class));
+        assertEquals(2, entries.size());
+        assertXmlEquals("simple-input.xml", entries.get("simple-input.xml"));
+        assertTrue(entries.get("manifest.xml").contains("status=\"OK\""));
+    }
+
+    /**
+     * Test the batch transform method with an unknown template.
+     */
+    @Test
+    public void testTransformBatchUnknownTemplate() {
+        final Response response = target("no-such-template/transform/batch")
+                .request().post(Entity.entity(new ByteArrayOutputStream().toByteArray(),
+                        "application/zip"));
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Utility method to get an input file.
+     * @throws URISyntaxException if problem
+     */
+    private File getInputFile(String inputFileName) throws URISyntaxException {
+        return Paths.get(this.getClass().getResource("/input/" + inputFileName).toURI()).toFile();
+    }
+
+    /**
+     * Utility method to read all entries of a ZIP archive, in archive order.
+     * @throws IOException if problem
+     */
+    private static Map<String, String> readZip(InputStream inputStream) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        ZipInputStream zip = new ZipInputStream(inputStream);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = zip.read(buffer)) != -1) {
+                contents.write(buffer, 0, count);
+            }
+            entries.put(entry.getName(), contents.toString("UTF-8"));
+        }
+        zip.close();
+        return entries;
+    }
+
+    /**
+     * Utility method to compare XML with expected xml.
+     * @throws URISyntaxException if problem
+     */
+    private void assertXmlEquals(String expectedXmlFileName, String actual)
+            throws URISyntaxException {
+        Source expectedXml = Input.fromURI(
+                this.getClass().getResource("/output/" + expectedXmlFileName).toURI()).build();
+        Source actualXml = Input.fromString(actual).build();
+        Diff xmlDiff = DiffBuilder.compare(expectedXml)
+                .withTest(actualXml).ignoreComments().normalizeWhitespace().build();
+        assertFalse(xmlDiff.toString(), xmlDiff.hasDifferences());
+    }
+
     /**
      * Utility method to transform input file and compare with expected xml.
      * @throws URISyntaxException if problem
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Tests for DiskResultCache.
+ *
+ * @author Jeremy Nowell
+ */
+public class DiskResultCacheTest extends Assert {
+
+    /** Encoding of test results. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Folder for cache directories. */
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    /**
+     * Results should be written compressed, and found again by a new cache
+     * using the same directory.
+     *
+     * @throws Exception Signals that an exception has occurred.
+     */
+    @Test
+    public void testResultsSurviveRestart() throws Exception {
+        File directory = new File(m_folder.getRoot(), "results");
+        byte[] xml = "<CP2K_INPUT/>".getBytes(UTF8);
+
+        DiskResultCache cache = new DiskResultCache(directory, 1024 * 1024);
+        assertNull(cache.get("cp2k-3.0", 1, "key"));
+        cache.put("cp2k-3.0", 1, "key", xml);
+        assertFalse(cache.isShutdown());
+        assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+        assertTrue(cache.isShutdown());
+        assertEquals(1, cache.getWrites());
+        assertArrayEquals(xml, cache.get("cp2k-3.0", 1, "key"));
+
+        File file = new File(cache.getDirectory("cp2k-3.0", 1), "key" + DiskResultCache.RESULT_SUFFIX);
+        assertEquals(new File(directory, "cp2k-3.0-00000001"), file.getParentFile());
+        assertArrayEquals(xml, gunzip(file));
+        assertEquals(1, file.getParentFile().list().length);
+
+        // A partly written file left by a crash is deleted.
+        File temporary = new File(file.getParentFile(), "other1234.tmp");
+        assertTrue(temporary.createNewFile());
+
+        cache = new DiskResultCache(directory, 1024 * 1024);
+        assertEquals(1, cache.size());
+        assertEquals(file.length(), cache.getBytes());
+        assertFalse(temporary.exists());
+        assertTrue(cache.contains("key"));
+        assertArrayEquals(xml, cache.get("cp2k-3.0", 1, "key"));
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Results of a template should be deleted once it is used with a new
+     * checksum, leaving other templates.
+     *
+     * @throws Exception Signals that an exception has occurred.
+     */
+    @Test
+    public void testChangedTemplateInvalidated() throws Exception {
+        File directory = new File(m_folder.getRoot(), "results");
+        byte[] xml = "<CP2K_INPUT/>".getBytes(UTF8);
+
+        DiskResultCache cache = new DiskResultCache(directory, 1024 * 1024);
+        cache.put("cp2k", 1, "old", xml);
+        cache.put("cp2k-3.0", 1, "other", xml);
+        assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+
+        cache = new DiskResultCache(directory, 1024 * 1024);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("cp2k", 2, "old"));
+        assertFalse(cache.contains("old"));
+        assertFalse(cache.getDirectory("cp2k", 1).exists());
+        assertTrue(cache.contains("other"));
+        assertArrayEquals(xml, cache.get("cp2k-3.0", 1, "other"));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * The least recently used results should be deleted when the bound is
+     * exceeded.
+     *
+     * @throws Exception Signals that an exception has occurred.
+     */
+    @Test
+    public void testEvictionBySize() throws Exception {
+        File directory = new File(m_folder.getRoot(), "results");
+        byte[] xml = new byte[1000];
+        Arrays.fill(xml, (byte) 'x');
+
+        DiskResultCache cache = new DiskResultCache(directory, 1024 * 1024);
+        cache.put("cp2k-3.0", 1, "a", xml);
+        assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+        long size = cache.getBytes();
+
+        // Room for two results.
+        cache = new DiskResultCache(directory, 2 * size + size / 2);
+        cache.put("cp2k-3.0", 1, "b", xml);
+        cache.put("cp2k-3.0", 1, "c", xml);
+        assertTrue(cache.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertFalse(cache.contains("a"));
+        assertFalse(new File(cache.getDirectory("cp2k-3.0", 1), "a" + DiskResultCache.RESULT_SUFFIX).exists());
+        assertTrue(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+    }
+
+    /**
+     * Read a compressed file.
+     *
+     * @param file the file.
+     * @return the contents.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static byte[] gunzip(File file) throws IOException {
+        InputStream is = new GZIPInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[(int) (10 * file.length() + 1024)];
+            int length = 0;
+            int count;
+            while ((count = is.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for ResultCache.
+ *
+ * @author Jeremy Nowell
+ */
+public class ResultCacheTest extends Assert {
+
+    /** Encoding of test input. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Keys should depend on the template, its checksum and the input only.
+     */
+    @Test
+    public void testKey() {
+        byte[] input = "&GLOBAL\n&END GLOBAL\n".getBytes(UTF8);
+        String key = ResultCache.key("cp2k-3.0", 1, input, input.length);
+        assertEquals(64, key.length());
+        assertTrue(key, key.matches("[0-9a-f]+"));
+
+        byte[] padded = new byte[input.length + 4];
+        System.arraycopy(input, 0, padded, 0, input.length);
+        assertEquals(key, ResultCache.key("cp2k-3.0", 1, padded, input.length));
+        assertFalse(key.equals(ResultCache.key("cp2k-2.6", 1, input, input.length)));
+        assertFalse(key.equals(ResultCache.key("cp2k-3.0", 2, input, input.length)));
+        assertFalse(key.equals(ResultCache.key("cp2k-3.0", 1, input, input.length - 1)));
+    }
+
+    /**
+     * Results should be evicted in least recently used order once their
+     * total size exceeds the bound, and results too large not cached.
+     */
+    @Test
+    public void testEvictionBySize() {
+        ResultCache cache = new ResultCache(400);
+        assertEquals(100, cache.getMaxEntryBytes());
+        assertEquals(60, new ResultCache(400, 60).getMaxEntryBytes());
+        assertEquals(ResultCache.DEFAULT_MAX_ENTRY_BYTES,
+                new ResultCache(ResultCache.DEFAULT_MAX_BYTES).getMaxEntryBytes());
+
+        assertTrue(cache.put("a", new byte[100], 1));
+        assertTrue(cache.put("b", new byte[100], 2));
+        assertTrue(cache.put("c", new byte[100], 3));
+        assertTrue(cache.put("d", new byte[100], 4));
+        assertEquals(4, cache.size());
+        assertEquals(400, cache.getBytes());
+
+        // Use "a", so "b" is the least recently used.
+        assertEquals(1, cache.get("a").getLines());
+        assertTrue(cache.put("e", new byte[50], 5));
+        assertEquals(4, cache.size());
+        assertEquals(350, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+
+        assertFalse(cache.put("f", new byte[101], 6));
+        assertFalse(cache.contains("f"));
+        assertEquals(350, cache.getBytes());
+
+        // Replacing a result counts only its new size.
+        assertTrue(cache.put("e", new byte[10], 7));
+        assertEquals(310, cache.getBytes());
+        assertEquals(7, cache.get("e").getLines());
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(3, cache.getHits());
+    }
+
+    /**
+     * Requests joining a transform in progress should wait for the leader
+     * and share its result.
+     *
+     * @throws Exception Signals that an exception has occurred.
+     */
+    @Test
+    public void testJoin() throws Exception {
+        ResultCache cache = new ResultCache(400);
+        ResultCache.Flight leader = cache.join("a", 60000);
+        assertTrue(leader.isLeader());
+        final ResultCache.Flight follower = cache.join("a", 60000);
+        assertFalse(follower.isLeader());
+        assertEquals(1, cache.getFlightCount());
+        assertEquals(1, cache.getCoalesced());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ResultCache.Result> result = executor.submit(new Callable<ResultCache.Result>() {
+                @Override
+                public ResultCache.Result call() throws InterruptedException {
+                    return follower.await();
+                }
+            });
+            leader.finish(new byte[10], 3);
+            assertEquals(3, result.get().getLines());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, cache.getFlightCount());
+        assertTrue(cache.contains("a"));
+
+        // Nothing is shared by a failed transform.
+        leader = cache.join("b", 60000);
+        ResultCache.Flight failed = cache.join("b", 60000);
+        leader.finish(null, 0);
+        assertNull(failed.await());
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.join("b", 60000).isLeader());
+    }
+
+    /**
+     * A transform in progress past its timeout should be replaced.
+     *
+     * @throws InterruptedException Signals that the test was interrupted.
+     */
+    @Test
+    public void testAbandonedFlightReplaced() throws InterruptedException {
+        ResultCache cache = new ResultCache(400);
+        ResultCache.Flight abandoned = cache.join("a", 0);
+        assertTrue(abandoned.isLeader());
+        Thread.sleep(5);
+        ResultCache.Flight leader = cache.join("a", 60000);
+        assertTrue(leader.isLeader());
+        assertEquals(0, cache.getCoalesced());
+
+        // Finishing the abandoned flight does not remove its replacement.
+        abandoned.finish(new byte[10], 1);
+        assertEquals(1, cache.getFlightCount());
+        leader.finish(new byte[10], 2);
+        assertEquals(0, cache.getFlightCount());
+        assertEquals(2, cache.get("a").getLines());
+    }
+
+    /**
+     * A cache must have a positive size.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new ResultCache(0);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.PhaseTimings;
+import uk.ac.ed.epcc.cp2kinputtransformer.transform.SchemaCache;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Tests for ServiceMetrics.
+ *
+ * @author Jeremy Nowell
+ */
+public class ServiceMetricsTest extends Assert {
+
+    /**
+     * Recorded transforms should be written in the Prometheus text format,
+     * with cumulative histogram buckets.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        ServiceMetrics metrics = new ServiceMetrics();
+        metrics.recordTransform("cp2k-3.0", true, 2000000L, 100, 400, 10);
+        metrics.recordTransform("cp2k-3.0", false, 200000000L, 50, 0, 3);
+        metrics.recordBatch("cp2k-3.0", 2, 1);
+        assertEquals(1, metrics.getTransformCount("cp2k-3.0", true));
+        assertEquals(1, metrics.getTransformCount("cp2k-3.0", false));
+        assertEquals(0, metrics.getTransformCount("cp2k-4.0", true));
+
+        TransformExecutor executor = new TransformExecutor(1, 1, 1000, 1);
+        StringWriter writer = new StringWriter();
+        try {
+            metrics.write(writer, executor, new SchemaCache());
+        } finally {
+            executor.shutdownNow();
+        }
+        String text = writer.toString();
+
+        assertTrue(text, text.contains("# TYPE cp2k_transform_requests_total counter\n"
+                + "cp2k_transform_requests_total{template=\"cp2k-3.0\",status=\"ok\"} 1\n"
+                + "cp2k_transform_requests_total{template=\"cp2k-3.0\",status=\"error\"} 1\n"));
+        assertTrue(text, text.contains(
+                "cp2k_transform_duration_seconds_bucket{template=\"cp2k-3.0\",le=\"0.005\"} 1\n"));
+        assertTrue(text, text.contains(
+                "cp2k_transform_duration_seconds_bucket{template=\"cp2k-3.0\",le=\"0.1\"} 1\n"));
+        assertTrue(text, text.contains(
+                "cp2k_transform_duration_seconds_bucket{template=\"cp2k-3.0\",le=\"0.25\"} 2\n"));
+        assertTrue(text, text.contains(
+                "cp2k_transform_duration_seconds_bucket{template=\"cp2k-3.0\",le=\"+Inf\"} 2\n"));
+        assertTrue(text, text.contains(
+                "cp2k_transform_duration_seconds_count{template=\"cp2k-3.0\"} 2\n"));
+        assertTrue(text, text.contains("cp2k_transform_input_bytes_total{template=\"cp2k-3.0\"} 150\n"));
+        assertTrue(text, text.contains("cp2k_transform_output_bytes_total{template=\"cp2k-3.0\"} 400\n"));
+        assertTrue(text, text.contains("cp2k_transform_lines_total{template=\"cp2k-3.0\"} 13\n"));
+        assertTrue(text, text.contains(
+                "cp2k_batch_files_total{template=\"cp2k-3.0\",status=\"error\"} 1\n"));
+        assertTrue(text, text.contains("cp2k_transform_active 0\n"));
+        assertTrue(text, text.contains("cp2k_schema_cache_size 0\n"));
+    }
+
+    /**
+     * Phase times should be written for timed templates only.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testPhases() throws IOException {
+        ServiceMetrics metrics = new ServiceMetrics();
+        PhaseTimings timings = new PhaseTimings();
+        timings.add(PhaseTimings.Phase.LEX, 1500000000L);
+        metrics.recordPhases("cp2k-3.0", timings);
+        metrics.recordTransform("cp2k-4.0", true, 1000, 1, 1, 1);
+
+        TransformExecutor executor = new TransformExecutor(1, 1, 1000, 1);
+        StringWriter writer = new StringWriter();
+        try {
+            metrics.write(writer, executor, new SchemaCache());
+        } finally {
+            executor.shutdownNow();
+        }
+        String text = writer.toString();
+        assertTrue(text, text.contains(
+                "cp2k_transform_phase_seconds_total{template=\"cp2k-3.0\",phase=\"lex\"} 1.5\n"));
+        assertTrue(text, text.contains(
+                "cp2k_transform_phase_seconds_total{template=\"cp2k-3.0\",phase=\"xml\"} 0.0\n"));
+        assertFalse(text, text.contains("cp2k_transform_phase_seconds_total{template=\"cp2k-4.0\""));
+    }
+
+    /**
+     * Label values should be escaped.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testLabelEscaped() throws IOException {
+        ServiceMetrics metrics = new ServiceMetrics();
+        metrics.recordBatch("a\"b\\c\nd", 1, 0);
+
+        TransformExecutor executor = new TransformExecutor(1, 1, 1000, 1);
+        StringWriter writer = new StringWriter();
+        try {
+            metrics.write(writer, executor, new SchemaCache());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(writer.toString(), writer.toString().contains(
+                "cp2k_batch_requests_total{template=\"a\\\"b\\\\c\\nd\"} 1\n"));
+    }
+}
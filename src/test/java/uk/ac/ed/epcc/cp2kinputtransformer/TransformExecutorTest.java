@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.ConnectionCallback;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+/**
+ * Tests for TransformExecutor.
+ *
+ * @author Jeremy Nowell
+ */
+public class TransformExecutorTest extends Assert {
+
+    /** The executor under test. */
+    private TransformExecutor m_executor;
+
+    /**
+     * Shut down the executor.
+     */
+    @After
+    public void tearDown() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A job should resume the response with its result.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testJobResumesResponse() throws InterruptedException {
+        m_executor = new TransformExecutor(1, 1, 10000, 5);
+        StubAsyncResponse response = new StubAsyncResponse();
+        m_executor.submit(response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return Response.ok("done").build();
+            }
+        });
+
+        Response result = (Response) response.awaitResume();
+        assertEquals(200, result.getStatus());
+        assertEquals("done", result.getEntity());
+    }
+
+    /**
+     * Jobs arriving when the queue is full should be rejected with 503.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testFullQueueRejects() throws InterruptedException {
+        m_executor = new TransformExecutor(1, 1, 10000, 7);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Response> blocking = new Callable<Response>() {
+            @Override
+            public Response call() throws InterruptedException {
+                started.countDown();
+                release.await();
+                return Response.ok().build();
+            }
+        };
+
+        StubAsyncResponse running = new StubAsyncResponse();
+        m_executor.submit(running, blocking);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        StubAsyncResponse queued = new StubAsyncResponse();
+        m_executor.submit(queued, blocking);
+        assertEquals(1, m_executor.getQueuedCount());
+
+        StubAsyncResponse rejected = new StubAsyncResponse();
+        m_executor.submit(rejected, blocking);
+        Response result = (Response) rejected.awaitResume();
+        assertEquals(503, result.getStatus());
+        assertEquals("7", result.getHeaderString("Retry-After"));
+        assertEquals(1, m_executor.getRejectedCount());
+
+        release.countDown();
+        assertEquals(200, ((Response) running.awaitResume()).getStatus());
+        assertEquals(200, ((Response) queued.awaitResume()).getStatus());
+    }
+
+    /**
+     * Shutting down should interrupt running jobs and answer queued jobs
+     * and later jobs with 503.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testShutdownAnswersQueuedJobs() throws InterruptedException {
+        m_executor = new TransformExecutor(1, 1, 10000, 5);
+        final CountDownLatch started = new CountDownLatch(1);
+        Callable<Response> blocking = new Callable<Response>() {
+            @Override
+            public Response call() throws InterruptedException {
+                started.countDown();
+                new CountDownLatch(1).await();
+                return Response.ok().build();
+            }
+        };
+
+        StubAsyncResponse running = new StubAsyncResponse();
+        m_executor.submit(running, blocking);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        StubAsyncResponse queued = new StubAsyncResponse();
+        m_executor.submit(queued, blocking);
+
+        m_executor.shutdownNow();
+        assertTrue(running.awaitResume() instanceof InterruptedException);
+        Response result = (Response) queued.awaitResume();
+        assertEquals(503, result.getStatus());
+        assertEquals("Service shutting down", result.getEntity());
+
+        StubAsyncResponse late = new StubAsyncResponse();
+        m_executor.submit(late, blocking);
+        assertEquals(503, ((Response) late.awaitResume()).getStatus());
+    }
+
+    /**
+     * Jobs running past the timeout should be interrupted.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testTimeoutInterruptsJob() throws InterruptedException {
+        m_executor = new TransformExecutor(1, 1, 100, 5);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        StubAsyncResponse response = new StubAsyncResponse();
+        m_executor.submit(response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return Response.ok().build();
+            }
+        });
+
+        Response result = (Response) response.awaitResume();
+        assertEquals(503, result.getStatus());
+        assertEquals("Transform timed out", result.getEntity());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        // The count is updated by the timer thread after interrupting the job.
+        for (int i = 0; i < 1000 && m_executor.getTimedOutCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, m_executor.getTimedOutCount());
+    }
+
+    /**
+     * A request waiting for the result of a leader which times out should
+     * be released when the leader's response completes, not at the end of
+     * the flight's own timeout.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testTimeoutReleasesFollower() throws InterruptedException {
+        m_executor = new TransformExecutor(1, 1, 100, 5);
+        final ResultCache cache = new ResultCache(1000);
+        final CountDownLatch led = new CountDownLatch(1);
+        final CP2KInputTransformerRestService.LeaderRelease release =
+                new CP2KInputTransformerRestService.LeaderRelease();
+        StubAsyncResponse response = new StubAsyncResponse();
+        response.register(release);
+        m_executor.submit(response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                ResultCache.Flight leader = cache.join("a", 60000);
+                assertTrue(release.lead(leader));
+                led.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    // Timed out
+                }
+                return Response.ok().build();
+            }
+        });
+
+        assertTrue(led.await(10, TimeUnit.SECONDS));
+        ResultCache.Flight follower = cache.join("a", 60000);
+        assertFalse(follower.isLeader());
+        long start = System.nanoTime();
+        assertNull(follower.await());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(503, ((Response) response.awaitResume()).getStatus());
+        assertEquals(0, cache.getFlightCount());
+        assertTrue(cache.join("a", 60000).isLeader());
+
+        // A leader joining after its response completed must finish at once.
+        ResultCache.Flight late = cache.join("b", 60000);
+        assertFalse(release.lead(late));
+    }
+
+    /**
+     * Jobs should be interrupted when the client disconnects.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testDisconnectInterruptsJob() throws InterruptedException {
+        m_executor = new TransformExecutor(1, 1, 10000, 5);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        StubAsyncResponse response = new StubAsyncResponse();
+        m_executor.submit(response, new Callable<Response>() {
+            @Override
+            public Response call() {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return Response.ok().build();
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (Object callback : response.m_callbacks) {
+            if (callback instanceof ConnectionCallback) {
+                ((ConnectionCallback) callback).onDisconnect(response);
+            }
+        }
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(1, m_executor.getDisconnectedCount());
+    }
+
+    /**
+     * AsyncResponse recording the first value resumed with.
+     */
+    private static final class StubAsyncResponse implements AsyncResponse {
+
+        /** Signalled when resumed. */
+        private final CountDownLatch m_resumed = new CountDownLatch(1);
+
+        /** Registered callbacks. */
+        private final List<Object> m_callbacks =
+                Collections.synchronizedList(new ArrayList<Object>());
+
+        /** The value resumed with. */
+        private volatile Object m_value;
+
+        /**
+         * Wait to be resumed.
+         *
+         * @return the value resumed with.
+         * @throws InterruptedException if interrupted.
+         */
+        private Object awaitResume() throws InterruptedException {
+            assertTrue(m_resumed.await(10, TimeUnit.SECONDS));
+            return m_value;
+        }
+
+        @Override
+        public synchronized boolean resume(Object response) {
+            if (m_value != null) {
+                return false;
+            }
+            m_value = response;
+            m_resumed.countDown();
+            for (Object callback : m_callbacks) {
+                if (callback instanceof CompletionCallback) {
+                    ((CompletionCallback) callback).onComplete(null);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean resume(Throwable response) {
+            return resume((Object) response);
+        }
+
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return m_value == null;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return m_value != null;
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return false;
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            m_callbacks.add(callback);
+            return Collections.<Class<?>>emptyList();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
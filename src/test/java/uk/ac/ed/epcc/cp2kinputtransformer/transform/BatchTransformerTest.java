@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for BatchTransformer.
+ *
+ * @author Jeremy Nowell
+ */
+public class BatchTransformerTest extends Assert {
+
+    /** Executor for the transforms. */
+    private ExecutorService m_executor;
+
+    /**
+     * Create the executor.
+     */
+    @Before
+    public void setUp() {
+        m_executor = Executors.newFixedThreadPool(3);
+    }
+
+    /**
+     * Shut down the executor.
+     */
+    @After
+    public void tearDown() {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * Results should be in input order, with failed inputs listed in the manifest.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testBatchTransform() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        List<BatchTransformer.Input> inputs = new ArrayList<BatchTransformer.Input>();
+        for (int i = 0; i < 20; i++) {
+            inputs.add(input("dir/run" + i + ".inp", "&GLOBAL\n  PROJECT run" + i + "\n&END GLOBAL\n"));
+        }
+        inputs.add(5, new BatchTransformer.Input() {
+            @Override
+            public String getName() {
+                return "broken.inp";
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                throw new IOException("Unreadable");
+            }
+        });
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Iterator<BatchTransformer.Input> iterator = inputs.iterator();
+        List<BatchTransformer.Result> results = new BatchTransformer(processor, m_executor, 4)
+                .transform(new BatchTransformer.Inputs() {
+                    @Override
+                    public BatchTransformer.Input next() {
+                        return iterator.hasNext() ? iterator.next() : null;
+                    }
+                }, output);
+
+        assertEquals(21, results.size());
+        assertEquals("broken.inp", results.get(5).getName());
+        assertFalse(results.get(5).isOk());
+        assertEquals(BatchTransformer.STATUS_ERROR, results.get(5).getStatus());
+        assertTrue(results.get(5).getMessage().contains("Unreadable"));
+
+        Map<String, String> entries = readZip(output.toByteArray());
+        List<String> names = new ArrayList<String>(entries.keySet());
+        assertEquals(21, names.size());
+        assertEquals("run0.xml", names.get(0));
+        assertEquals("run5.xml", names.get(5));
+        assertEquals(BatchTransformer.MANIFEST_NAME, names.get(20));
+        assertTrue(entries.get("run7.xml").contains(
+                "<CP2K_KEYWORD_PROJECT_NAME>run7</CP2K_KEYWORD_PROJECT_NAME>"));
+
+        String manifest = entries.get(BatchTransformer.MANIFEST_NAME);
+        assertTrue(manifest.contains("<file name=\"dir/run0.inp\" status=\"OK\" output=\"run0.xml\"></file>"));
+        assertTrue(manifest.contains("<file name=\"broken.inp\" status=\"ERROR\""));
+    }
+
+    /**
+     * Archive entries over the size or count limits should be listed as
+     * errors rather than read.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testZipInputLimits() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(archive);
+        zip.putNextEntry(new ZipEntry("dir/"));
+        zip.closeEntry();
+        String[] contents = {"&GLOBAL\n&END GLOBAL\n", new String(new char[100000]).replace('\0', ' '),
+                "&GLOBAL\n&END GLOBAL\n", "&GLOBAL\n&END GLOBAL\n"};
+        for (int i = 0; i < contents.length; i++) {
+            zip.putNextEntry(new ZipEntry("dir/run" + i + ".inp"));
+            zip.write(contents[i].getBytes(Charset.forName("UTF-8")));
+            zip.closeEntry();
+        }
+        zip.close();
+
+        BatchTransformer.Inputs inputs = new BatchTransformer.ZipInputs(
+                new ZipInputStream(new ByteArrayInputStream(archive.toByteArray())), 1000, 10);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        List<BatchTransformer.Result> results = new BatchTransformer(
+                new TextInputProcessor("/minimal.xsd"), m_executor, 4).transform(inputs, output);
+
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).isOk());
+        assertEquals("dir/run1.inp", results.get(1).getName());
+        assertFalse(results.get(1).isOk());
+        assertTrue(results.get(1).getMessage().contains("limit of 1000 bytes"));
+        assertTrue(results.get(2).isOk());
+        assertTrue(results.get(3).isOk());
+        assertNull(inputs.next());
+
+        inputs = new BatchTransformer.ZipInputs(
+                new ZipInputStream(new ByteArrayInputStream(archive.toByteArray())), 1000000, 1);
+        results = new BatchTransformer(new TextInputProcessor("/minimal.xsd"), m_executor, 4)
+                .transform(inputs, new ByteArrayOutputStream());
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isOk());
+        assertEquals("dir/run1.inp", results.get(1).getName());
+        assertTrue(results.get(1).getMessage().contains("limit of 1 input files"));
+
+        String manifest = readZip(output.toByteArray()).get(BatchTransformer.MANIFEST_NAME);
+        assertTrue(manifest.contains("<file name=\"dir/run1.inp\" status=\"ERROR\""));
+    }
+
+    /**
+     * Entry names should drop directories and extensions, and be unique.
+     */
+    @Test
+    public void testUniqueEntryName() {
+        Set<String> names = new HashSet<String>();
+        names.add(BatchTransformer.MANIFEST_NAME);
+        assertEquals("a.xml", BatchTransformer.uniqueEntryName("a.inp", names));
+        assertEquals("a-1.xml", BatchTransformer.uniqueEntryName("x/a.inp", names));
+        assertEquals("a-2.xml", BatchTransformer.uniqueEntryName("..\\a", names));
+        assertEquals("manifest-1.xml", BatchTransformer.uniqueEntryName("manifest.inp", names));
+        assertEquals("input.xml", BatchTransformer.uniqueEntryName("dir/", names));
+        assertEquals(".profile.xml", BatchTransformer.uniqueEntryName(".profile", names));
+    }
+
+    /**
+     * Create an input.
+     *
+     * @param name the input name.
+     * @param contents the input contents.
+     * @return the input.
+     */
+    private static BatchTransformer.Input input(final String name, final String contents) {
+        return new BatchTransformer.Input() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(contents.getBytes(Charset.forName("UTF-8")));
+            }
+        };
+    }
+
+    /**
+     * Read all entries of a ZIP archive.
+     *
+     * @param bytes the archive.
+     * @return map of entry name to contents, in archive order.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static Map<String, String> readZip(byte[] bytes) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = zip.read(buffer)) != -1) {
+                contents.write(buffer, 0, count);
+            }
+            entries.put(entry.getName(), contents.toString("UTF-8"));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for CP2KSection.
+ *
+ * @author Jeremy Nowell
+ */
+public class CP2KSectionTest extends Assert {
+
+    /**
+     * Contents should be populated on demand.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testContentsPopulatedOnDemand() throws IOException {
+        CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        assertFalse(topLevel.isPopulated());
+
+        assertTrue(topLevel.hasSubSection("GLOBAL"));
+        assertTrue(topLevel.isPopulated());
+
+        CP2KSection global = topLevel.getSubSection("GLOBAL");
+        assertFalse(global.isPopulated());
+        assertTrue(global.hasKeyWord("PROJECT_NAME"));
+        assertTrue(global.hasKeyWord("PROJECT"));
+        assertSame(global.getKeyWord("PROJECT_NAME"), global.getKeyWord("PROJECT"));
+        assertEquals(1, global.getKeyWords().size());
+    }
+
+    /**
+     * Populating the whole tree should visit every section.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testPopulateAllContents() throws IOException {
+        CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        assertEquals(2, topLevel.populateAllContents());
+        assertTrue(topLevel.getSubSection("GLOBAL").isPopulated());
+    }
+
+    /**
+     * Concurrent first lookups should all see the same contents.
+     *
+     * @throws Exception if problem.
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CP2KSection>> results = new ArrayList<Future<CP2KSection>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(new Callable<CP2KSection>() {
+                    @Override
+                    public CP2KSection call() {
+                        return topLevel.getSubSection("GLOBAL");
+                    }
+                }));
+            }
+            CP2KSection expected = results.get(0).get();
+            assertNotNull(expected);
+            for (Future<CP2KSection> result : results) {
+                assertSame(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Names should be found from slices of a line.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testFindFromSlice() throws IOException {
+        CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        String line = "  &GLOBAL PROJECT PROJECT_NAME";
+
+        CP2KSection global = topLevel.findSubSection(line, 3, 9);
+        assertSame(topLevel.getSubSection("GLOBAL"), global);
+        assertNull(topLevel.findSubSection(line, 3, 8));
+        assertNull(topLevel.findKeyWord(line, 3, 9));
+
+        CP2KKeyWord keyWord = global.findKeyWord(line, 18, 30);
+        assertEquals("CP2K_KEYWORD_PROJECT_NAME", keyWord.getSanitisedName());
+        assertSame(keyWord, global.findKeyWord(line, 10, 17));
+        assertNull(global.findKeyWord(line, 10, 16));
+        assertNull(global.findSubSection(line, 10, 17));
+        assertNull(global.findKeyWord(line, 0, 0));
+        assertFalse(global.hasKeyWord(null));
+    }
+
+    /**
+     * Names should be found ignoring the case of ASCII letters only.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testNamesIgnoreCase() throws IOException {
+        CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        CP2KSection global = topLevel.getSubSection("GLOBAL");
+        assertSame(global, topLevel.getSubSection("global"));
+        assertTrue(topLevel.hasSubSection("Global"));
+        assertSame(global.getKeyWord("PROJECT_NAME"), global.getKeyWord("project_name"));
+        assertTrue(global.hasKeyWord("Project"));
+
+        String line = "  &gLoBaL project Project_Name";
+        assertSame(global, topLevel.findSubSection(line, 3, 9));
+        assertSame(global.getKeyWord("PROJECT"), global.findKeyWord(line, 10, 17));
+        assertSame(global.getKeyWord("PROJECT"), global.findKeyWord(line, 18, 30));
+
+        // Only ASCII letters are folded, not characters 32 away from them.
+        assertNull(global.getKeyWord("PROJECT\u007fNAME"));
+        assertNull(global.getKeyWord("PROJECT_NAMÉ"));
+    }
+
+    /**
+     * A keyword and a sub-section whose names differ only in case should
+     * both be found.
+     */
+    @Test
+    public void testNamesDifferingOnlyInCase() {
+        CP2KSection kind = new CP2KSection("CP2K_SECTION_KIND", "KIND",
+                Collections.<CP2KSection>emptyList(), Collections.<CP2KKeyWord>emptyList());
+        CP2KKeyWord keyWord = new CP2KKeyWord("CP2K_KEYWORD_KIND", "Kind",
+                Collections.singletonList("kInD"));
+        CP2KSection section = new CP2KSection("CP2K_SECTION_S", "S",
+                Collections.singletonList(kind), Collections.singletonList(keyWord));
+
+        assertSame(kind, section.getSubSection("KIND"));
+        assertSame(kind, section.getSubSection("Kind"));
+        assertSame(keyWord, section.getKeyWord("Kind"));
+        assertSame(keyWord, section.getKeyWord("KIND"));
+        String line = "&kind KIND";
+        assertSame(kind, section.findSubSection(line, 1, 5));
+        assertSame(keyWord, section.findKeyWord(line, 6, 10));
+
+        CP2KKeyWord upperKeyWord = new CP2KKeyWord("CP2K_KEYWORD_LABEL", "LABEL",
+                Collections.<String>emptyList());
+        CP2KSection label = new CP2KSection("CP2K_SECTION_LABEL", "Label",
+                Collections.<CP2KSection>emptyList(), Collections.<CP2KKeyWord>emptyList());
+        section = new CP2KSection("CP2K_SECTION_S", "S",
+                Collections.singletonList(label), Collections.singletonList(upperKeyWord));
+        assertSame(label, section.getSubSection("LABEL"));
+        assertSame(upperKeyWord, section.getKeyWord("label"));
+    }
+
+    /**
+     * Many names, including names shared by a keyword and a sub-section,
+     * should all be found.
+     */
+    @Test
+    public void testManyNames() {
+        List<CP2KKeyWord> keyWords = new ArrayList<CP2KKeyWord>();
+        List<CP2KSection> subSections = new ArrayList<CP2KSection>();
+        for (int i = 0; i < 500; i++) {
+            keyWords.add(new CP2KKeyWord("CP2K_KEYWORD_K" + i, "K" + i,
+                    Collections.singletonList("ALIAS" + i)));
+            if (i % 5 == 0) {
+                subSections.add(new CP2KSection("CP2K_SECTION_K" + i, "K" + i,
+                        Collections.<CP2KSection>emptyList(), Collections.<CP2KKeyWord>emptyList()));
+            }
+        }
+        keyWords.add(new CP2KKeyWord("CP2K_KEYWORD_NONE", null, Collections.<String>emptyList()));
+        CP2KSection section = new CP2KSection("CP2K_SECTION_S", "S", subSections, keyWords);
+
+        for (int i = 0; i < 500; i++) {
+            String name = "K" + i;
+            assertEquals("CP2K_KEYWORD_" + name, section.getKeyWord(name).getSanitisedName());
+            assertSame(section.getKeyWord(name), section.getKeyWord("ALIAS" + i));
+            assertSame(section.getKeyWord(name), section.getKeyWord("alias" + i));
+            assertEquals(i % 5 == 0, section.hasSubSection(name));
+        }
+        assertFalse(section.hasKeyWord("K500"));
+        assertEquals("CP2K_KEYWORD_NONE", section.getKeyWord(null).getSanitisedName());
+        assertEquals(100, section.getSubSections().size());
+        assertEquals(501, section.getKeyWords().size());
+    }
+    /**
+     * A copy without the schema should hold the same names, and no schema.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testWithoutSchema() throws IOException {
+        CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        CP2KSection lean = topLevel.withoutSchema();
+        assertFalse(topLevel.isPopulated());
+        assertFalse(lean.isPopulated());
+        assertNull(lean.getSchemaElement());
+        assertEquals(topLevel.getSanitisedName(), lean.getSanitisedName());
+
+        CP2KSection global = lean.getSubSection("GLOBAL");
+        assertTrue(topLevel.isPopulated());
+        assertFalse(global.isPopulated());
+        assertNull(global.getSchemaElement());
+        assertEquals(topLevel.getSubSection("GLOBAL").getCp2kName(), global.getCp2kName());
+        assertNull(global.getKeyWord("PROJECT").getSchemaElement());
+        assertSame(global.getKeyWord("PROJECT_NAME"), global.getKeyWord("PROJECT"));
+        assertEquals(1, global.getKeyWords().size());
+    }
+
+    /**
+     * The footprint should count the tree, and whether it retains the schema.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testFootprint() throws IOException {
+        CP2KSection topLevel = TextInputProcessor.loadSchema("/minimal.xsd");
+        SchemaFootprint unpopulated = SchemaFootprint.measure(topLevel);
+        assertFalse(topLevel.isPopulated());
+        assertEquals(1, unpopulated.getSections());
+        assertEquals(0, unpopulated.getKeyWords());
+
+        topLevel.populateAllContents();
+        SchemaFootprint full = SchemaFootprint.measure(topLevel);
+        assertEquals(2, full.getSections());
+        assertEquals(1, full.getKeyWords());
+        assertTrue(full.retainsSchema());
+        assertTrue(full.getEstimatedBytes() > unpopulated.getEstimatedBytes());
+
+        // A copy refers to the original until populated.
+        CP2KSection copy = topLevel.withoutSchema();
+        assertTrue(SchemaFootprint.measure(copy).retainsSchema());
+        copy.populateAllContents();
+        SchemaFootprint lean = SchemaFootprint.measure(copy);
+        assertEquals(2, lean.getSections());
+        assertEquals(1, lean.getKeyWords());
+        assertEquals(full.getNames(), lean.getNames());
+        assertFalse(lean.retainsSchema());
+    }
+}
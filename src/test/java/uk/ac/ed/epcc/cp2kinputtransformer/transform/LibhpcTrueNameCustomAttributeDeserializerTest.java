@@ -21,7 +21,6 @@ package uk.ac.ed.epcc.cp2kinputtransformer.transform;
 import org.apache.ws.commons.schema.XmlSchema;
 import org.apache.ws.commons.schema.XmlSchemaCollection;
 import org.apache.ws.commons.schema.XmlSchemaElement;
-import org.apache.ws.commons.schema.constants.Constants;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -43,32 +42,24 @@ public class LibhpcTrueNameCustomAttributeDeserializerTest extends Assert {
      */
     @Test
     public void testDeserialization() {
-        // Set the property so custom extension registry is used
-        System.setProperty(
-                Constants.SystemConstants.EXTENSION_REGISTRY_KEY,
-                CustomExtensionRegistry.class.getName());
+        // Read the schema using the custom extension registry
+        InputStream is = this.getClass().getResourceAsStream("/customAttribute.xsd");
 
-        try {
-            // Read the schema
-            InputStream is = this.getClass().getResourceAsStream("/customAttribute.xsd");
+        XmlSchemaCollection schemaCol = new XmlSchemaCollection();
+        schemaCol.setExtReg(new CustomExtensionRegistry());
+        XmlSchema schema = schemaCol.read(new StreamSource(is));
+        assertNotNull(schema);
 
-            XmlSchemaCollection schemaCol = new XmlSchemaCollection();
-            XmlSchema schema = schemaCol.read(new StreamSource(is));
-            assertNotNull(schema);
-
-            // Get elements and check annotations are populated
-            for (XmlSchemaElement element : schema.getElements().values()) {
-                assertNotNull(element);
-                Map<Object, Object> metaInfoMap = element.getMetaInfoMap();
-                assertNotNull(metaInfoMap);
-                LibhpcTrueNameCustomAttribute customAttrib =
-                        (LibhpcTrueNameCustomAttribute) metaInfoMap.get(
-                                LibhpcTrueNameCustomAttribute
-                                .LIBHPC_TRUE_NAME_CUSTOM_ATTRIBUTE_QNAME);
-                assertNotNull(customAttrib);
-            }
-        } finally {
-            System.getProperties().remove(Constants.SystemConstants.EXTENSION_REGISTRY_KEY);
+        // Get elements and check annotations are populated
+        for (XmlSchemaElement element : schema.getElements().values()) {
+            assertNotNull(element);
+            Map<Object, Object> metaInfoMap = element.getMetaInfoMap();
+            assertNotNull(metaInfoMap);
+            LibhpcTrueNameCustomAttribute customAttrib =
+                    (LibhpcTrueNameCustomAttribute) metaInfoMap.get(
+                            LibhpcTrueNameCustomAttribute
+                            .LIBHPC_TRUE_NAME_CUSTOM_ATTRIBUTE_QNAME);
+            assertNotNull(customAttrib);
         }
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for LineLexer, checking it against the regular expressions
+ * it replaces.
+ *
+ * @author Jeremy Nowell
+ */
+public class LineLexerTest extends Assert {
+
+    /** The comment regexp. */
+    private static final Pattern COMMENT = Pattern.compile("^\\s*#.*");
+
+    /** The START_SECTION regexp. */
+    private static final Pattern START_SECTION = Pattern.compile("^\\s*&(\\S+)\\s?(.+)?");
+
+    /** The END_SECTION regexp, matching END ignoring case as CP2K does. */
+    private static final Pattern END_SECTION = Pattern.compile("^\\s*&(?i:END).*");
+
+    /** The KEYWORD_VALUE regexp. */
+    private static final Pattern KEYWORD_VALUE =
+            Pattern.compile("^\\s*(\\S+)\\s*(?:\\[.+\\])?([\\w\\.\\-\\+\\s]*)(?:\\[.+\\]\\s*)?$");
+
+    /** The bare keyword regexp. */
+    private static final Pattern BARE_KEYWORD = Pattern.compile("^\\s*(\\S+)\\s*$");
+
+    /** Keyword, and unit regexp. */
+    private static final Pattern KEYWORD_UNIT = Pattern.compile("^\\s*(\\S+).+\\[(\\S+)\\].*");
+
+    /** Characters used to build random lines. */
+    private static final String ALPHABET = "  \t&&##[[]]ENDendAb1.-+/*_";
+
+    /**
+     * Lines from the test input files should lex as the regexps do.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testInputFilesMatchRegexps() throws IOException {
+        String[] inputFiles = {"alias.inp", "cell_abc.inp", "comment.inp", "cp2k.inp",
+            "end_no_section_name.inp", "repeats.inp", "simple-input.inp",
+            "single-section.inp", "units-test.inp"};
+        for (String inputFile : inputFiles) {
+            InputStream is = this.getClass().getResourceAsStream("/input/" + inputFile);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    checkLine(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Awkward lines should lex as the regexps do.
+     */
+    @Test
+    public void testAwkwardLinesMatchRegexps() {
+        String[] lines = {"", "   ", "&", "& FOO", "&END", "&ENDING", "  &END  FOO  ",
+            "&end", "  &End kind", "&eNDx", "&en d",
+            "&OT ", "&FORCE_EVAL   lots   of   params  ", "#", "  # comment [x]",
+            "KEYWORD", "  KEYWORD  ", "KEYWORD ../path/file.dat", "A[x] y/z]",
+            "KEY [u1] V1 [u2]", "KEY [u] ", "KEY[bohr] 1", "MAX_DR [bohr]",
+            "MAX_FORCE 1.0E-03 [bohr^-1*hartree]", "  KEYWORD 2.4 bohr^-1*hartree",
+            "AB[u]", "A[u]", "KEY [a] [b] [c]", "KEY [] 1", "KEY [x]]", "TYPE\ttabbed\tvalue",
+            "Si 0.0 0.0 0.0", "KEY a&b<c>d", "KEY été", "KEY [[x]] 1 [y]"};
+        for (String line : lines) {
+            checkLine(line);
+        }
+    }
+
+    /**
+     * Random lines should lex as the regexps do.
+     */
+    @Test
+    public void testRandomLinesMatchRegexps() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int length = random.nextInt(16);
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                line.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            checkLine(line.toString());
+        }
+    }
+
+    /**
+     * A lexer should be reusable for many lines.
+     */
+    @Test
+    public void testLexerIsReusable() {
+        LineLexer lexer = new LineLexer();
+
+        assertEquals(LineLexer.LineType.SECTION_START, lexer.lex("  &KIND Si"));
+        assertEquals("KIND", lexer.getSectionName());
+        assertEquals("Si", lexer.getSectionParameters());
+
+        assertEquals(LineLexer.LineType.KEYWORD, lexer.lex("  MAX_DR [bohr] 1.0E-03"));
+        assertEquals("MAX_DR", lexer.getKeywordName());
+        assertEquals("1.0E-03", lexer.getKeywordValue());
+        assertEquals("bohr", lexer.getKeywordUnit());
+        assertNull(lexer.getSectionName());
+
+        assertEquals(LineLexer.LineType.SECTION_END, lexer.lex("&END KIND"));
+        assertEquals(LineLexer.LineType.SECTION_END, lexer.lex("  &end kind"));
+        assertEquals(LineLexer.LineType.COMMENT, lexer.lex("  # comment"));
+    }
+
+    /**
+     * Check the lexer gives the same results as the regexps for a line.
+     *
+     * @param line the line to check.
+     */
+    private void checkLine(String line) {
+        LineLexer lexer = new LineLexer();
+        LineLexer.LineType type = lexer.lex(line);
+        String msg = "Line '" + line + "'";
+
+        boolean isEnd = END_SECTION.matcher(line).matches();
+        boolean isComment = COMMENT.matcher(line).matches();
+        Matcher start = START_SECTION.matcher(line);
+        boolean isStart = start.matches();
+
+        assertEquals(msg, isEnd, type == LineLexer.LineType.SECTION_END);
+        assertEquals(msg, isComment, type == LineLexer.LineType.COMMENT);
+        assertEquals(msg, isStart && !isEnd, type == LineLexer.LineType.SECTION_START);
+        assertEquals(msg, isStart, lexer.hasSectionName());
+        assertEquals(msg, isStart ? start.group(1) : null, lexer.getSectionName());
+        assertEquals(msg, isStart ? start.group(2) : null, lexer.getSectionParameters());
+
+        String name = null;
+        String value = null;
+        Matcher bare = BARE_KEYWORD.matcher(line);
+        if (bare.matches()) {
+            name = bare.group(1);
+        } else {
+            Matcher keywordValue = KEYWORD_VALUE.matcher(line);
+            if (keywordValue.matches()) {
+                name = keywordValue.group(1);
+                value = keywordValue.group(2).trim();
+            }
+        }
+        assertEquals(msg, name, lexer.getKeywordName());
+        assertEquals(msg, value, lexer.getKeywordValue());
+
+        Matcher unit = KEYWORD_UNIT.matcher(line);
+        boolean hasUnit = unit.matches();
+        assertEquals(msg, hasUnit, lexer.hasKeywordUnit());
+        assertEquals(msg, hasUnit ? unit.group(2) : null, lexer.getKeywordUnit());
+    }
+}
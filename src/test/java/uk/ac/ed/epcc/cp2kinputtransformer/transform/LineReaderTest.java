@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for LineReader, checking it splits lines as BufferedReader does.
+ *
+ * @author Jeremy Nowell
+ */
+public class LineReaderTest extends Assert {
+
+    /**
+     * Lines ending in each kind of terminator, with and without a final
+     * terminator, should match BufferedReader.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testTerminators() throws IOException {
+        String[] inputs = {"", "\n", "\r", "\r\n", "a", "a\n", "a\r", "a\r\n", "a\nb", "a\rb", "a\r\nb",
+            "\n\n", "\r\r", "\r\n\r\n", "\n\r", "a\r\r\nb\n\nc", "  &GLOBAL\r\n  PROJECT test\r\n&END"};
+        for (String input : inputs) {
+            assertEquals(bufferedLines(input), lines(new StringReader(input)));
+            assertEquals(bufferedLines(input), lines(new OneCharReader(input)));
+        }
+    }
+
+    /**
+     * Lines longer than the buffer should be read whole.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testLongLines() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            input.append((char) ('a' + i % 26));
+        }
+        input.append("\r\nshort\r\n").append(input.substring(0, 9000));
+        assertEquals(bufferedLines(input.toString()), lines(new StringReader(input.toString())));
+    }
+
+    /**
+     * Random input should match BufferedReader, read in small pieces.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testRandomInput() throws IOException {
+        Random random = new Random(42);
+        char[] alphabet = {'a', ' ', '&', 'é', '\n', '\r'};
+        for (int i = 0; i < 200; i++) {
+            char[] input = new char[random.nextInt(20000)];
+            for (int j = 0; j < input.length; j++) {
+                input[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String text = new String(input);
+            assertEquals(bufferedLines(text), lines(new OneCharReader(text)));
+        }
+    }
+
+    /**
+     * Reading part of an array from a line start to a line end should give
+     * the same lines, including an empty last line.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testLineEnd() throws IOException {
+        char[] input = "a\n\nb\r\n\r\nc".toCharArray();
+        LineReader line = new LineReader(input, 0, input.length);
+        List<String> lines = new ArrayList<String>();
+        List<Integer> ends = new ArrayList<Integer>();
+        while (line.readLine()) {
+            lines.add(line.toString());
+            ends.add(line.getLineEnd());
+        }
+        assertEquals(Arrays.asList(2, 3, 5, 7, 9), ends);
+        for (int i = 0; i < lines.size(); i++) {
+            LineReader part = new LineReader(input, 0, ends.get(i));
+            List<String> partLines = new ArrayList<String>();
+            while (part.readLine()) {
+                partLines.add(part.toString());
+            }
+            assertEquals(lines.subList(0, i + 1), partLines);
+        }
+    }
+
+    /**
+     * The current line should be available as a character sequence.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testCharSequence() throws IOException {
+        LineReader line = new LineReader(new StringReader("first\n  PROJECT test\n"));
+        assertTrue(line.readLine());
+        assertTrue(line.readLine());
+        assertEquals(14, line.length());
+        assertEquals('P', line.charAt(2));
+        assertEquals("PROJECT", line.subSequence(2, 9).toString());
+        assertEquals("test", new String(line.getBuffer(), line.getLineStart() + 10, 4));
+        try {
+            line.charAt(14);
+            fail("Expected index past the end of the line to be rejected");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+        assertFalse(line.readLine());
+    }
+
+    /**
+     * Read all the lines with a LineReader.
+     *
+     * @param reader the input.
+     * @return the lines.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static List<String> lines(Reader reader) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        LineReader line = new LineReader(reader);
+        while (line.readLine()) {
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Read all the lines with a BufferedReader.
+     *
+     * @param input the input.
+     * @return the lines.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static List<String> bufferedLines(String input) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new StringReader(input));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * A reader returning a single character at a time, so lines and
+     * terminators are split between reads.
+     */
+    private static class OneCharReader extends Reader {
+
+        /** The input. */
+        private final String m_input;
+
+        /** Offset of the next character. */
+        private int m_offset;
+
+        /**
+         * Instantiates a new reader.
+         *
+         * @param input the input.
+         */
+        OneCharReader(String input) {
+            m_input = input;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (m_offset == m_input.length()) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            buffer[offset] = m_input.charAt(m_offset++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for SchemaCache.
+ *
+ * @author Jeremy Nowell
+ */
+public class SchemaCacheTest extends Assert {
+
+    /**
+     * Repeated requests should share the loaded schema.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testCachedSchemaIsShared() throws IOException {
+        SchemaCache cache = new SchemaCache();
+
+        CP2KSection first = cache.getTopLevelSection("minimal");
+        CP2KSection second = cache.getTopLevelSection("minimal");
+        assertSame(first, second);
+
+        SchemaCache.TemplateStatistics stats = cache.getStatistics("minimal");
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getLoads());
+    }
+
+    /**
+     * Least recently used schema should be evicted when full.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        SchemaCache cache = new SchemaCache(1);
+
+        cache.getTopLevelSection("minimal");
+        cache.getTopLevelSection("customAttribute");
+
+        assertEquals(1, cache.size());
+        assertTrue(cache.contains("customAttribute"));
+        assertFalse(cache.contains("minimal"));
+        assertEquals(1, cache.getStatistics("minimal").getEvictions());
+    }
+
+    /**
+     * Missing schema should fail and be recorded under the unknown template.
+     */
+    @Test
+    public void testMissingSchemaFails() {
+        SchemaCache cache = new SchemaCache();
+        try {
+            cache.getTopLevelSection("no-such-template");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertNull(cache.getStatistics("no-such-template"));
+            SchemaCache.TemplateStatistics stats = cache.getStatistics(SchemaCache.UNKNOWN_TEMPLATE);
+            assertEquals(1, stats.getLoadFailures());
+            assertEquals(1, stats.getMisses());
+        }
+        assertEquals(0, cache.size());
+        assertEquals(Collections.singleton(SchemaCache.UNKNOWN_TEMPLATE), cache.getStatistics().keySet());
+    }
+    /**
+     * A lean cache should copy the whole template when loaded, releasing the
+     * schema, while a cache keeping the schema populates it on demand and
+     * measures it again once populated.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testLeanCacheReleasesSchema() throws IOException {
+        SchemaCache cache = new SchemaCache(1, true);
+        CP2KSection topLevel = cache.getTopLevelSection("minimal");
+        assertTrue(topLevel.getSubSection("GLOBAL").isPopulated());
+        assertNull(topLevel.getSchemaElement());
+        assertNull(topLevel.getSubSection("GLOBAL").getSchemaElement());
+
+        SchemaFootprint footprint = cache.getStatistics("minimal").getFootprint();
+        assertEquals(2, footprint.getSections());
+        assertFalse(footprint.retainsSchema());
+
+        cache = new SchemaCache(1, false);
+        topLevel = cache.getTopLevelSection("minimal");
+        assertNotNull(topLevel.getSchemaElement());
+        assertFalse(topLevel.isPopulated());
+        footprint = cache.getStatistics("minimal").getFootprint();
+        assertEquals(1, footprint.getSections());
+        assertTrue(footprint.retainsSchema());
+
+        assertSame(topLevel, cache.populate("minimal"));
+        assertTrue(topLevel.getSubSection("GLOBAL").isPopulated());
+        footprint = cache.getStatistics("minimal").getFootprint();
+        assertEquals(2, footprint.getSections());
+        assertTrue(footprint.retainsSchema());
+    }
+
+    /**
+     * The checksum of a template loaded from its schema should be that of
+     * its section tree, computed on first use rather than when loaded.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testChecksumComputedOnFirstUse() throws IOException {
+        SchemaCache cache = new SchemaCache(1, false);
+        CP2KSection topLevel = cache.getTopLevelSection("minimal");
+        assertFalse(topLevel.isPopulated());
+
+        long checksum = SchemaIndex.checksum(TextInputProcessor.loadSchema("/minimal.xsd"));
+        assertEquals(checksum, cache.getChecksum("minimal", topLevel));
+        assertTrue(topLevel.getSubSection("GLOBAL").isPopulated());
+        assertEquals(checksum, cache.getChecksum("minimal", topLevel));
+    }
+
+    /**
+     * Concurrent first uses of the checksum should all get the checksum of
+     * the section tree.
+     *
+     * @throws Exception Signals that an exception has occurred.
+     */
+    @Test
+    public void testConcurrentChecksums() throws Exception {
+        final SchemaCache cache = new SchemaCache(1, false);
+        final CP2KSection topLevel = cache.getTopLevelSection("minimal");
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Long>> checksums = new ArrayList<Future<Long>>();
+            for (int i = 0; i < 8; i++) {
+                checksums.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        go.await();
+                        return cache.getChecksum("minimal", topLevel);
+                    }
+                }));
+            }
+            go.countDown();
+
+            long checksum = SchemaIndex.checksum(TextInputProcessor.loadSchema("/minimal.xsd"));
+            for (Future<Long> future : checksums) {
+                assertEquals(checksum, future.get().longValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Concurrent requests for a template not cached should share one load.
+     *
+     * @throws Exception Signals that an exception has occurred.
+     */
+    @Test
+    public void testConcurrentLoadsCoalesced() throws Exception {
+        final SchemaCache cache = new SchemaCache();
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CP2KSection>> sections = new ArrayList<Future<CP2KSection>>();
+            for (int i = 0; i < 8; i++) {
+                sections.add(executor.submit(new Callable<CP2KSection>() {
+                    @Override
+                    public CP2KSection call() throws Exception {
+                        go.await();
+                        return cache.getTopLevelSection("minimal");
+                    }
+                }));
+            }
+            go.countDown();
+
+            CP2KSection first = sections.get(0).get();
+            for (Future<CP2KSection> section : sections) {
+                assertSame(first, section.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        SchemaCache.TemplateStatistics stats = cache.getStatistics("minimal");
+        assertEquals(1, stats.getLoads());
+        assertEquals(8, stats.getHits() + stats.getMisses());
+        assertTrue(stats.getCoalesced() <= stats.getMisses());
+    }
+
+    /**
+     * Requests waiting for a failed load should all fail.
+     */
+    @Test
+    public void testFailedLoadNotCached() {
+        SchemaCache cache = new SchemaCache();
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.getTopLevelSection("no-such-template");
+                fail("Expected missing schema to fail");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        assertEquals(2, cache.getStatistics(SchemaCache.UNKNOWN_TEMPLATE).getLoadFailures());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for SchemaIndex and SchemaIndexCompiler.
+ *
+ * @author Jeremy Nowell
+ */
+public class SchemaIndexTest extends Assert {
+
+    /** Folder for compiled indexes. */
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    /**
+     * A section tree read from an index should match the schema.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testIndexRoundTrip() throws IOException {
+        CP2KSection schemaSection = TextInputProcessor.loadSchema("/minimal.xsd");
+        SchemaIndex.Loaded index = SchemaIndex.read(ByteBuffer.wrap(writeIndex(schemaSection)));
+        CP2KSection indexSection = index.getTopLevelSection();
+
+        assertSameTree(schemaSection, indexSection);
+        assertEquals(SchemaIndex.checksum(schemaSection), index.getChecksum());
+        assertEquals(SchemaIndex.checksum(schemaSection), SchemaIndex.checksum(indexSection));
+        assertNull(indexSection.getSchemaElement());
+        assertTrue(indexSection.isPopulated());
+        assertEquals("CP2K_KEYWORD_PROJECT_NAME",
+                indexSection.getSubSection("GLOBAL").getKeyWord("PROJECT").getSanitisedName());
+
+        String input = "&GLOBAL\n  PROJECT test\n  UNKNOWN\n&END GLOBAL\n";
+        assertEquals(new TextInputProcessor(schemaSection).processInputFile(input),
+                new TextInputProcessor(indexSection).processInputFile(input));
+    }
+
+    /**
+     * A compiled index file should be loaded through a memory mapping.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testCompiledIndex() throws IOException {
+        File schemaDirectory = m_folder.newFolder("schema");
+        File outputDirectory = new File(m_folder.getRoot(), "classes");
+        InputStream is = getClass().getResourceAsStream("/minimal.xsd");
+        OutputStream os = new FileOutputStream(new File(schemaDirectory, "minimal.xsd"));
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+
+        assertEquals(1, SchemaIndexCompiler.compileAll(schemaDirectory, outputDirectory));
+        CP2KSection indexSection =
+                SchemaIndex.load(new File(outputDirectory, "minimal.idx")).getTopLevelSection();
+        assertSameTree(TextInputProcessor.loadSchema("/minimal.xsd"), indexSection);
+
+        BufferedReader reader = new BufferedReader(new FileReader(
+                new File(outputDirectory, "templates.list")));
+        try {
+            assertEquals("minimal", reader.readLine());
+            assertNull(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A missing index resource should give null, so the schema is used instead.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testMissingIndex() throws IOException {
+        assertNull(SchemaIndex.load(SchemaIndex.getIndexFileName("no-such-template")));
+        assertNotNull(SchemaCache.loadTemplate("minimal"));
+    }
+
+    /**
+     * A corrupted index should be rejected.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testCorruptIndexRejected() throws IOException {
+        byte[] index = writeIndex(TextInputProcessor.loadSchema("/minimal.xsd"));
+
+        byte[] corrupt = index.clone();
+        corrupt[corrupt.length / 2] ^= 1;
+        try {
+            SchemaIndex.read(ByteBuffer.wrap(corrupt));
+            fail("Expected corrupt index to be rejected");
+        } catch (IOException e) {
+            assertEquals("Schema index checksum mismatch", e.getMessage());
+        }
+
+        byte[] truncated = new byte[8];
+        System.arraycopy(index, 0, truncated, 0, truncated.length);
+        try {
+            SchemaIndex.read(ByteBuffer.wrap(truncated));
+            fail("Expected truncated index to be rejected");
+        } catch (IOException e) {
+            assertEquals("Truncated schema index", e.getMessage());
+        }
+    }
+
+    /**
+     * Write the index of a section tree.
+     *
+     * @param section the top level section.
+     * @return the index.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static byte[] writeIndex(CP2KSection section) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        SchemaIndex.write(section, index);
+        return index.toByteArray();
+    }
+
+    /**
+     * Assert two section trees have the same names, keywords and aliases.
+     *
+     * @param expected the expected tree.
+     * @param actual the actual tree.
+     */
+    private static void assertSameTree(CP2KSection expected, CP2KSection actual) {
+        assertEquals(expected.getSanitisedName(), actual.getSanitisedName());
+        assertEquals(expected.getCp2kName(), actual.getCp2kName());
+
+        assertEquals(expected.getKeyWords().size(), actual.getKeyWords().size());
+        for (int i = 0; i < expected.getKeyWords().size(); i++) {
+            CP2KKeyWord expectedKeyWord = expected.getKeyWords().get(i);
+            CP2KKeyWord actualKeyWord = actual.getKeyWords().get(i);
+            assertEquals(expectedKeyWord.getSanitisedName(), actualKeyWord.getSanitisedName());
+            assertEquals(expectedKeyWord.getCp2kName(), actualKeyWord.getCp2kName());
+            assertEquals(expectedKeyWord.getAliases(), actualKeyWord.getAliases());
+        }
+
+        List<CP2KSection> expectedSubSections = new ArrayList<CP2KSection>(expected.getSubSections());
+        assertEquals(expectedSubSections.size(), actual.getSubSections().size());
+        Iterator<CP2KSection> actualSubSections = actual.getSubSections().iterator();
+        for (CP2KSection expectedSubSection : expectedSubSections) {
+            assertSameTree(expectedSubSection, actualSubSections.next());
+        }
+    }
+}
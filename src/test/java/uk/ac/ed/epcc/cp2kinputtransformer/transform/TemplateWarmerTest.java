@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for TemplateWarmer.
+ *
+ * @author Jeremy Nowell
+ */
+public class TemplateWarmerTest extends Assert {
+
+    /**
+     * Warming up should load every template, counting failures, and then
+     * be ready.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testWarmUp() throws InterruptedException {
+        SchemaCache cache = new SchemaCache();
+        TemplateWarmer warmer = new TemplateWarmer(cache, 2);
+        assertTrue(warmer.isReady());
+
+        assertTrue(warmer.start(Arrays.asList("minimal", "customAttribute", "no-such-template")));
+        assertFalse(warmer.start(Collections.<String>emptyList()));
+        assertTrue(warmer.awaitReady(30, TimeUnit.SECONDS));
+
+        assertTrue(warmer.isReady());
+        assertEquals(0, warmer.getRemaining());
+        assertEquals(1, warmer.getFailures());
+        assertTrue(cache.contains("minimal"));
+        assertTrue(cache.contains("customAttribute"));
+        assertEquals(1, cache.getStatistics("minimal").getLoads());
+    }
+
+    /**
+     * Warming up no templates should be ready at once.
+     *
+     * @throws InterruptedException if interrupted.
+     */
+    @Test
+    public void testNoTemplates() throws InterruptedException {
+        TemplateWarmer warmer = new TemplateWarmer(new SchemaCache(), 1);
+        assertTrue(warmer.start(Collections.<String>emptyList()));
+        assertTrue(warmer.isReady());
+        assertTrue(warmer.awaitReady(0, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A warmer shut down should not start.
+     */
+    @Test
+    public void testShutdown() {
+        TemplateWarmer warmer = new TemplateWarmer(new SchemaCache(), 1);
+        assertFalse(warmer.isShutdown());
+        warmer.shutdownNow();
+        assertTrue(warmer.isShutdown());
+        assertFalse(warmer.start(Collections.singletonList("minimal")));
+    }
+}
@@ -18,17 +18,33 @@
 
 package uk.ac.ed.epcc.cp2kinputtransformer.transform;
 
+import org.apache.ws.commons.schema.constants.Constants;
 import org.junit.Assert;
 import org.junit.Test;
 import org.xmlunit.builder.DiffBuilder;
 import org.xmlunit.builder.Input;
 import org.xmlunit.diff.Diff;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import javax.xml.transform.Source;
 
@@ -53,6 +69,397 @@ public class TextInputProcessorTest extends Assert {
         assertNotNull(processor);
     }
 
+    /**
+     * Schemas loaded in parallel should all resolve CP2K names, without
+     * touching the global extension registry property.
+     *
+     * @throws Exception if problem.
+     */
+    @Test
+    public void testParallelSchemaLoads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<CP2KSection>> results = new ArrayList<Future<CP2KSection>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<CP2KSection>() {
+                    @Override
+                    public CP2KSection call() throws IOException {
+                        return TextInputProcessor.loadSchema("/minimal.xsd");
+                    }
+                }));
+            }
+            for (Future<CP2KSection> result : results) {
+                CP2KSection global = result.get().getSubSection("GLOBAL");
+                assertNotNull(global);
+                assertEquals("CP2K_SECTION_GLOBAL", global.getSanitisedName());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertNull(System.getProperty(Constants.SystemConstants.EXTENSION_REGISTRY_KEY));
+    }
+
+    /**
+     * Loading a missing schema should fail.
+     *
+     * @throws IOException expected.
+     */
+    @Test(expected = IOException.class)
+    public void testMissingSchemaFails() throws IOException {
+        TextInputProcessor.loadSchema("/no-such-schema.xsd");
+    }
+
+    /**
+     * A processor should give the same output when reused.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testProcessorReuse() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        String input = "&GLOBAL\n  PROJECT test\n&END GLOBAL\n";
+
+        String first = processor.processInputFile(input);
+        String second = processor.processInputFile(input);
+        assertTrue(first.contains("<CP2K_KEYWORD_PROJECT_NAME>test</CP2K_KEYWORD_PROJECT_NAME>"));
+        assertEquals(first, second);
+    }
+
+    /**
+     * Section and keyword names in lower or mixed case should be found, as
+     * CP2K ignores their case, and lower case section ends should end
+     * sections.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testNamesIgnoreCase() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+
+        assertEquals(processor.processInputFile("&GLOBAL\n  PROJECT test\n  H 1\n&END GLOBAL\n"),
+                processor.processInputFile("&global\n  project test\n  H 1\n&end global\n"));
+        assertEquals(processor.processInputFile("&GLOBAL\n  PROJECT_NAME test\n&END\n&GLOBAL\n"),
+                processor.processInputFile("&Global\n  Project_Name test\n&End\n&GLOBAL\n"));
+    }
+
+    /**
+     * Input streams should be decoded as UTF-8, whatever the platform
+     * encoding, giving the same output as the input as a string.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testUtf8InputStream() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        String input = "&GLOBAL\r\n  PROJECT café_α\r\n! Ångström\r\n&END GLOBAL";
+
+        String expected = processor.processInputFile(input);
+        assertTrue(expected.contains("café_α"));
+        assertEquals(expected, processor.processInputFile(
+                new ByteArrayInputStream(input.getBytes("UTF-8"))));
+    }
+
+    /**
+     * Timing the phases of a transform should record each phase without
+     * changing the output.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testPhaseTimings() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        StringBuilder input = new StringBuilder("&GLOBAL\n");
+        for (int i = 0; i < 1000; i++) {
+            input.append("  PROJECT test\n");
+        }
+        input.append("&END GLOBAL\n");
+        byte[] bytes = input.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream untimed = new ByteArrayOutputStream();
+        processor.processInputFile(new ByteArrayInputStream(bytes), untimed);
+
+        PhaseTimings timings = new PhaseTimings();
+        ByteArrayOutputStream timed = new ByteArrayOutputStream();
+        assertEquals(1002, processor.processInputFile(new ByteArrayInputStream(bytes), timed, timings));
+        assertArrayEquals(untimed.toByteArray(), timed.toByteArray());
+
+        assertTrue(timings.getNanos(PhaseTimings.Phase.LEX) > 0);
+        assertTrue(timings.getNanos(PhaseTimings.Phase.RESOLVE) > 0);
+        assertTrue(timings.getNanos(PhaseTimings.Phase.XML) > 0);
+        assertEquals(0, timings.getNanos(PhaseTimings.Phase.UPLOAD));
+        assertTrue(timings.toServerTiming().startsWith("upload;dur=0.000, queue;dur=0.000, "));
+    }
+
+    /**
+     * A trace should record each line and how it was handled, without
+     * changing the output.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testTrace() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        byte[] input = "&GLOBAL\n  PROJECT test\n  42\n&UNKNOWN\n&END GLOBAL\n".getBytes("UTF-8");
+
+        final List<String> messages = new ArrayList<String>();
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        ByteArrayOutputStream untraced = new ByteArrayOutputStream();
+        processor.processInputFile(new ByteArrayInputStream(input), untraced);
+        ByteArrayOutputStream traced = new ByteArrayOutputStream();
+        processor.processInputFile(new ByteArrayInputStream(input), traced, PhaseTimings.DISABLED,
+                new TransformTrace(logger, Level.INFO, "[t] "));
+        assertArrayEquals(untraced.toByteArray(), traced.toByteArray());
+
+        assertTrue(messages.toString(), messages.contains("[t] Line 1 SECTION_START: &GLOBAL"));
+        assertTrue(messages.toString(), messages.contains("[t] Section GLOBAL"));
+        assertTrue(messages.toString(), messages.contains("[t] Keyword CP2K_KEYWORD_PROJECT_NAME: test"));
+        assertTrue(messages.toString(), messages.contains("[t] Default keyword:   42"));
+        assertTrue(messages.toString(), messages.contains("[t] Section UNKNOWN not in schema, ignored"));
+        assertTrue(messages.toString(), messages.contains("[t] Line 5 SECTION_END: &END GLOBAL"));
+    }
+
+    /**
+     * Rows of default keyword written without lexing each line should give
+     * the same output as a traced transform, which lexes every line.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testRowsMatchLexedLines() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.OFF);
+        TransformTrace trace = new TransformTrace(logger, Level.INFO, "");
+
+        List<String> inputs = new ArrayList<String>();
+        inputs.add("&GLOBAL\n  H 0.0 0.0 0.0\n  O 1.0 0.0 0.0\n\n  PROJECT test\n  C 1 2 3\n"
+                + "  PROJECTS 1\n  PROJECT_NAMES\n  PROJ 1\n  # comment\n  H 2\n  & 1\n"
+                + "  &UNKNOWN\n  H 3\n  &END\n  H 4\n&END GLOBAL\n  H 5\n");
+        inputs.add("&GLOBAL\n  PROJECTfoo bar#\n  PROJECT[u] x,\n  PROJECT-x [u] y\n  <&>\n"
+                + "  PROJECT_NAME\n  été 1\n\t\n  H");
+        String[] words = {"PROJECT", "PROJECT_NAME", "PROJ", "H", "1.0", " ", " ", "\t", "&", "#",
+            "[u]", "[", "]", ",", "-", "é"};
+        Random random = new Random(24);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder input = new StringBuilder("&GLOBAL\n");
+            for (int j = random.nextInt(50); j > 0; j--) {
+                for (int k = random.nextInt(6); k > 0; k--) {
+                    input.append(words[random.nextInt(words.length)]);
+                }
+                input.append(random.nextInt(4) == 0 ? "\r\n" : "\n");
+            }
+            inputs.add(input.toString());
+        }
+
+        for (String input : inputs) {
+            byte[] bytes = input.getBytes("UTF-8");
+            ByteArrayOutputStream untraced = new ByteArrayOutputStream();
+            processor.processInputFile(new ByteArrayInputStream(bytes), untraced);
+            ByteArrayOutputStream traced = new ByteArrayOutputStream();
+            processor.processInputFile(
+                    new ByteArrayInputStream(bytes), traced, PhaseTimings.DISABLED, trace);
+            assertEquals(input, traced.toString("UTF-8"), untraced.toString("UTF-8"));
+        }
+    }
+
+    /**
+     * Compact rows should write each run of default keyword lines as a
+     * single element.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testCompactRows() throws IOException {
+        CP2KSection topLevelSection = TextInputProcessor.loadSchema("/minimal.xsd");
+        TextInputProcessor processor = new TextInputProcessor(topLevelSection, 1, null, true);
+        String input = "&GLOBAL\n  H 0 0 0\n  O 1 0 0\n  C 1 & 2\n# note\n  N 3\n&END GLOBAL\n";
+
+        assertEquals("<?xml version=\"1.0\" ?><CP2K><CP2K_SECTION_GLOBAL>"
+                + "<CP2K_KEYWORD_DEFAULT_KEYWORD>  H 0 0 0\n  O 1 0 0\n  C 1 &amp; 2<!--# note-->\n  N 3"
+                + "</CP2K_KEYWORD_DEFAULT_KEYWORD></CP2K_SECTION_GLOBAL></CP2K>",
+                processor.processInputFile(input));
+
+        // Lexing every line, as when traced, should give the same output.
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setLevel(Level.OFF);
+        ByteArrayOutputStream untraced = new ByteArrayOutputStream();
+        processor.processInputFile(new ByteArrayInputStream(input.getBytes("UTF-8")), untraced);
+        ByteArrayOutputStream traced = new ByteArrayOutputStream();
+        processor.processInputFile(new ByteArrayInputStream(input.getBytes("UTF-8")), traced,
+                PhaseTimings.DISABLED, new TransformTrace(logger, Level.INFO, ""));
+        assertArrayEquals(untraced.toByteArray(), traced.toByteArray());
+    }
+
+    /**
+     * An interrupted transform should stop.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testInterruptedTransformStops() throws IOException {
+        TextInputProcessor processor = new TextInputProcessor("/minimal.xsd");
+        StringBuilder input = new StringBuilder("&GLOBAL\n");
+        for (int i = 0; i < 5000; i++) {
+            input.append("  PROJECT test\n");
+        }
+        input.append("&END GLOBAL\n");
+
+        Thread.currentThread().interrupt();
+        try {
+            processor.processInputFile(input.toString());
+            fail("Expected interrupted transform to fail");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Transforming the top level sections in parallel should give the same
+     * output as transforming sequentially.
+     *
+     * @throws Exception if a transform fails.
+     */
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        CP2KSection topLevelSection = TextInputProcessor.loadSchema("/cp2k-4.0.xsd");
+        TextInputProcessor sequential = new TextInputProcessor(topLevelSection);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            TextInputProcessor parallel = new TextInputProcessor(
+                    topLevelSection, TextInputProcessor.DEFAULT_MAX_SECTION_DEPTH, pool, 0, false);
+
+            List<String> inputs = new ArrayList<String>();
+            for (String inputFileName : new String[] {"alias.inp", "cell_abc.inp", "comment.inp",
+                "cp2k.inp", "end_no_section_name.inp", "repeats.inp", "simple-input.inp",
+                "single-section.inp", "units-test.inp"}) {
+                inputs.add(new String(Files.readAllBytes(Paths.get(
+                        getClass().getResource("/input/" + inputFileName).toURI())), "UTF-8"));
+            }
+            inputs.add("");
+            inputs.add("# comment only\n");
+            inputs.add("SOME DEFAULT\n&GLOBAL\n  PROJECT a\n&END GLOBAL\nMORE\r\n&MOTION\n&END");
+            inputs.add("&GLOBAL\n  PROJECT a\n&UNKNOWN\n&END UNKNOWN\n  RUN_TYPE ENERGY\n&END GLOBAL\n");
+            inputs.add("&UNKNOWN\n&GLOBAL\n&END GLOBAL\n&END UNKNOWN\n&GLOBAL\n&END GLOBAL\n");
+            inputs.add("&GLOBAL\n&END GLOBAL\n&END\n&MOTION\n&END MOTION\n");
+            inputs.add("X\n\n&GLOBAL\n  PROJECT a\n&END GLOBAL\n");
+            inputs.add("&GLOBAL\n  PROJECT a\n&END GLOBAL\n\n&MOTION\n\n&END MOTION\n\n\n"
+                    + "&FORCE_EVAL\n&END FORCE_EVAL\n\n");
+            inputs.add("&GLOBAL\r\n&END GLOBAL\r\n\r\n&MOTION\r&END MOTION\r\r");
+            inputs.add("&FORCE_EVAL\n&SUBSYS\n&COORD\nH 0 0 0\nO 1 1 1\n&END COORD\n"
+                    + "&END SUBSYS\n&END FORCE_EVAL\n&FORCE_EVAL\n&SUBSYS\n&COORD\nH 2 2 2");
+
+            // Blank lines between and after the top level sections.
+            int count = inputs.size();
+            for (int i = 0; i < count; i++) {
+                inputs.add(inputs.get(i).replaceAll("(?m)^(&END[^\n]*\n)", "$1\n") + "\n");
+            }
+
+            for (String input : inputs) {
+                assertEquals(sequential.processInputFile(input), parallel.processInputFile(input));
+
+                byte[] bytes = input.getBytes("UTF-8");
+                ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                PhaseTimings timings = new PhaseTimings();
+                assertEquals(sequential.processInputFile(new ByteArrayInputStream(bytes), expected),
+                        parallel.processInputFile(new ByteArrayInputStream(bytes), actual, timings));
+                assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A parallel transform should fail as a sequential one does.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testParallelFailures() throws IOException {
+        CP2KSection topLevelSection = TextInputProcessor.loadSchema("/cp2k-4.0.xsd");
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            TextInputProcessor parallel = new TextInputProcessor(topLevelSection, 1, pool, 0, false);
+            try {
+                parallel.processInputFile("&GLOBAL\n&END GLOBAL\n&FORCE_EVAL\n&SUBSYS\n");
+                fail("Expected deeply nested sections to fail");
+            } catch (IOException e) {
+                assertEquals("Sections nested deeper than 1 at line 4", e.getCause().getMessage());
+            }
+
+            StringBuilder input = new StringBuilder();
+            for (int i = 0; i < 3; i++) {
+                input.append("&GLOBAL\n");
+                for (int j = 0; j < 5000; j++) {
+                    input.append("  PROJECT test\n");
+                }
+                input.append("&END GLOBAL\n");
+            }
+            Thread.currentThread().interrupt();
+            try {
+                parallel.processInputFile(input.toString());
+                fail("Expected interrupted transform to fail");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof InterruptedIOException);
+            } finally {
+                Thread.interrupted();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Sections nested deeper than the limit should fail.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testMaxSectionDepthExceeded() throws IOException {
+        CP2KSection topLevelSection = TextInputProcessor.loadSchema("/minimal.xsd");
+        String input = "&GLOBAL\n  PROJECT test\n&END GLOBAL\n";
+
+        TextInputProcessor processor = new TextInputProcessor(topLevelSection, 1);
+        assertEquals(1, processor.getMaxSectionDepth());
+        assertNotNull(processor.processInputFile(input));
+
+        try {
+            new TextInputProcessor("/cp2k-3.0.xsd")
+                    .processInputFile("&FORCE_EVAL\n&SUBSYS\n&END SUBSYS\n&END FORCE_EVAL\n");
+        } catch (IOException e) {
+            fail("Default depth limit should allow nested sections");
+        }
+
+        TextInputProcessor shallow =
+                new TextInputProcessor(TextInputProcessor.loadSchema("/cp2k-3.0.xsd"), 1);
+        try {
+            shallow.processInputFile("&FORCE_EVAL\n&SUBSYS\n&END SUBSYS\n&END FORCE_EVAL\n");
+            fail("Expected depth limit to be exceeded");
+        } catch (IOException e) {
+            assertTrue(e.getCause().getMessage().contains("line 2"));
+        }
+    }
+
 
     /**
      * Test processing.
@@ -230,6 +637,28 @@ public class TextInputProcessorTest extends Assert {
         transformStream("comment.inp", "comment.xml");
     }
 
+    /**
+     * Test processing.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    @Test
+    public void testProcessingUnitsOutputStream() throws IOException, URISyntaxException {
+        transformOutputStream("units-test.inp", "units-test.xml");
+    }
+
+    /**
+     * Test processing.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws URISyntaxException the URI syntax exception
+     */
+    @Test
+    public void testProcessingRepeatsOutputStream() throws IOException, URISyntaxException {
+        transformOutputStream("repeats.inp", "repeats.xml");
+    }
+
     /**
      * Test hasKeywordUnit finds unit.
      */
@@ -475,6 +904,31 @@ public class TextInputProcessorTest extends Assert {
 
     }
 
+    /**
+     * Utility function for running transform from Stream to Stream.
+     *
+     * @param inputFileName name of file containing CP2K input.
+     * @param expectedXmlFileName name of file containing XML to check against.
+     * @throws IOException if problem.
+     * @throws URISyntaxException if problem.
+     */
+    private void transformOutputStream(
+            String inputFileName,
+            String expectedXmlFileName) throws IOException, URISyntaxException {
+
+        String schemaFileName = "/cp2k-4.0.xsd";
+
+        TextInputProcessor processor = new TextInputProcessor(schemaFileName);
+
+        InputStream is = this.getClass().getResourceAsStream("/input/" + inputFileName);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        processor.processInputFile(is, os);
+
+        checkOutputXml(expectedXmlFileName, os.toString("UTF-8"));
+
+    }
+
     /**
      * Check the output XML string against an expected XML file.
      *
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) The University of Edinburgh, 2016.
+ *
+ * LICENCE-START
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * LICENCE-END
+ */
+
+package uk.ac.ed.epcc.cp2kinputtransformer.transform;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Tests for XmlEmitter, checking it against the JDK XMLStreamWriter it
+ * replaces.
+ *
+ * @author Jeremy Nowell
+ */
+public class XmlEmitterTest extends Assert {
+
+    /** Characters for random text, including markup and multi-byte characters. */
+    private static final String ALPHABET = "aZ0 _-!&<>\"'\téÅα �😀";
+
+    /**
+     * Markup, character data and comments should be written as by
+     * XMLStreamWriter.
+     *
+     * @throws Exception if the output cannot be written.
+     */
+    @Test
+    public void testMatchesXmlStreamWriter() throws Exception {
+        String[] texts = {"", "T", "a<b>c&d\"e'f", "café αβ 😀", "]]>", "x -- y"};
+        for (String text : texts) {
+            assertSameOutput(new String[] {text});
+        }
+    }
+
+    /**
+     * Random documents larger than the buffer should be written as by
+     * XMLStreamWriter, to both output streams and writers.
+     *
+     * @throws Exception if the output cannot be written.
+     */
+    @Test
+    public void testRandomDocuments() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            String[] texts = new String[random.nextInt(2000)];
+            for (int j = 0; j < texts.length; j++) {
+                StringBuilder text = new StringBuilder();
+                int length = random.nextInt(j % 100 == 0 ? 3 * XmlEmitter.BUFFER_SIZE : 40);
+                while (text.length() < length) {
+                    int index = random.nextInt(ALPHABET.length());
+                    if (Character.isHighSurrogate(ALPHABET.charAt(index))) {
+                        text.append(ALPHABET, index, index + 2);
+                    } else if (!Character.isLowSurrogate(ALPHABET.charAt(index))) {
+                        text.append(ALPHABET.charAt(index));
+                    }
+                }
+                texts[j] = text.toString();
+            }
+            assertSameOutput(texts);
+        }
+    }
+
+    /**
+     * An unpaired surrogate should be written as '?', to both output
+     * streams and writers.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Test
+    public void testUnpairedSurrogate() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XmlEmitter emitter = new XmlEmitter(output);
+        emitter.startElement(XmlEmitter.encode("A"));
+        emitter.characters("a\ud83db\ude00");
+        emitter.endDocument();
+        emitter.release();
+        assertEquals("<A>a?b?</A>", output.toString("UTF-8"));
+
+        StringWriter writer = new StringWriter();
+        emitter = new XmlEmitter(writer);
+        emitter.startElement(XmlEmitter.encode("A"));
+        emitter.characters("a\ud83db\ude00");
+        emitter.endDocument();
+        emitter.release();
+        assertEquals("<A>a?b?</A>", writer.toString());
+    }
+
+    /**
+     * Write a document of the given texts with an XmlEmitter and an
+     * XMLStreamWriter, to both an output stream and a writer, and assert
+     * the results are the same.
+     *
+     * @param texts the texts of the document.
+     * @throws Exception if the output cannot be written.
+     */
+    private static void assertSameOutput(String[] texts) throws Exception {
+        ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+        writeExpected(XMLOutputFactory.newInstance().createXMLStreamWriter(expectedBytes, "UTF-8"),
+                true, texts);
+        ByteArrayOutputStream actualBytes = new ByteArrayOutputStream();
+        writeActual(new XmlEmitter(actualBytes), texts);
+        assertTrue(Arrays.equals(expectedBytes.toByteArray(), actualBytes.toByteArray()));
+
+        StringWriter expectedChars = new StringWriter();
+        writeExpected(XMLOutputFactory.newInstance().createXMLStreamWriter(expectedChars), false, texts);
+        StringWriter actualChars = new StringWriter();
+        writeActual(new XmlEmitter(actualChars), texts);
+        assertEquals(expectedChars.toString(), actualChars.toString());
+    }
+
+    /**
+     * Write a document with an XMLStreamWriter.
+     *
+     * @param writer the writer.
+     * @param encoded whether to declare the encoding.
+     * @param texts the texts of the document.
+     * @throws XMLStreamException if the output cannot be written.
+     */
+    private static void writeExpected(XMLStreamWriter writer, boolean encoded, String[] texts)
+            throws XMLStreamException {
+        if (encoded) {
+            writer.writeStartDocument("UTF-8", "1.0");
+        } else {
+            writer.writeStartDocument();
+        }
+        writer.writeStartElement("CP2K");
+        for (int i = 0; i < texts.length; i++) {
+            switch (i % 4) {
+                case 0:
+                    writer.writeStartElement("SECTION");
+                    writer.writeCharacters(texts[i]);
+                    break;
+                case 1:
+                    writer.writeStartElement("KEYWORD");
+                    writer.writeAttribute("UNIT", texts[i]);
+                    writer.writeCharacters(texts[i]);
+                    writer.writeEndElement();
+                    break;
+                case 2:
+                    writer.writeComment(texts[i]);
+                    break;
+                default:
+                    writer.writeStartElement("EMPTY");
+                    writer.writeEndElement();
+                    writer.writeEndElement();
+                    break;
+            }
+        }
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
+    /**
+     * Write a document with an XmlEmitter.
+     *
+     * @param emitter the emitter.
+     * @param texts the texts of the document.
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeActual(XmlEmitter emitter, String[] texts) throws IOException {
+        emitter.startDocument();
+        emitter.startElement(XmlEmitter.encode("CP2K"));
+        for (int i = 0; i < texts.length; i++) {
+            char[] chars = (" " + texts[i] + " ").toCharArray();
+            switch (i % 4) {
+                case 0:
+                    emitter.startElement(XmlEmitter.encode("SECTION"));
+                    emitter.characters(texts[i]);
+                    break;
+                case 1:
+                    emitter.startElement(XmlEmitter.encode("KEYWORD"));
+                    emitter.attribute(XmlEmitter.encode("UNIT"), texts[i]);
+                    emitter.characters(chars, 1, texts[i].length());
+                    emitter.endElement();
+                    break;
+                case 2:
+                    emitter.comment(chars, 1, texts[i].length());
+                    break;
+                default:
+                    emitter.startElement(XmlEmitter.encode("EMPTY"));
+                    emitter.endElement();
+                    emitter.endElement();
+                    break;
+            }
+        }
+        emitter.endDocument();
+        emitter.release();
+    }
+}